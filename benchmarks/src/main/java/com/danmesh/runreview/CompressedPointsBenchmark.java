@@ -0,0 +1,72 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Benchmarks compressing and decompressing a track's points, and compares a
+ * scan of the positions through a cursor with a scan of the columns of a
+ * PointStore.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressedPointsBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    private PointStore          points;
+    private CompressedPoints    compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        points = new Track(FitFixtures.write(numPoints).getPath()).getPoints();
+        compressed = CompressedPoints.encode(points);
+    }
+
+    @Benchmark
+    public CompressedPoints encode() {
+        return CompressedPoints.encode(points);
+    }
+
+    @Benchmark
+    public PointStore decode() {
+        return compressed.decode();
+    }
+
+    @Benchmark
+    public double cursorScan() {
+        double sum = 0;
+        CompressedPoints.Cursor cursor = compressed.cursor();
+        while (cursor.next()) sum += cursor.getLat() + cursor.getLon();
+        return sum;
+    }
+
+    @Benchmark
+    public double columnScan() {
+        double sum = 0;
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        for (int i = 0; i < points.size(); i++) sum += lat[i] + lon[i];
+        return sum;
+    }
+}
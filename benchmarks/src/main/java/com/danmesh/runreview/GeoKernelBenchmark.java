@@ -0,0 +1,95 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the geo kernels, comparing the scalar kernels with the fastest
+ * available on the JVM. The fork adds the Vector API module, so the latter
+ * are the vector kernels when the application was built with the vector
+ * profile.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class GeoKernelBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    @Param({"scalar", "preferred"})
+    public String kernels;
+
+    private GeoKernels geo;
+
+    private double[] lat;
+    private double[] lon;
+    private double[] alt;
+    private double[] distance;
+    private double[] worldX;
+    private double[] worldY;
+    private double[] out;
+
+    @Setup
+    public void setup() {
+        geo = kernels.equals("scalar") ? new GeoKernels() : GeoKernels.get();
+        lat = new double[numPoints];
+        lon = new double[numPoints];
+        alt = new double[numPoints];
+        distance = new double[numPoints];
+        worldX = new double[numPoints];
+        worldY = new double[numPoints];
+        out = new double[numPoints];
+
+        /* A random walk of about three meters a step, around Cape Town */
+        Random random = new Random(1);
+        lat[0] = -33.9;
+        lon[0] = 18.4;
+        for (int i = 1; i < numPoints; i++) {
+            lat[i] = lat[i - 1] + random.nextGaussian()*2e-5;
+            lon[i] = lon[i - 1] + random.nextGaussian()*2e-5;
+            alt[i] = alt[i - 1] + random.nextGaussian()*0.5;
+        }
+        new GeoKernels().cumulativeDistance(lat, lon, 0, numPoints, 0, distance);
+    }
+
+    @Benchmark
+    public double[] project() {
+        geo.project(lat, lon, 0, numPoints, worldX, worldY);
+        return worldY;
+    }
+
+    @Benchmark
+    public double[] segmentDistances() {
+        geo.segmentDistances(lat, lon, 0, numPoints, out);
+        return out;
+    }
+
+    @Benchmark
+    public double[] cumulativeDistance() {
+        geo.cumulativeDistance(lat, lon, 0, numPoints, 0, out);
+        return out;
+    }
+
+    @Benchmark
+    public double[] grades() {
+        geo.grades(alt, distance, 0, numPoints, out);
+        return out;
+    }
+}
@@ -0,0 +1,94 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Benchmarks the heatmap: rendering the tiles of a panel from scratch, and
+ * adding one more activity to a heatmap whose tiles have been rendered. The
+ * activities are hour-long synthetic runs, each moved a little from the
+ * last so that they overlap the way a runner's usual routes do.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeatmapBenchmark {
+    private static final int RUN_POINTS = 3600;
+    private static final int ZOOM = 14;
+    /* A 600x500 panel covers up to 4x3 tiles */
+    private static final int TILES_ACROSS = 4;
+    private static final int TILES_DOWN = 3;
+
+    @Param({"10", "100", "1000"})
+    public int numActivities;
+
+    private CompressedPoints[] runs;
+    private Heatmap heatmap;
+    private int tileX;
+    private int tileY;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        PointStore run = new Track(FitFixtures.write(RUN_POINTS).getPath()).getPoints();
+        Random random = new Random(1);
+        runs = new CompressedPoints[numActivities + 1];
+        for (int k = 0; k < runs.length; k++) {
+            double dLat = random.nextGaussian()*0.001;
+            double dLon = random.nextGaussian()*0.001;
+            PointStore moved = new PointStore(run.size());
+            for (int i = 0; i < run.size(); i++) {
+                moved.add(run.getTime(i), run.getLat(i) + dLat, run.getLon(i) + dLon, run.getAlt(i),
+                        run.getSpeed(i), run.getDistance(i));
+            }
+            runs[k] = CompressedPoints.encode(moved);
+        }
+        int[] start = Point.getPixelCoords(run.getLat(0), run.getLon(0), ZOOM);
+        tileX = start[0]/TileCache.TILE_SIZE - TILES_ACROSS/2;
+        tileY = start[1]/TileCache.TILE_SIZE - TILES_DOWN/2;
+    }
+
+    /**
+     * Builds a heatmap of all but the last activity, with the panel's tiles rendered.
+     */
+    @Setup(Level.Invocation)
+    public void buildHeatmap() throws IOException {
+        heatmap = new Heatmap();
+        for (int k = 0; k < numActivities; k++) heatmap.add(new File("run" + k), runs[k]);
+        heatmap.render(ZOOM, tileX, tileY, tileX + TILES_ACROSS - 1, tileY + TILES_DOWN - 1);
+    }
+
+    @Benchmark
+    public Heatmap renderPanel() throws IOException {
+        heatmap.clearTiles();
+        heatmap.render(ZOOM, tileX, tileY, tileX + TILES_ACROSS - 1, tileY + TILES_DOWN - 1);
+        return heatmap;
+    }
+
+    @Benchmark
+    public Heatmap addActivity() {
+        heatmap.add(new File("run" + numActivities), runs[numActivities]);
+        return heatmap;
+    }
+}
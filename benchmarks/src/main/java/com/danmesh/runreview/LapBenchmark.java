@@ -0,0 +1,79 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Benchmarks finding the points of each lap, by testing every point with
+ * isInSegment and by the binary search in Track.pointsIn, and formatting
+ * lap times with Track.timeToString.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LapBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    private Track track;
+    private List<Segment> laps;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        track = new Track(FitFixtures.write(numPoints).getPath());
+        laps = track.getLaps();
+    }
+
+    /** Resolves each lap's first and last points by scanning, as the laps were resolved originally */
+    @Benchmark
+    public void lapPointsByScan(Blackhole bh) {
+        PointStore points = track.getPoints();
+        for (Segment lap : laps) {
+            int first = -1, last = -1;
+            for (int i = 0; i < points.size(); i++) {
+                if (points.isInSegment(i, lap)) {
+                    if (first < 0) first = i;
+                    last = i;
+                }
+            }
+            bh.consume(first);
+            bh.consume(last);
+        }
+    }
+
+    @Benchmark
+    public void lapPointsBySearch(Blackhole bh) {
+        for (Segment lap : laps) {
+            bh.consume(track.pointsIn(lap));
+        }
+    }
+
+    @Benchmark
+    public void timeToString(Blackhole bh) {
+        for (Segment lap : laps) {
+            bh.consume(Track.timeToString(lap.getTimerTime(), true, true));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Benchmarks the map: projecting points to world and pixel coordinates,
+ * building the simplified projection for a zoom, and drawing the track the
+ * way MapPanel does into an off-screen image.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MapBenchmark {
+    private static final int ZOOM = 15;
+    private static final int IMAGE_SIZE = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    private Track track;
+    private Point[] points;
+    private TrackProjection projection;
+    private int[] bounds;
+    private BufferedImage image;
+    private Graphics2D graphics;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        track = new Track(FitFixtures.write(numPoints).getPath());
+        points = new Point[track.getPoints().size()];
+        for (int i = 0; i < points.length; i++) points[i] = track.getPoints().get(i);
+        projection = new TrackProjection(track.getPoints());
+        projection.getSimplifiedPixelCoords(ZOOM);
+        bounds = projection.getPixelBounds(ZOOM);
+        image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+        graphics = image.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    /** Projects each Point object to world coordinates, as Track.worldCoordRange does */
+    @Benchmark
+    public void pointWorldCoords(Blackhole bh) {
+        for (Point point : points) {
+            bh.consume(point.getWorldCoords());
+        }
+    }
+
+    /** Projects each Point object to pixel coordinates */
+    @Benchmark
+    public void pointObjectPixelCoords(Blackhole bh) {
+        for (Point point : points) {
+            bh.consume(point.getPixelCoords(ZOOM));
+        }
+    }
+
+    /** Projects each point separately through Point, as the map did before the projection was cached */
+    @Benchmark
+    public void pointPixelCoords(Blackhole bh) {
+        PointStore points = track.getPoints();
+        for (int i = 0; i < points.size(); i++) {
+            bh.consume(Point.getPixelCoords(points.getLat(i), points.getLon(i), ZOOM));
+        }
+    }
+
+    @Benchmark
+    public int[][] projectAndSimplify() {
+        return new TrackProjection(track.getPoints()).getSimplifiedPixelCoords(ZOOM);
+    }
+
+    @Benchmark
+    public BufferedImage drawTrack() {
+        MapPanel.drawTrack(graphics, projection, ZOOM, Color.RED, bounds[0], bounds[1]);
+        return image;
+    }
+}
@@ -0,0 +1,77 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Benchmarks each stage of the point pipeline, and the standard pipeline as
+ * a whole. The stages work in place, so each invocation gets a fresh copy of
+ * the track's points.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    private PointStore recorded;
+    private PointStore points;
+
+    private final OutlierFilter         outliers = new OutlierFilter();
+    private final Resampler             resampler = Resampler.everySeconds(1);
+    private final SavitzkyGolayFilter   smoother = new SavitzkyGolayFilter(5,
+            SavitzkyGolayFilter.Column.ALT, SavitzkyGolayFilter.Column.SPEED);
+    private final PointPipeline         standard = PointPipeline.standard();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        recorded = new Track(FitFixtures.write(numPoints).getPath()).getPoints();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyPoints() {
+        points = new PointStore(recorded.size());
+        points.addAll(recorded);
+    }
+
+    @Benchmark
+    public PointStore outlierFilter() {
+        return outliers.apply(points);
+    }
+
+    @Benchmark
+    public PointStore resampleEverySecond() {
+        return resampler.apply(points);
+    }
+
+    @Benchmark
+    public PointStore savitzkyGolay() {
+        return smoother.apply(points);
+    }
+
+    @Benchmark
+    public PointStore standardPipeline() {
+        return standard.process(points);
+    }
+}
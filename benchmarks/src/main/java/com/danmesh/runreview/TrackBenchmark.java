@@ -0,0 +1,71 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import net.studioblueplanet.logger.DebugLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks opening a track: decoding the .FIT file into a Track, and
+ * reopening it from a warm TrackCache entry.
+ * @author Dan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int numPoints;
+
+    private File file;
+    private File cacheDirectory;
+    private TrackCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        file = FitFixtures.write(numPoints);
+        cacheDirectory = Files.createTempDirectory("track-cache").toFile();
+        cache = new TrackCache(cacheDirectory);
+        cache.open(file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(cacheDirectory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Track decode() throws IOException {
+        return new Track(file.getPath());
+    }
+
+    @Benchmark
+    public Track openCached() throws IOException {
+        return cache.open(file.getPath());
+    }
+}
@@ -0,0 +1,90 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The geo kernels written with the incubating Vector API, so that each loop
+ * works on as many points at once as the CPU's widest registers hold. The
+ * transcendental functions map onto the JDK's vector maths library where the
+ * platform has one. Whatever is left over at the end of a run of points is
+ * handed to the scalar kernels.
+ * Built only by the vector profile, and loaded by GeoKernels.get().
+ * @author Dan
+ */
+public class VectorGeoKernels extends GeoKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final double TO_RADIANS = Math.PI/180;
+
+    public VectorGeoKernels() {
+        /* Fail here, where GeoKernels can fall back, if the module is missing */
+        SPECIES.length();
+    }
+
+    @Override
+    public String getName() {
+        return "vector/" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void project(double[] lat, double[] lon, int from, int to, double[] worldX, double[] worldY) {
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            DoubleVector x = DoubleVector.fromArray(SPECIES, lon, i);
+            x.div(360).add(0.5).mul(256).intoArray(worldX, i);
+
+            DoubleVector siny = DoubleVector.fromArray(SPECIES, lat, i).mul(TO_RADIANS).lanewise(VectorOperators.SIN);
+            DoubleVector ratio = siny.add(1).div(siny.neg().add(1));
+            ratio.lanewise(VectorOperators.LOG).div(-4*Math.PI).add(0.5).mul(256).intoArray(worldY, i);
+        }
+        super.project(lat, lon, i, to, worldX, worldY);
+    }
+
+    @Override
+    public void segmentDistances(double[] lat, double[] lon, int from, int to, double[] out) {
+        if (to <= from) return;
+        out[from] = 0;
+        /* Each lane pairs point i with point i - 1, so the loads are offset by one */
+        int i = from + 1;
+        for (int end = i + SPECIES.loopBound(to - i); i < end; i += SPECIES.length()) {
+            DoubleVector lat1 = DoubleVector.fromArray(SPECIES, lat, i - 1).mul(TO_RADIANS);
+            DoubleVector lat2 = DoubleVector.fromArray(SPECIES, lat, i).mul(TO_RADIANS);
+            DoubleVector lon1 = DoubleVector.fromArray(SPECIES, lon, i - 1);
+            DoubleVector lon2 = DoubleVector.fromArray(SPECIES, lon, i);
+            DoubleVector sinLat = lat2.sub(lat1).mul(0.5).lanewise(VectorOperators.SIN);
+            DoubleVector sinLon = lon2.sub(lon1).mul(TO_RADIANS/2).lanewise(VectorOperators.SIN);
+            DoubleVector cos = lat1.lanewise(VectorOperators.COS).mul(lat2.lanewise(VectorOperators.COS));
+            DoubleVector a = sinLon.mul(sinLon).mul(cos).add(sinLat.mul(sinLat)).min(1);
+            a.sqrt().lanewise(VectorOperators.ASIN).mul(2*EARTH_RADIUS).intoArray(out, i);
+        }
+        if (i < to) {
+            /* The scalar kernel zeroes its first index, so start it one back and restore that point */
+            double last = out[i - 1];
+            super.segmentDistances(lat, lon, i - 1, to, out);
+            out[i - 1] = last;
+        }
+    }
+
+    @Override
+    public void grades(double[] alt, double[] distance, int from, int to, double[] out) {
+        if (to <= from) return;
+        out[from] = 0;
+        int i = from + 1;
+        for (int end = i + SPECIES.loopBound(to - i); i < end; i += SPECIES.length()) {
+            DoubleVector run = DoubleVector.fromArray(SPECIES, distance, i).sub(DoubleVector.fromArray(SPECIES, distance, i - 1));
+            DoubleVector rise = DoubleVector.fromArray(SPECIES, alt, i).sub(DoubleVector.fromArray(SPECIES, alt, i - 1));
+            VectorMask<Double> moved = run.compare(VectorOperators.GE, MIN_GRADE_STEP);
+            DoubleVector.zero(SPECIES).blend(rise.div(run), moved).intoArray(out, i);
+        }
+        if (i < to) {
+            double last = out[i - 1];
+            super.grades(alt, distance, i - 1, to, out);
+            out[i - 1] = last;
+        }
+    }
+}
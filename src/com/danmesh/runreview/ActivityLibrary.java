@@ -0,0 +1,274 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * This class is a library of all the activities stored in a directory of
+ * .FIT files. The files are decoded in parallel and only a summary of each
+ * activity is kept, unless the library is set to retain tracks, in which case
+ * a compressed copy of each track is kept as well.
+ * @author Dan
+ */
+public class ActivityLibrary {
+
+    /**
+     * Receives progress reports while a library is loading. Reports are made
+     * from the worker threads, in no particular order.
+     */
+    public interface ProgressListener {
+        /**
+         * Called once for each file, after it has been decoded or has failed.
+         * @param done The number of files finished so far.
+         * @param total The total number of files being loaded.
+         * @param file The file that has just finished.
+         * @param failure The reason the file failed, or null if it succeeded.
+         */
+        void onProgress(int done, int total, File file, Exception failure);
+    }
+
+    /**
+     * Is given the parsed Track of each activity visited by forEachTrack.
+     * Called from the worker threads, so implementations must be thread safe.
+     */
+    public interface TrackVisitor {
+        void visit(File file, Track track);
+    }
+
+    private final File          directory;
+    private final TrackCache    cache;
+
+    private boolean retainTracks;
+
+    private List<ActivitySummary>   activities = new ArrayList<>();
+    private Map<File, Exception>    failures = new LinkedHashMap<>();
+    private Map<File, CompressedTrack> retained = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Creates an (unloaded) library of a directory of .FIT files.
+     * @param directory The directory to search for .FIT files, including subdirectories.
+     */
+    public ActivityLibrary(File directory) {
+        this(directory, null);
+    }
+
+    /**
+     * Constructor. Creates an (unloaded) library which reads its tracks
+     * through a cache of parsed tracks.
+     * @param directory The directory to search for .FIT files, including subdirectories.
+     * @param cache The cache of parsed tracks, or null to always decode the files.
+     */
+    public ActivityLibrary(File directory, TrackCache cache) {
+        this.directory = directory;
+        this.cache = cache;
+    }
+
+    /**
+     * Sets whether loading keeps a compressed copy of each activity's track in
+     * memory, so that opening or visiting the tracks does not read the files
+     * again. Takes effect on the next load.
+     * @param retainTracks True to keep the tracks, false to keep only summaries.
+     */
+    public void setRetainTracks(boolean retainTracks) {
+        this.retainTracks = retainTracks;
+    }
+
+    public boolean isRetainingTracks() {
+        return retainTracks;
+    }
+
+    /**
+     * Decodes every .FIT file in the directory using all available processors.
+     * @param listener Listener for progress reports, or null.
+     * @throws IOException If the directory could not be listed.
+     */
+    public void load(ProgressListener listener) throws IOException {
+        load(Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Decodes every .FIT file in the directory. A file that cannot be decoded
+     * is recorded as a failure and does not stop the rest of the batch. Unless
+     * tracks are retained, only the summary messages of each file are decoded.
+     * @param parallelism The maximum number of files decoded at once.
+     * @param listener Listener for progress reports, or null.
+     * @throws IOException If the directory could not be listed.
+     */
+    public void load(int parallelism, ProgressListener listener) throws IOException {
+        List<File> files = findFitFiles(directory);
+        int total = files.size();
+        AtomicInteger done = new AtomicInteger();
+        boolean retain = retainTracks;
+        Map<File, CompressedTrack> tracks = new ConcurrentHashMap<>();
+
+        List<Callable<Object>> tasks = new ArrayList<>(total);
+        for (File file : files) {
+            tasks.add(() -> {
+                Object result;
+                try {
+                    if (retain) {
+                        Track track = readTrack(file);
+                        tracks.put(file, new CompressedTrack(track));
+                        result = new ActivitySummary(file, track);
+                    } else {
+                        /* Only the summary is kept, so the points need not be decoded */
+                        result = ActivitySummary.read(file);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    result = e;
+                }
+                if (listener != null) {
+                    Exception failure = result instanceof Exception ? (Exception) result : null;
+                    listener.onProgress(done.incrementAndGet(), total, file, failure);
+                }
+                return result;
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        List<ActivitySummary> loaded = new ArrayList<>(total);
+        Map<File, Exception> failed = new LinkedHashMap<>();
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < total; i++) {
+                Object result = results.get(i).get();
+                if (result instanceof ActivitySummary) {
+                    loaded.add((ActivitySummary) result);
+                } else {
+                    failed.put(files.get(i), (Exception) result);
+                    DebugLogger.error("Could not load " + files.get(i) + ": " + result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + directory, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not load " + directory, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        loaded.sort(Comparator.comparing(ActivitySummary::getLocalTimestamp,
+                Comparator.nullsLast(Comparator.naturalOrder())));
+        activities = loaded;
+        failures = failed;
+        retained = tracks;
+        DebugLogger.info("Loaded " + loaded.size() + " activities from " + directory
+                + " (" + failed.size() + " failed).");
+        if (retain) {
+            long bytes = tracks.values().stream().mapToLong(CompressedTrack::getByteSize).sum();
+            DebugLogger.info("Retained " + tracks.size() + " tracks in " + (bytes >> 10) + " KiB.");
+        }
+    }
+
+    /**
+     * Opens the full Track of one activity in the library, from memory if the
+     * library has retained it.
+     * @param file The .FIT file of the activity.
+     * @return The parsed Track.
+     * @throws IOException If the file could not be read or decoded.
+     */
+    public Track openTrack(File file) throws IOException {
+        CompressedTrack track = retained.get(file);
+        return track != null ? track.toTrack() : readTrack(file);
+    }
+
+    private Track readTrack(File file) throws IOException {
+        return cache != null ? cache.open(file.getPath()) : new Track(file.getPath());
+    }
+
+    /**
+     * Returns the compressed track of one activity, for scanning its points
+     * without decompressing them.
+     * @param file The .FIT file of the activity.
+     * @return The compressed track, or null if the library has not retained it.
+     */
+    public CompressedTrack getCompressedTrack(File file) {
+        return retained.get(file);
+    }
+
+    /**
+     * Opens the tracks of a number of activities in parallel and passes each
+     * to a visitor. Activities which cannot be read are logged and skipped.
+     * @param files The .FIT files of the activities.
+     * @param parallelism The maximum number of tracks opened at once.
+     * @param visitor The visitor to pass each track to.
+     * @throws IOException If the work was interrupted.
+     */
+    public void forEachTrack(List<File> files, int parallelism, TrackVisitor visitor) throws IOException {
+        if (files.isEmpty()) return;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.submit(() -> files.parallelStream().forEach(file -> {
+                try {
+                    visitor.visit(file, openTrack(file));
+                } catch (IOException e) {
+                    DebugLogger.error("Could not open " + file + ": " + e.getMessage());
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while visiting " + directory, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not visit " + directory, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Lists the .FIT files in a directory and its subdirectories.
+     * @param directory The directory to search.
+     * @return List of .FIT files, sorted by path.
+     * @throws IOException If the directory could not be listed.
+     */
+    static List<File> findFitFiles(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".fit"))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the summaries of all activities loaded, oldest first.
+     * @return Unmodifiable list of activity summaries.
+     */
+    public List<ActivitySummary> getActivities() {
+        return Collections.unmodifiableList(activities);
+    }
+
+    /**
+     * Returns the files that could not be decoded, with the reason for each.
+     * @return Unmodifiable map of failed files to their exceptions.
+     */
+    public Map<File, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,140 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import hirondelle.date4j.DateTime;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * This class holds the headline figures of one activity in a library, so that
+ * the activity's points need not be kept in memory.
+ * @author Dan
+ */
+public class ActivitySummary {
+    private final File      file;
+    private final DateTime  localTimestamp;
+    private final double    distance;
+    private final double    timerTime;
+    private final double    elapsedTime;
+    private final int       calories;
+    private final int       numLaps;
+
+    /**
+     * Constructor. Summarises a parsed Track.
+     * @param file The .FIT file the track was read from.
+     * @param track The parsed track.
+     */
+    public ActivitySummary(File file, Track track) {
+        this.file = file;
+        this.localTimestamp = track.getLocalTimestamp();
+        this.distance = track.getDistance();
+        this.timerTime = track.getTimerTime();
+        this.elapsedTime = track.getElapsedTime();
+        this.calories = track.getCalories();
+        this.numLaps = track.getNumLaps();
+    }
+
+    private ActivitySummary(File file, DateTime localTimestamp, double distance, double timerTime,
+            double elapsedTime, int calories, int numLaps) {
+        this.file = file;
+        this.localTimestamp = localTimestamp;
+        this.distance = distance;
+        this.timerTime = timerTime;
+        this.elapsedTime = elapsedTime;
+        this.calories = calories;
+        this.numLaps = numLaps;
+    }
+
+    /**
+     * Reads the summary of an activity straight from its .FIT file, without
+     * decoding its track points.
+     * @param file The .FIT file.
+     * @return The summary.
+     * @throws IOException If the file could not be read or decoded.
+     */
+    public static ActivitySummary read(File file) throws IOException {
+        SummaryReader reader = new SummaryReader();
+        FitDecoder.decodeSummary(file.getPath(), reader);
+        DateTime local = reader.localMillis == null ? null : DateTime.forInstant(reader.localMillis, PointStore.UTC);
+        return new ActivitySummary(file, local, reader.distance, reader.timerTime, reader.elapsedTime,
+                reader.calories, reader.numLaps);
+    }
+
+    /**
+     * Collects the session and activity messages, and counts the laps.
+     */
+    private static class SummaryReader implements FitDecoder.Handler {
+        double distance, timerTime, elapsedTime;
+        int calories, numLaps;
+        Long localMillis;
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            numLaps++;
+        }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            this.distance = distance;
+            this.timerTime = timerTime;
+            this.elapsedTime = elapsedTime;
+            this.calories = calories;
+        }
+
+        @Override
+        public void onActivity(long localTimestampMillis) {
+            localMillis = localTimestampMillis;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Getters">
+    public File getFile() {
+        return file;
+    }
+
+    public DateTime getLocalTimestamp() {
+        return localTimestamp;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getTimerTime() {
+        return timerTime;
+    }
+
+    public double getElapsedTime() {
+        return elapsedTime;
+    }
+
+    public int getCalories() {
+        return calories;
+    }
+
+    public int getNumLaps() {
+        return numLaps;
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Display Strings">
+    public String getDateString() {
+        return localTimestamp == null ? "" : localTimestamp.format("D MMMM YYYY, hh:mm", Locale.ENGLISH);
+    }
+
+    public String getDayOfWeek() {
+        return localTimestamp == null ? "" : localTimestamp.format("WWWW", Locale.ENGLISH);
+    }
+
+    public String getPaceString() {
+        return distance > 0 ? Track.timeToString(1000*timerTime/distance, false, false) : "-";
+    }
+    //</editor-fold>
+
+    @Override
+    public String toString() {
+        return "[" + file.getName() + ": " + localTimestamp + ", " + distance + "m, " + timerTime + "s]";
+    }
+}
@@ -0,0 +1,287 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Writes a report of the activities in a set of .FIT files without any user
+ * interface, for running over large collections of files on a server.
+ * The files are decoded by a pool of worker threads, each of which turns one
+ * activity at a time into the report's rows. The rows are passed through a
+ * bounded queue to a single writer, so memory use stays level however many
+ * files there are and the workers wait whenever the output falls behind.
+ * Each activity gives one summary row followed by a row per lap, as JSON Lines
+ * or CSV. Only the session, activity and lap messages are decoded, so the
+ * files' track points are skipped rather than parsed and stored. Every row
+ * gives its start both as a UTC instant and as local wall-clock time, which
+ * is left empty if the file does not say how far local time is from UTC.
+ * @author Dan
+ */
+public class BatchReport {
+
+    /**
+     * The output formats of the report.
+     */
+    public enum Format {
+        JSON, CSV
+    }
+
+    private static final String CSV_HEADER = "type,file,lap,start_utc,start_local,distance,timer_time,elapsed_time,calories,laps";
+
+    /* Number of activities' rows which may wait for the writer per worker */
+    private static final int QUEUE_PER_WORKER = 4;
+
+    /* Placed on the queue by each worker when it runs out of files */
+    private static final String DONE = new String();
+
+    private final Format    format;
+    private final int       parallelism;
+
+    private final AtomicInteger numFailed = new AtomicInteger();
+
+    /**
+     * Constructor. Creates a report writer.
+     * @param format The output format.
+     * @param parallelism The number of files decoded at once.
+     */
+    public BatchReport(Format format, int parallelism) {
+        this.format = format;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Expands a list of files and directories into the .FIT files they hold.
+     * @param paths The files and directories.
+     * @return List of .FIT files, with the contents of each directory sorted by path.
+     * @throws IOException If a directory could not be listed.
+     */
+    public static List<File> expand(List<File> paths) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (File path : paths) {
+            if (path.isDirectory()) files.addAll(ActivityLibrary.findFitFiles(path));
+            else files.add(path);
+        }
+        return files;
+    }
+
+    /**
+     * Decodes each file and writes its rows to the output. Files which cannot
+     * be decoded are logged and left out of the report.
+     * @param files The .FIT files to report on.
+     * @param out Where to write the report. The caller should buffer and close it.
+     * @return The number of activities written.
+     * @throws IOException If the output could not be written.
+     */
+    public int write(List<File> files, Writer out) throws IOException {
+        numFailed.set(0);
+        if (format == Format.CSV) out.write(CSV_HEADER + "\n");
+
+        BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_PER_WORKER*parallelism);
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>(parallelism);
+        for (int w = 0; w < parallelism; w++) {
+            Thread worker = new Thread(() -> decode(files, next, queue), "BatchReport-" + w);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        int written = 0;
+        int running = parallelism;
+        try {
+            while (running > 0) {
+                String rows = queue.take();
+                if (rows == DONE) {
+                    running--;
+                } else {
+                    out.write(rows);
+                    written++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the report", e);
+        } finally {
+            /* Stop the workers early if the output failed */
+            next.set(files.size());
+            for (Thread worker : workers) worker.interrupt();
+        }
+        out.flush();
+        DebugLogger.info("Reported " + written + " activities, " + numFailed.get() + " could not be read.");
+        return written;
+    }
+
+    /**
+     * Decodes files until there are none left, then posts DONE. DONE is
+     * posted however the worker stops, so that the writer is never left
+     * waiting on a worker which has died.
+     */
+    private void decode(List<File> files, AtomicInteger next, BlockingQueue<String> queue) {
+        boolean interrupted = false;
+        try {
+            for (int i = next.getAndIncrement(); i < files.size(); i = next.getAndIncrement()) {
+                File file = files.get(i);
+                String rows;
+                try {
+                    ActivityReader activity = new ActivityReader();
+                    FitDecoder.decodeSummary(file.getPath(), activity);
+                    rows = rows(file, activity);
+                } catch (IOException | RuntimeException e) {
+                    numFailed.incrementAndGet();
+                    DebugLogger.error("Could not read " + file + ": " + e.getMessage());
+                    continue;
+                }
+                queue.put(rows);
+            }
+        } catch (InterruptedException e) {
+            /* The writer has given up, so there is no one to tell */
+            interrupted = true;
+        } finally {
+            if (!interrupted) {
+                try {
+                    queue.put(DONE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats the summary row and lap rows of an activity.
+     * @return The rows, each ending in a newline.
+     */
+    private String rows(File file, ActivityReader activity) {
+        int numLaps = activity.lapStarts.size();
+        StringBuilder sb = new StringBuilder(256*(1 + numLaps));
+        row(sb, "activity", file.getPath(), -1, activity, activity.getStartMillis(), activity.distance,
+                activity.timerTime, activity.elapsedTime, activity.calories, numLaps);
+
+        for (int i = 0; i < numLaps; i++) {
+            double[] lap = activity.lapValues.get(i);
+            row(sb, "lap", file.getPath(), i, activity, activity.lapStarts.get(i), lap[0], lap[1], lap[2], -1, -1);
+        }
+        return sb.toString();
+    }
+
+    private void row(StringBuilder sb, String type, String file, int lap, ActivityReader activity, Long startMillis,
+            double distance, double timerTime, double elapsedTime, int calories, int numLaps) {
+        String startUtc = startMillis == null ? null : Instant.ofEpochMilli(startMillis).toString();
+        String startLocal = startMillis == null || activity.localOffsetMillis == null ? null
+                : LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis + activity.localOffsetMillis), ZoneOffset.UTC)
+                        .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        if (format == Format.JSON) {
+            sb.append("{\"type\":\"").append(type).append("\",\"file\":");
+            jsonString(sb, file);
+            if (lap >= 0) sb.append(",\"lap\":").append(lap);
+            sb.append(",\"startUtc\":");
+            if (startUtc == null) sb.append("null");
+            else jsonString(sb, startUtc);
+            sb.append(",\"startLocal\":");
+            if (startLocal == null) sb.append("null");
+            else jsonString(sb, startLocal);
+            sb.append(",\"distance\":").append(distance)
+              .append(",\"timerTime\":").append(timerTime)
+              .append(",\"elapsedTime\":").append(elapsedTime);
+            if (calories >= 0) sb.append(",\"calories\":").append(calories);
+            if (numLaps >= 0) sb.append(",\"laps\":").append(numLaps);
+            sb.append("}\n");
+        } else {
+            sb.append(type).append(',');
+            csvString(sb, file);
+            sb.append(',');
+            if (lap >= 0) sb.append(lap);
+            sb.append(',');
+            if (startUtc != null) sb.append(startUtc);
+            sb.append(',');
+            if (startLocal != null) sb.append(startLocal);
+            sb.append(',').append(distance)
+              .append(',').append(timerTime)
+              .append(',').append(elapsedTime)
+              .append(',');
+            if (calories >= 0) sb.append(calories);
+            sb.append(',');
+            if (numLaps >= 0) sb.append(numLaps);
+            sb.append('\n');
+        }
+    }
+
+    private static void jsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static void csvString(StringBuilder sb, String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            sb.append(s);
+            return;
+        }
+        sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+    }
+
+    public int getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Collects the totals, laps and times of one activity from a decoder
+     * which skips the track points.
+     */
+    private static class ActivityReader implements FitDecoder.Handler {
+        double  distance, timerTime, elapsedTime;
+        int     calories;
+        Long    endMillis;
+        Long    localOffsetMillis;
+
+        final List<Long>        lapStarts = new ArrayList<>();
+        /* The distance, timer time and elapsed time of each lap */
+        final List<double[]>    lapValues = new ArrayList<>();
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            lapStarts.add(startMillis);
+            lapValues.add(new double[]{distance, timerTime, elapsedTime});
+        }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            this.distance = distance;
+            this.timerTime = timerTime;
+            this.elapsedTime = elapsedTime;
+            this.calories = calories;
+        }
+
+        @Override
+        public void onActivity(long timestampMillis, long localTimestampMillis) {
+            endMillis = timestampMillis;
+            localOffsetMillis = localTimestampMillis - timestampMillis;
+        }
+
+        /**
+         * @return The start of the first lap, or else the end of the activity less its elapsed time, or null if neither is known.
+         */
+        Long getStartMillis() {
+            if (!lapStarts.isEmpty()) return lapStarts.get(0);
+            return endMillis == null ? null : endMillis - Math.round(elapsedTime*1000);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+
+/**
+ * The fastest time over a set distance within one activity.
+ * @author Dan
+ */
+public class BestEffort {
+    private final File      file;
+    private final double    targetDistance;
+    private final double    time;
+    private final int       startIndex;
+    private final int       endIndex;
+    private final long      startMillis;
+
+    /**
+     * Constructor. Creates a best effort.
+     * @param file The .FIT file of the activity.
+     * @param targetDistance The distance of the effort in meters.
+     * @param time The time taken in seconds.
+     * @param startIndex Index of the point where the effort starts.
+     * @param endIndex Index of the point where the effort ends.
+     * @param startMillis Time the effort started, in milliseconds since the epoch (UTC).
+     */
+    public BestEffort(File file, double targetDistance, double time, int startIndex, int endIndex, long startMillis) {
+        this.file = file;
+        this.targetDistance = targetDistance;
+        this.time = time;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+        this.startMillis = startMillis;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Getters">
+    public File getFile() {
+        return file;
+    }
+
+    public double getTargetDistance() {
+        return targetDistance;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    public int getEndIndex() {
+        return endIndex;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+    //</editor-fold>
+
+    /**
+     * @return Pace of the effort in seconds per km.
+     */
+    public double getPace() {
+        return 1000*time/targetDistance;
+    }
+
+    @Override
+    public String toString() {
+        String name = file == null ? "" : file.getName() + " ";
+        return "[" + name + targetDistance + "m in " + Track.timeToString(time, true, true) + "]";
+    }
+}
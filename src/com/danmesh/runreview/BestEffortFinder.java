@@ -0,0 +1,158 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the fastest efforts over a set of distances, such as a personal best
+ * 5 km inside a longer run, and keeps a leaderboard of them across a library
+ * of activities.
+ * Each activity is searched once with a sliding window over its distance and
+ * time columns, so adding an activity to the leaderboard only searches that
+ * activity.
+ * @author Dan
+ */
+public class BestEffortFinder {
+    /** The default distances in meters: 1 km, 5 km, 10 km and a half marathon */
+    public static final double[] DEFAULT_DISTANCES = {1000, 5000, 10000, 21097.5};
+
+    private static final int LEADERBOARD_SIZE = 10;
+
+    private final double[] distances;
+
+    /* The fastest efforts for each distance, fastest first, and the files already searched */
+    private final List<List<BestEffort>> leaderboard;
+    private final Set<File> searched = new HashSet<>();
+
+    public BestEffortFinder() {
+        this(DEFAULT_DISTANCES);
+    }
+
+    /**
+     * Constructor. Creates a finder with an empty leaderboard.
+     * @param distances The distances of interest, in meters.
+     */
+    public BestEffortFinder(double[] distances) {
+        this.distances = distances.clone();
+        leaderboard = new ArrayList<>(distances.length);
+        for (int i = 0; i < distances.length; i++) leaderboard.add(new ArrayList<>());
+    }
+
+    /**
+     * Finds the fastest effort over a distance in a track.
+     * Two indices are slid along the points together: for each start point the
+     * end is moved forward to the first point at least the target distance on,
+     * so each is moved at most n times. The end time is interpolated to the
+     * exact distance.
+     * @param file The .FIT file of the track (used to label the effort).
+     * @param points The points of the track.
+     * @param target The distance of the effort in meters.
+     * @return The fastest effort, or null if the track is shorter than the target.
+     */
+    public static BestEffort find(File file, PointStore points, double target) {
+        int n = points.size();
+        long[] time = points.timeColumn();
+        double[] dist = points.distanceColumn();
+
+        double best = Double.MAX_VALUE;
+        int bestStart = -1, bestEnd = -1;
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            double goal = dist[i] + target;
+            if (j <= i) j = i + 1;
+            while (j < n && dist[j] < goal) j++;
+            if (j >= n) break;
+
+            double span = dist[j] - dist[j-1];
+            double fraction = span > 0 ? (goal - dist[j-1])/span : 1;
+            double t = (time[j-1] - time[i] + fraction*(time[j] - time[j-1]))/1000.0;
+            if (t < best) {
+                best = t;
+                bestStart = i;
+                bestEnd = j;
+            }
+        }
+        if (bestStart < 0) return null;
+        return new BestEffort(file, target, best, bestStart, bestEnd, time[bestStart]);
+    }
+
+    /**
+     * Finds the fastest effort over each of the finder's distances in a track.
+     * @param file The .FIT file of the track.
+     * @param track The track to search.
+     * @return Array of efforts in the order of the distances, with null for distances longer than the track.
+     */
+    public BestEffort[] find(File file, Track track) {
+        BestEffort[] efforts = new BestEffort[distances.length];
+        for (int k = 0; k < distances.length; k++) {
+            efforts[k] = find(file, track.getPoints(), distances[k]);
+        }
+        return efforts;
+    }
+
+    /**
+     * Searches an activity and adds its efforts to the leaderboard. An
+     * activity which has already been searched is ignored.
+     * @param file The .FIT file of the activity.
+     * @param track The parsed track of the activity.
+     */
+    public void add(File file, Track track) {
+        synchronized (this) {
+            if (!searched.add(file)) return;
+        }
+        merge(find(file, track));
+    }
+
+    /**
+     * Searches every activity in a library which has not been searched yet, in
+     * parallel, and adds their efforts to the leaderboard. Activities which
+     * cannot be read are skipped.
+     * @param library The library of activities.
+     * @param parallelism The maximum number of activities searched at once.
+     * @throws IOException If the search was interrupted.
+     */
+    public void addAll(ActivityLibrary library, int parallelism) throws IOException {
+        List<File> files = new ArrayList<>();
+        synchronized (this) {
+            for (ActivitySummary activity : library.getActivities()) {
+                if (!searched.contains(activity.getFile())) files.add(activity.getFile());
+            }
+        }
+        library.forEachTrack(files, parallelism, this::add);
+    }
+
+    private synchronized void merge(BestEffort[] efforts) {
+        for (int k = 0; k < distances.length; k++) {
+            if (efforts[k] == null) continue;
+            List<BestEffort> board = leaderboard.get(k);
+            int at = 0;
+            while (at < board.size() && board.get(at).getTime() <= efforts[k].getTime()) at++;
+            if (at >= LEADERBOARD_SIZE) continue;
+            board.add(at, efforts[k]);
+            if (board.size() > LEADERBOARD_SIZE) board.remove(board.size() - 1);
+        }
+    }
+
+    /**
+     * Returns the leaderboard for one of the finder's distances.
+     * @param distance The distance in meters.
+     * @return The fastest efforts, fastest first.
+     */
+    public synchronized List<BestEffort> getLeaderboard(double distance) {
+        for (int k = 0; k < distances.length; k++) {
+            if (distances[k] == distance) return Collections.unmodifiableList(new ArrayList<>(leaderboard.get(k)));
+        }
+        throw new IllegalArgumentException("Not a best effort distance: " + distance);
+    }
+
+    public double[] getDistances() {
+        return distances.clone();
+    }
+}
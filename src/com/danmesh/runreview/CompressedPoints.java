@@ -0,0 +1,273 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Arrays;
+
+/**
+ * A compact, read-only copy of a track's points, for keeping a whole library
+ * in memory. Each column is quantised to fixed point at the resolution a .FIT
+ * file records it in (semicircles for positions, milliseconds, centimeters,
+ * fifths of a meter and millimeters per second) and stored as differences
+ * from the previous point, packed into zigzag varints. Time, position and
+ * distance change steadily, so for those the difference from the previous
+ * difference is stored instead, which is usually a single byte.
+ * The points are read back in order through a Cursor. Every BLOCK_SIZE
+ * points the encoding starts afresh and its offset is kept, so a cursor can
+ * start part way through without decoding from the beginning.
+ * @author Dan
+ */
+public class CompressedPoints {
+    static final int BLOCK_SIZE = 128;
+
+    private static final double SEMICIRCLES = (1L << 31)/180.0;
+    private static final double ALT_SCALE = 5;
+    private static final double SPEED_SCALE = 1000;
+    private static final double DISTANCE_SCALE = 100;
+
+    private static final Metrics.Timer ENCODE_TIMER = Metrics.timer("points.encode");
+    private static final Metrics.Timer DECODE_TIMER = Metrics.timer("points.decode");
+
+    private final byte[]    data;
+    private final int[]     blockOffsets;
+    private final int       size;
+
+    private CompressedPoints(byte[] data, int[] blockOffsets, int size) {
+        this.data = data;
+        this.blockOffsets = blockOffsets;
+        this.size = size;
+    }
+
+    /**
+     * Compresses the points of a store. Values finer than the .FIT resolution are rounded.
+     * @param points The points to compress.
+     * @return The compressed points.
+     */
+    public static CompressedPoints encode(PointStore points) {
+        long start = ENCODE_TIMER.start();
+        int n = points.size();
+        long[] time = points.timeColumn();
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        double[] alt = points.altColumn();
+        double[] speed = points.speedColumn();
+        double[] distance = points.distanceColumn();
+
+        Encoder out = new Encoder(Math.max(16, n*8));
+        int[] blockOffsets = new int[(n + BLOCK_SIZE - 1)/BLOCK_SIZE];
+        for (int i = 0; i < n; i++) {
+            boolean whole = i % BLOCK_SIZE == 0;
+            if (whole) blockOffsets[i/BLOCK_SIZE] = out.size;
+            out.putSecond(0, time[i], whole);
+            out.putSecond(1, Math.round(lat[i]*SEMICIRCLES), whole);
+            out.putSecond(2, Math.round(lon[i]*SEMICIRCLES), whole);
+            out.putSecond(3, Math.round(distance[i]*DISTANCE_SCALE), whole);
+            out.putFirst(4, Math.round(alt[i]*ALT_SCALE), whole);
+            out.putFirst(5, Math.round(speed[i]*SPEED_SCALE), whole);
+        }
+        CompressedPoints compressed = new CompressedPoints(Arrays.copyOf(out.buf, out.size), blockOffsets, n);
+        ENCODE_TIMER.stop(start);
+        return compressed;
+    }
+
+    /**
+     * Decompresses every point into a new store.
+     * @return The points, at the resolution they were compressed to.
+     */
+    public PointStore decode() {
+        long start = DECODE_TIMER.start();
+        long[] time = new long[size];
+        double[] lat = new double[size];
+        double[] lon = new double[size];
+        double[] alt = new double[size];
+        double[] speed = new double[size];
+        double[] distance = new double[size];
+        Cursor cursor = cursor();
+        for (int i = 0; cursor.next(); i++) {
+            time[i] = cursor.getTime();
+            lat[i] = cursor.getLat();
+            lon[i] = cursor.getLon();
+            alt[i] = cursor.getAlt();
+            speed[i] = cursor.getSpeed();
+            distance[i] = cursor.getDistance();
+        }
+        PointStore points = new PointStore(time, lat, lon, alt, speed, distance, size);
+        DECODE_TIMER.stop(start);
+        return points;
+    }
+
+    /**
+     * @return A cursor before the first point.
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * Returns a cursor part way through the points. Only the points since the
+     * start of from's block are decoded to reach it.
+     * @param from The index of the first point the cursor will return.
+     * @return A cursor before point from.
+     */
+    public Cursor cursor(int from) {
+        if (from < 0 || from > size) throw new IndexOutOfBoundsException("Index: " + from + ", Size: " + size);
+        Cursor cursor = new Cursor(from/BLOCK_SIZE*BLOCK_SIZE);
+        while (cursor.index + 1 < from) cursor.next();
+        return cursor;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The approximate number of bytes of heap used by the compressed points.
+     */
+    public long getByteSize() {
+        return 16 + data.length + 4L*blockOffsets.length + 32;
+    }
+
+    /**
+     * Reads the points in order. Call next() to move to each point in turn,
+     * then read its values with the getters.
+     */
+    public class Cursor {
+        private int pos;
+        private int index;
+
+        /* The quantised values of the current point */
+        private long time, lat, lon, distance, alt, speed;
+        /* The last differences of the second order columns */
+        private long dTime, dLat, dLon, dDistance;
+
+        private Cursor(int first) {
+            index = first - 1;
+            if (first < size) pos = blockOffsets[first/BLOCK_SIZE];
+        }
+
+        /**
+         * Moves to the next point.
+         * @return True if there was another point, false at the end.
+         */
+        public boolean next() {
+            if (index + 1 >= size) {
+                index = size;
+                return false;
+            }
+            index++;
+            if (index % BLOCK_SIZE == 0) {
+                time = readVarLong();
+                lat = readVarLong();
+                lon = readVarLong();
+                distance = readVarLong();
+                alt = readVarLong();
+                speed = readVarLong();
+                dTime = dLat = dLon = dDistance = 0;
+                return true;
+            }
+            time += dTime += readVarLong();
+            lat += dLat += readVarLong();
+            lon += dLon += readVarLong();
+            distance += dDistance += readVarLong();
+            alt += readVarLong();
+            speed += readVarLong();
+            return true;
+        }
+
+        private long readVarLong() {
+            byte[] d = data;
+            int p = pos;
+            long b = d[p++];
+            long v = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = d[p++];
+                v |= (b & 0x7F) << shift;
+            }
+            pos = p;
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        // <editor-fold defaultstate="collapsed" desc="Current Point">
+        public int getIndex() {
+            return index;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public double getLat() {
+            return lat/SEMICIRCLES;
+        }
+
+        public double getLon() {
+            return lon/SEMICIRCLES;
+        }
+
+        public double getDistance() {
+            return distance/DISTANCE_SCALE;
+        }
+
+        public double getAlt() {
+            return alt/ALT_SCALE;
+        }
+
+        public double getSpeed() {
+            return speed/SPEED_SCALE;
+        }
+        //</editor-fold>
+    }
+
+    /**
+     * Packs the differences into a growing byte array. The first point of a
+     * block is written whole, and the differences start again from it.
+     */
+    private static class Encoder {
+        byte[]  buf;
+        int     size;
+
+        final long[] value = new long[6];
+        final long[] delta = new long[4];
+
+        Encoder(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        /**
+         * Writes a column stored as the change in its difference from the previous point.
+         */
+        void putSecond(int c, long v, boolean whole) {
+            if (whole) {
+                putVarLong(v);
+                delta[c] = 0;
+            } else {
+                long d = v - value[c];
+                putVarLong(d - delta[c]);
+                delta[c] = d;
+            }
+            value[c] = v;
+        }
+
+        /**
+         * Writes a column stored as its difference from the previous point.
+         */
+        void putFirst(int c, long v, boolean whole) {
+            putVarLong(whole ? v : v - value[c]);
+            value[c] = v;
+        }
+
+        private void putVarLong(long v) {
+            if (size + 10 > buf.length) buf = Arrays.copyOf(buf, buf.length + (buf.length >> 1) + 10);
+            long z = (v << 1) ^ (v >> 63);
+            while ((z & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[size++] = (byte) z;
+        }
+    }
+}
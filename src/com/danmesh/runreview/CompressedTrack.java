@@ -0,0 +1,83 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import hirondelle.date4j.DateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Track held in compressed form, so that a library can keep every activity
+ * in memory. The points are held as CompressedPoints, which can be scanned in
+ * place, and the laps as plain values. toTrack() rebuilds a full Track when
+ * one is needed.
+ * @author Dan
+ */
+public class CompressedTrack {
+    private final CompressedPoints points;
+
+    /* The start and end times of each lap, and its timer time, elapsed time and distance */
+    private final long[]    lapTimes;
+    private final double[]  lapValues;
+
+    private final double    distance;
+    private final double    timerTime;
+    private final double    elapsedTime;
+    private final int       calories;
+    private final DateTime  localTimestamp;
+    private final int[]     limits;
+
+    /**
+     * Constructor. Compresses a parsed Track.
+     * @param track The track, which is not referred to afterwards.
+     */
+    public CompressedTrack(Track track) {
+        points = CompressedPoints.encode(track.getPoints());
+        List<Segment> laps = track.getLaps();
+        lapTimes = new long[2*laps.size()];
+        lapValues = new double[3*laps.size()];
+        for (int i = 0; i < laps.size(); i++) {
+            Segment lap = laps.get(i);
+            lapTimes[2*i] = lap.getStartMillis();
+            lapTimes[2*i + 1] = lap.getEndMillis();
+            lapValues[3*i] = lap.getTimerTime();
+            lapValues[3*i + 1] = lap.getElapsedTime();
+            lapValues[3*i + 2] = lap.getDistance();
+        }
+        distance = track.getDistance();
+        timerTime = track.getTimerTime();
+        elapsedTime = track.getElapsedTime();
+        calories = track.getCalories();
+        localTimestamp = track.getLocalTimestamp();
+        limits = track.getLimitIndices();
+    }
+
+    /**
+     * Decompresses the track.
+     * @return A new Track, with its points at the resolution they were compressed to.
+     */
+    public Track toTrack() {
+        List<Segment> laps = new ArrayList<>(lapTimes.length/2);
+        for (int i = 0; i < lapTimes.length/2; i++) {
+            DateTime start = DateTime.forInstant(lapTimes[2*i], PointStore.UTC);
+            DateTime end = DateTime.forInstant(lapTimes[2*i + 1], PointStore.UTC);
+            laps.add(new Segment(start, end, lapValues[3*i], lapValues[3*i + 1], lapValues[3*i + 2]));
+        }
+        return new Track(points.decode(), laps, distance, timerTime, elapsedTime, calories, localTimestamp, limits);
+    }
+
+    /**
+     * Returns the compressed points, for scanning without decompressing the whole track.
+     * @return The compressed points.
+     */
+    public CompressedPoints getPoints() {
+        return points;
+    }
+
+    /**
+     * @return The approximate number of bytes of heap used by the track.
+     */
+    public long getByteSize() {
+        return points.getByteSize() + 8L*lapTimes.length + 8L*lapValues.length + 96;
+    }
+}
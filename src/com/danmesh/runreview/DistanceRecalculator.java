@@ -0,0 +1,22 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * Replaces the distance recorded by the watch with the great-circle distance
+ * along the points' positions, e.g. for a recording whose distance came from
+ * a miscalibrated foot pod, or after the positions have been smoothed. The
+ * distance at the first point is kept.
+ * @author Dan
+ */
+public class DistanceRecalculator implements PointFilter {
+
+    @Override
+    public PointStore apply(PointStore points) {
+        int n = points.size();
+        if (n < 2) return points;
+        double[] distance = points.distanceColumn();
+        GeoKernels.get().cumulativeDistance(points.latColumn(), points.lonColumn(), 0, n, distance[0], distance);
+        return points;
+    }
+}
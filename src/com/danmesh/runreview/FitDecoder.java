@@ -0,0 +1,491 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A streaming decoder for .FIT files.
+ * The file is memory-mapped and read in a single pass. The fields of interest
+ * are resolved to byte offsets once per definition message, and each decoded
+ * message is passed straight to a Handler rather than being kept in memory.
+ * @author Dan
+ */
+public class FitDecoder {
+
+    /**
+     * Receives the messages decoded from a .FIT file, in file order.
+     * Times are in milliseconds since the epoch (UTC), except for the activity's
+     * local timestamp, which is the local wall-clock time expressed the same way.
+     */
+    public interface Handler {
+        default void onRecord(long timeMillis, double lat, double lon, double alt, double speed, double distance) {}
+        default void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {}
+        default void onSession(double distance, double timerTime, double elapsedTime, int calories) {}
+        default void onActivity(long localTimestampMillis) {}
+
+        /**
+         * Called instead of onActivity(long) when the activity message also
+         * has its UTC time, which gives the offset of local time from UTC.
+         * By default only the local timestamp is passed on.
+         */
+        default void onActivity(long timestampMillis, long localTimestampMillis) {
+            onActivity(localTimestampMillis);
+        }
+    }
+
+    /** Seconds between the Unix epoch and the FIT epoch (31 Dec 1989 00:00 UTC). */
+    static final long FIT_EPOCH_OFFSET = 631065600L;
+
+    private static final int MESG_SESSION   = 18;
+    private static final int MESG_LAP       = 19;
+    private static final int MESG_RECORD    = 20;
+    private static final int MESG_ACTIVITY  = 34;
+
+    private static final int FIELD_TIMESTAMP = 253;
+
+    /* Field numbers of interest for each message, in slot order. Slot 0 is always the timestamp. */
+    private static final int SLOT_TIMESTAMP = 0;
+    private static final int[] RECORD_FIELDS    = {FIELD_TIMESTAMP, 0, 1, 2, 5, 6, 78, 73};
+    private static final int R_LAT = 1, R_LON = 2, R_ALT = 3, R_DIST = 4, R_SPEED = 5, R_ENH_ALT = 6, R_ENH_SPEED = 7;
+
+    private static final int[] LAP_FIELDS       = {FIELD_TIMESTAMP, 2, 7, 8, 9};
+    private static final int[] SESSION_FIELDS   = {FIELD_TIMESTAMP, 2, 7, 8, 9, 11};
+    private static final int S_START = 1, S_ELAPSED = 2, S_TIMER = 3, S_DIST = 4, S_CALORIES = 5;
+
+    private static final int[] ACTIVITY_FIELDS  = {FIELD_TIMESTAMP, 5};
+    private static final int A_LOCAL_TIME = 1;
+
+    /* Every other message is skipped, but its timestamp is still read as the base for compressed timestamps */
+    private static final int[] TIMESTAMP_FIELDS = {FIELD_TIMESTAMP};
+
+    private static final double SEMICIRCLES_TO_DEGREES = 180.0 / (1L << 31);
+
+    private ByteBuffer          le;
+    private ByteBuffer          be;
+    private final Handler       handler;
+    private final boolean       summaryOnly;
+
+    private final Definition[]  definitions = new Definition[16];
+    private long                lastTimestamp = -1;
+
+    /**
+     * Constructor. Creates a decoder over the raw bytes of a .FIT file.
+     * @param data Buffer containing the whole file, from its header.
+     * @param handler The handler to receive decoded messages.
+     */
+    public FitDecoder(ByteBuffer data, Handler handler) {
+        this(data, handler, false);
+    }
+
+    /**
+     * Constructor. Creates a decoder which may skip the track points.
+     * @param data Buffer containing the whole file, from its header.
+     * @param handler The handler to receive decoded messages.
+     * @param summaryOnly True to skip record messages, passing on only the laps, session and activity.
+     */
+    public FitDecoder(ByteBuffer data, Handler handler, boolean summaryOnly) {
+        use(data);
+        this.handler = handler;
+        this.summaryOnly = summaryOnly;
+    }
+
+    /**
+     * Switches to a new buffer, keeping the definitions read so far.
+     */
+    private void use(ByteBuffer data) {
+        this.le = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.be = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Decodes a .FIT file, passing each message of interest to a handler.
+     * @param filename The filename of the .FIT file.
+     * @param handler The handler to receive decoded messages.
+     * @throws IOException If the file could not be read or is not a valid .FIT file.
+     */
+    public static void decode(String filename, Handler handler) throws IOException {
+        decode(filename, handler, false);
+    }
+
+    /**
+     * Decodes the laps, session and activity of a .FIT file without its track
+     * points. Record messages are stepped over without being read, so this is
+     * much quicker than a full decode.
+     * @param filename The filename of the .FIT file.
+     * @param handler The handler to receive decoded messages.
+     * @throws IOException If the file could not be read or is not a valid .FIT file.
+     */
+    public static void decodeSummary(String filename, Handler handler) throws IOException {
+        decode(filename, handler, true);
+    }
+
+    private static void decode(String filename, Handler handler, boolean summaryOnly) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            new FitDecoder(data, handler, summaryOnly).decode();
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed .FIT file: " + filename, e);
+        }
+    }
+
+    /**
+     * Decodes every (possibly chained) .FIT file in the buffer.
+     * @throws IOException If a file header is not valid.
+     */
+    public void decode() throws IOException {
+        if (le.limit() < 12) throw new IOException("Too short to be a .FIT file");
+        int pos = 0;
+        while (le.limit() - pos >= 12) {
+            int headerSize = checkHeader(pos);
+            long dataSize = le.getInt(pos + 4) & 0xFFFFFFFFL;
+            int start = pos + headerSize;
+            int end = (int) Math.min(le.limit(), start + dataSize);
+            decodeMessages(start, end);
+            pos = end + 2;  // Skip the file CRC
+        }
+    }
+
+    /**
+     * Checks the file header at a position.
+     * @return The size of the header in bytes.
+     * @throws IOException If it is not a .FIT file header.
+     */
+    private int checkHeader(int pos) throws IOException {
+        int headerSize = le.get(pos) & 0xFF;
+        if (headerSize < 12 || le.get(pos + 8) != '.' || le.get(pos + 9) != 'F'
+                || le.get(pos + 10) != 'I' || le.get(pos + 11) != 'T') {
+            throw new IOException("Invalid .FIT header at offset " + pos);
+        }
+        return headerSize;
+    }
+
+    private void decodeMessages(int pos, int end) throws IOException {
+        while (pos < end) {
+            pos = decodeMessage(pos);
+        }
+    }
+
+    /**
+     * Decodes the message at a position.
+     * @return The position of the next message.
+     */
+    private int decodeMessage(int pos) throws IOException {
+        int header = le.get(pos++) & 0xFF;
+        if ((header & 0x80) != 0) {
+            /* Compressed timestamp header: a data message carrying a 5 bit time offset */
+            int local = (header >> 5) & 0x03;
+            int offset = header & 0x1F;
+            if (lastTimestamp >= 0) {
+                long ts = (lastTimestamp & ~0x1FL) + offset;
+                if (offset < (lastTimestamp & 0x1F)) ts += 0x20;
+                lastTimestamp = ts;
+            }
+            return decodeData(definition(local), pos, true);
+        } else if ((header & 0x40) != 0) {
+            return readDefinition(header, pos);
+        } else {
+            return decodeData(definition(header & 0x0F), pos, false);
+        }
+    }
+
+    /**
+     * Finds the length of the message at a position without decoding it.
+     * @param end The position after the last byte available.
+     * @return The length of the message in bytes, or -1 if it does not end before end.
+     */
+    private int messageLength(int pos, int end) throws IOException {
+        if (pos >= end) return -1;
+        int header = le.get(pos) & 0xFF;
+        int length;
+        if ((header & 0x80) == 0 && (header & 0x40) != 0) {
+            if (pos + 6 > end) return -1;
+            length = 6 + 3*(le.get(pos + 5) & 0xFF);
+            if ((header & 0x20) != 0) {
+                if (pos + length + 1 > end) return -1;
+                length += 1 + 3*(le.get(pos + length) & 0xFF);
+            }
+        } else {
+            int local = (header & 0x80) != 0 ? (header >> 5) & 0x03 : header & 0x0F;
+            length = 1 + definition(local).length;
+        }
+        return pos + length <= end ? length : -1;
+    }
+
+    private Definition definition(int local) throws IOException {
+        Definition def = definitions[local];
+        if (def == null) throw new IOException("Data message for undefined local type " + local);
+        return def;
+    }
+
+    private int readDefinition(int header, int pos) {
+        int local = header & 0x0F;
+        boolean bigEndian = le.get(pos + 1) == 1;
+        ByteBuffer buf = bigEndian ? be : le;
+        int global = buf.getShort(pos + 2) & 0xFFFF;
+        int numFields = le.get(pos + 4) & 0xFF;
+        pos += 5;
+
+        int[] wanted = summaryOnly && global == MESG_RECORD ? null : fieldsOf(global);
+        boolean skipped = wanted == null;
+        if (skipped) wanted = TIMESTAMP_FIELDS;
+        Definition def = new Definition(global, bigEndian, skipped, wanted.length);
+        int offset = 0;
+        for (int i = 0; i < numFields; i++, pos += 3) {
+            int num = le.get(pos) & 0xFF;
+            int size = le.get(pos + 1) & 0xFF;
+            for (int slot = 0; slot < wanted.length; slot++) {
+                if (wanted[slot] == num) {
+                    def.offset[slot] = offset;
+                    def.size[slot] = size;
+                }
+            }
+            offset += size;
+        }
+        if ((header & 0x20) != 0) {
+            /* Developer fields are skipped, but still count towards the message size */
+            int numDevFields = le.get(pos++) & 0xFF;
+            for (int i = 0; i < numDevFields; i++, pos += 3) {
+                offset += le.get(pos + 1) & 0xFF;
+            }
+        }
+        def.length = offset;
+        definitions[local] = def;
+        return pos;
+    }
+
+    private static int[] fieldsOf(int global) {
+        switch (global) {
+            case MESG_RECORD:   return RECORD_FIELDS;
+            case MESG_LAP:      return LAP_FIELDS;
+            case MESG_SESSION:  return SESSION_FIELDS;
+            case MESG_ACTIVITY: return ACTIVITY_FIELDS;
+            default:            return null;
+        }
+    }
+
+    private int decodeData(Definition def, int pos, boolean compressedTime) {
+        if (def.skipped && def.offset[SLOT_TIMESTAMP] < 0) return pos + def.length;
+
+        ByteBuffer buf = def.bigEndian ? be : le;
+        long timestamp = def.unsigned(buf, pos, SLOT_TIMESTAMP);
+        if (timestamp >= 0) lastTimestamp = timestamp;
+        else if (compressedTime) timestamp = lastTimestamp;
+        if (def.skipped) return pos + def.length;
+
+        switch (def.global) {
+            case MESG_RECORD:   decodeRecord(def, buf, pos, timestamp); break;
+            case MESG_LAP:      decodeLap(def, buf, pos, timestamp); break;
+            case MESG_SESSION:  decodeSession(def, buf, pos); break;
+            case MESG_ACTIVITY: decodeActivity(def, buf, pos, timestamp); break;
+            default:
+        }
+        return pos + def.length;
+    }
+
+    private void decodeRecord(Definition def, ByteBuffer buf, int pos, long timestamp) {
+        long lat = def.signed(buf, pos, R_LAT);
+        long lon = def.signed(buf, pos, R_LON);
+        /* Fixes without a position (e.g. before GPS lock) cannot be placed on the map */
+        if (lat == Long.MIN_VALUE || lon == Long.MIN_VALUE || timestamp < 0) return;
+
+        long alt = def.unsigned(buf, pos, R_ENH_ALT);
+        if (alt < 0) alt = def.unsigned(buf, pos, R_ALT);
+        long speed = def.unsigned(buf, pos, R_ENH_SPEED);
+        if (speed < 0) speed = def.unsigned(buf, pos, R_SPEED);
+        long distance = def.unsigned(buf, pos, R_DIST);
+
+        handler.onRecord(toMillis(timestamp),
+                lat * SEMICIRCLES_TO_DEGREES,
+                lon * SEMICIRCLES_TO_DEGREES,
+                alt < 0 ? 0 : alt/5.0 - 500,
+                speed < 0 ? 0 : speed/1000.0,
+                distance < 0 ? 0 : distance/100.0);
+    }
+
+    private void decodeLap(Definition def, ByteBuffer buf, int pos, long timestamp) {
+        long start = def.unsigned(buf, pos, S_START);
+        double elapsed = def.unsigned(buf, pos, S_ELAPSED)/1000.0;
+        double timer = def.unsigned(buf, pos, S_TIMER)/1000.0;
+        long distance = def.unsigned(buf, pos, S_DIST);
+        if (start < 0) start = timestamp - (long) elapsed;
+        handler.onLap(toMillis(start), toMillis(timestamp), Math.max(timer, 0), Math.max(elapsed, 0),
+                distance < 0 ? 0 : distance/100.0);
+    }
+
+    private void decodeSession(Definition def, ByteBuffer buf, int pos) {
+        double elapsed = def.unsigned(buf, pos, S_ELAPSED)/1000.0;
+        double timer = def.unsigned(buf, pos, S_TIMER)/1000.0;
+        long distance = def.unsigned(buf, pos, S_DIST);
+        long calories = def.unsigned(buf, pos, S_CALORIES);
+        handler.onSession(distance < 0 ? 0 : distance/100.0, Math.max(timer, 0), Math.max(elapsed, 0),
+                (int) Math.max(calories, 0));
+    }
+
+    private void decodeActivity(Definition def, ByteBuffer buf, int pos, long timestamp) {
+        long local = def.unsigned(buf, pos, A_LOCAL_TIME);
+        if (local < 0) return;
+        if (timestamp >= 0) handler.onActivity(toMillis(timestamp), toMillis(local));
+        else handler.onActivity(toMillis(local));
+    }
+
+    /**
+     * Converts a FIT timestamp to milliseconds since the Unix epoch.
+     * @param fitSeconds Seconds since the FIT epoch.
+     * @return Milliseconds since the Unix epoch.
+     */
+    static long toMillis(long fitSeconds) {
+        return (fitSeconds + FIT_EPOCH_OFFSET) * 1000;
+    }
+
+    /**
+     * Decodes a .FIT file which arrives a piece at a time, such as a file
+     * which is still being recorded or a stream from a sensor bridge.
+     * Each piece is decoded as far as the last whole message in it, and the
+     * rest is kept until the next piece completes it. A file whose header
+     * gives a data size of zero is taken to be still being written, and is
+     * decoded for as long as data keeps arriving.
+     */
+    public static class Incremental {
+        private static final int HEADER = 0, MESSAGES = 1, CRC = 2;
+
+        private final FitDecoder decoder;
+
+        /* Bytes received but not yet decoded lie between start and end */
+        private byte[]  pending = new byte[1 << 16];
+        private int     start;
+        private int     end;
+
+        private int     state = HEADER;
+        private long    remaining;
+
+        /**
+         * Constructor. Creates a decoder expecting the start of a .FIT file.
+         * @param handler The handler to receive decoded messages.
+         */
+        public Incremental(Handler handler) {
+            decoder = new FitDecoder(ByteBuffer.wrap(pending), handler, false);
+        }
+
+        /**
+         * Decodes every message completed by a piece of data.
+         * @param data The data which follows the last piece, from its position to its limit.
+         * @throws IOException If the data is not a valid .FIT file.
+         */
+        public void feed(ByteBuffer data) throws IOException {
+            append(data);
+            try {
+                decodeAvailable();
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException("Malformed .FIT data", e);
+            }
+        }
+
+        private void append(ByteBuffer data) {
+            int n = data.remaining();
+            if (end + n > pending.length) {
+                int kept = end - start;
+                byte[] next = kept + n > pending.length ? new byte[Math.max(2*pending.length, kept + n)] : pending;
+                System.arraycopy(pending, start, next, 0, kept);
+                pending = next;
+                start = 0;
+                end = kept;
+                decoder.use(ByteBuffer.wrap(pending));
+            }
+            data.get(pending, end, n);
+            end += n;
+        }
+
+        private void decodeAvailable() throws IOException {
+            while (true) {
+                if (state == HEADER) {
+                    if (end - start < 12 || end - start < (pending[start] & 0xFF)) return;
+                    int headerSize = decoder.checkHeader(start);
+                    long dataSize = decoder.le.getInt(start + 4) & 0xFFFFFFFFL;
+                    remaining = dataSize == 0 ? Long.MAX_VALUE : dataSize;
+                    start += headerSize;
+                    state = MESSAGES;
+                } else if (state == MESSAGES) {
+                    if (remaining <= 0) {
+                        state = CRC;
+                        continue;
+                    }
+                    int length = decoder.messageLength(start, end);
+                    if (length < 0) return;
+                    decoder.decodeMessage(start);
+                    start += length;
+                    remaining -= length;
+                } else {
+                    if (end - start < 2) return;
+                    start += 2;
+                    state = HEADER;
+                }
+            }
+        }
+    }
+
+    /**
+     * The layout of one local message type, with the fields of interest
+     * already resolved to byte offsets within the message.
+     */
+    private static class Definition {
+        final int       global;
+        final boolean   bigEndian;
+        /* Whether only the timestamp of the message is read */
+        final boolean   skipped;
+        final int[]     offset;
+        final int[]     size;
+        int             length;
+
+        Definition(int global, boolean bigEndian, boolean skipped, int slots) {
+            this.global = global;
+            this.bigEndian = bigEndian;
+            this.skipped = skipped;
+            this.offset = new int[slots];
+            this.size = new int[slots];
+            Arrays.fill(offset, -1);
+        }
+
+        /**
+         * Reads an unsigned field.
+         * @return The raw value, or -1 if the field is absent or invalid.
+         */
+        long unsigned(ByteBuffer buf, int pos, int slot) {
+            if (offset[slot] < 0) return -1;
+            int at = pos + offset[slot];
+            switch (size[slot]) {
+                case 1: {
+                    int v = buf.get(at) & 0xFF;
+                    return v == 0xFF ? -1 : v;
+                }
+                case 2: {
+                    int v = buf.getShort(at) & 0xFFFF;
+                    return v == 0xFFFF ? -1 : v;
+                }
+                case 4: {
+                    long v = buf.getInt(at) & 0xFFFFFFFFL;
+                    return v == 0xFFFFFFFFL ? -1 : v;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * Reads a signed 32 bit field.
+         * @return The raw value, or Long.MIN_VALUE if the field is absent or invalid.
+         */
+        long signed(ByteBuffer buf, int pos, int slot) {
+            if (offset[slot] < 0 || size[slot] != 4) return Long.MIN_VALUE;
+            int v = buf.getInt(pos + offset[slot]);
+            return v == Integer.MAX_VALUE ? Long.MIN_VALUE : v;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Bulk versions of the geodesic maths done on a track's points: the map
+ * projection, the distance between consecutive points, the cumulative
+ * distance, and the grade. Each kernel works on whole columns, so a track or
+ * a library can be recomputed in a few tight loops.
+ * This class is the scalar implementation. When the application is built
+ * with the vector profile and run with --add-modules jdk.incubator.vector,
+ * get() returns a subclass using SIMD instead, loaded by reflection so that
+ * nothing else depends on the incubator module.
+ * @author Dan
+ */
+public class GeoKernels {
+    static final double EARTH_RADIUS = 6371000;
+
+    /* Grades over steps shorter than this, in meters, are set to zero */
+    static final double MIN_GRADE_STEP = 1;
+
+    private static final String VECTOR_CLASS = "com.danmesh.runreview.VectorGeoKernels";
+
+    private static final GeoKernels INSTANCE = load();
+
+    GeoKernels() {
+    }
+
+    /**
+     * Returns the fastest kernels available on this JVM. Setting the system
+     * property runreview.kernels=scalar forces the scalar kernels.
+     * @return The kernels.
+     */
+    public static GeoKernels get() {
+        return INSTANCE;
+    }
+
+    private static GeoKernels load() {
+        if (!"scalar".equals(System.getProperty("runreview.kernels"))) {
+            try {
+                GeoKernels kernels = (GeoKernels) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+                DebugLogger.debug("Using vector geo kernels.");
+                return kernels;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                /* Not built with the vector profile, or the incubator module was not added */
+                DebugLogger.debug("Using scalar geo kernels: " + e);
+            }
+        }
+        return new GeoKernels();
+    }
+
+    /**
+     * @return A short name for the implementation, e.g. for logs and benchmarks.
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Projects points into Web-Mercator world coordinates, as Point.worldX and Point.worldY.
+     * @param lat Latitudes in degrees.
+     * @param lon Longitudes in degrees.
+     * @param from The index of the first point.
+     * @param to The index after the last point.
+     * @param worldX Array to receive the x world coordinates, at the same indices.
+     * @param worldY Array to receive the y world coordinates, at the same indices.
+     */
+    public void project(double[] lat, double[] lon, int from, int to, double[] worldX, double[] worldY) {
+        for (int i = from; i < to; i++) {
+            worldX[i] = Point.worldX(lon[i]);
+            worldY[i] = Point.worldY(lat[i]);
+        }
+    }
+
+    /**
+     * Calculates the great-circle distance from each point to the next by the haversine formula.
+     * @param lat Latitudes in degrees.
+     * @param lon Longitudes in degrees.
+     * @param from The index of the first point.
+     * @param to The index after the last point.
+     * @param out Array to receive the distance in meters from point i - 1 to point i at index i, and 0 at from.
+     */
+    public void segmentDistances(double[] lat, double[] lon, int from, int to, double[] out) {
+        if (to <= from) return;
+        out[from] = 0;
+        double toRadians = Math.PI/180;
+        double cosPrev = Math.cos(lat[from]*toRadians);
+        for (int i = from + 1; i < to; i++) {
+            double cos = Math.cos(lat[i]*toRadians);
+            double sinLat = Math.sin((lat[i] - lat[i - 1])*toRadians/2);
+            double sinLon = Math.sin((lon[i] - lon[i - 1])*toRadians/2);
+            double a = sinLat*sinLat + cosPrev*cos*sinLon*sinLon;
+            out[i] = 2*EARTH_RADIUS*Math.asin(Math.sqrt(Math.min(1, a)));
+            cosPrev = cos;
+        }
+    }
+
+    /**
+     * Recalculates the cumulative distance along a run of points from their positions.
+     * @param lat Latitudes in degrees.
+     * @param lon Longitudes in degrees.
+     * @param from The index of the first point.
+     * @param to The index after the last point.
+     * @param start The distance at the first point, in meters.
+     * @param out Array to receive the distance at each point, in meters.
+     */
+    public void cumulativeDistance(double[] lat, double[] lon, int from, int to, double start, double[] out) {
+        if (to <= from) return;
+        segmentDistances(lat, lon, from, to, out);
+        double total = start;
+        for (int i = from; i < to; i++) {
+            total += out[i];
+            out[i] = total;
+        }
+    }
+
+    /**
+     * Calculates the grade from each point to the next, as rise over run.
+     * @param alt Altitudes in meters.
+     * @param distance Cumulative distances in meters.
+     * @param from The index of the first point.
+     * @param to The index after the last point.
+     * @param out Array to receive the grade from point i - 1 to point i at index i, and 0 at from.
+     */
+    public void grades(double[] alt, double[] distance, int from, int to, double[] out) {
+        if (to <= from) return;
+        out[from] = 0;
+        for (int i = from + 1; i < to; i++) {
+            double run = distance[i] - distance[i - 1];
+            out[i] = run >= MIN_GRADE_STEP ? (alt[i] - alt[i - 1])/run : 0;
+        }
+    }
+}
@@ -0,0 +1,520 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import javax.swing.SwingUtilities;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * A personal heatmap: every activity in a library drawn onto one map, with
+ * each pixel coloured by how many times it has been run through. The heatmap
+ * is drawn in tiles in the same z/x/y scheme as the TileCache, using the
+ * pixel coordinates of Point.getPixelCoords, so that it can be laid straight
+ * over the map tiles.
+ * Each tile counts the passes through its pixels in a byte grid, stopping at
+ * SATURATION since every count above it is coloured the same, and its image
+ * is coloured from the counts. Tiles are rendered on a fork-join pool and the
+ * most recently used are kept, at every zoom, up to MEMORY_BYTES in all. The activities are kept as
+ * CompressedPoints with the bounds of each block of points, so a tile only
+ * decodes the parts of an activity which cross it. Adding an activity adds
+ * its passes to the kept tiles its bounds touch, and leaves the rest alone.
+ * @author Dan
+ */
+public class Heatmap {
+    private static final int TILE_SIZE = TileCache.TILE_SIZE;
+    private static final int BLOCK_SIZE = CompressedPoints.BLOCK_SIZE;
+    /* About 200 tiles with something on them, which is more than a 4K screen shows at once; empty tiles cost next to nothing */
+    private static final long MEMORY_BYTES = 64L*1024*1024;
+
+    /* The number of passes at which a pixel is drawn at full heat */
+    private static final int SATURATION = 64;
+    private static final int[] PALETTE = palette();
+
+    private static final Metrics.Timer  TILE_TIMER = Metrics.timer("heatmap.tile");
+    private static final Metrics.Timer  ADD_TIMER = Metrics.timer("heatmap.add");
+    private static final Metrics.Counter UPDATED_TILES = Metrics.counter("heatmap.tile.updated");
+
+    private final ForkJoinPool pool;
+
+    /* Activities are only ever appended, so a renderer can take the first n as a snapshot */
+    private final List<Activity>    activities = new ArrayList<>();
+    private final Set<File>         files = new HashSet<>();
+    private final double[]          worldBounds = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+    /* In order of use, least recent first, and trimmed to MEMORY_BYTES when a tile is added */
+    private final Map<Long, Tile> tiles = new LinkedHashMap<>(256, 0.75f, true);
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    /* Held while an added activity is drawn onto the kept tiles, so that two are never drawn onto a tile at once */
+    private final Object updateLock = new Object();
+
+    private volatile TileCache.TileListener listener;
+
+    public Heatmap() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor. Creates an empty heatmap.
+     * @param parallelism The maximum number of tiles rendered at once.
+     */
+    public Heatmap(int parallelism) {
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Sets the listener to tell when a requested tile has been rendered, or a
+     * tile has changed because an activity was added. Called on the Swing thread.
+     * @param listener The listener, or null.
+     */
+    public void setListener(TileCache.TileListener listener) {
+        this.listener = listener;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Adding Activities">
+
+    /**
+     * Adds an activity to the heatmap. Activities which have already been added are ignored.
+     * @param file The .FIT file of the activity.
+     * @param track The parsed track of the activity.
+     */
+    public void add(File file, Track track) {
+        add(file, CompressedPoints.encode(track.getPoints()));
+    }
+
+    /**
+     * Adds an activity to the heatmap, redrawing only the kept tiles which its
+     * bounds touch. Activities which have already been added are ignored.
+     * @param file The .FIT file of the activity.
+     * @param points The compressed points of the activity.
+     */
+    public void add(File file, CompressedPoints points) {
+        if (points.isEmpty()) return;
+        long start = ADD_TIMER.start();
+        Activity activity = new Activity(points);
+        List<Tile> touched = new ArrayList<>();
+        synchronized (this) {
+            if (!files.add(file)) return;
+            activities.add(activity);
+            worldBounds[0] = Math.min(worldBounds[0], activity.minX);
+            worldBounds[1] = Math.min(worldBounds[1], activity.minY);
+            worldBounds[2] = Math.max(worldBounds[2], activity.maxX);
+            worldBounds[3] = Math.max(worldBounds[3], activity.maxY);
+            for (Tile tile : tiles.values()) {
+                if (tile.touches(activity)) touched.add(tile);
+            }
+        }
+        /* Tiles kept from now on are rendered with the activity, so only these need it drawing on.
+           The pool's workers may be waiting for this heatmap's lock, so it is not held here */
+        if (!touched.isEmpty()) {
+            synchronized (updateLock) {
+                pool.submit(() -> touched.parallelStream().forEach(tile -> {
+                    tile.accumulate(activity, new Scratch());
+                    tile.colour();
+                })).join();
+            }
+        }
+        UPDATED_TILES.add(touched.size());
+        TileCache.TileListener l = listener;
+        if (l != null && !touched.isEmpty()) {
+            SwingUtilities.invokeLater(() -> {
+                for (Tile tile : touched) l.tileLoaded(tile.zoom, tile.x, tile.y);
+            });
+        }
+        ADD_TIMER.stop(start);
+    }
+
+    /**
+     * Adds every activity in a library which has not been added yet. The
+     * tracks the library has retained are used as they are, and the rest
+     * are opened in parallel.
+     * @param library The library, which must have been loaded.
+     * @param parallelism The maximum number of activities opened at once.
+     * @throws IOException If the work was interrupted.
+     */
+    public void addAll(ActivityLibrary library, int parallelism) throws IOException {
+        List<File> unread = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (ActivitySummary activity : library.getActivities()) {
+            File file = activity.getFile();
+            synchronized (this) {
+                if (files.contains(file)) continue;
+            }
+            CompressedTrack retained = library.getCompressedTrack(file);
+            if (retained != null) add(file, retained.getPoints());
+            else unread.add(file);
+        }
+        library.forEachTrack(unread, parallelism, this::add);
+        DebugLogger.info("Added " + getNumActivities() + " activities to the heatmap in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Tiles">
+
+    /**
+     * Returns a tile if it has been rendered. Otherwise the tile is queued to
+     * be rendered and the listener is told when it is ready.
+     * @param zoom Zoom level of the tile.
+     * @param x Column of the tile.
+     * @param y Row of the tile.
+     * @return The tile's image, or null if it is not rendered yet or nothing crosses it.
+     */
+    public BufferedImage getTile(int zoom, int x, int y) {
+        int n = 1 << zoom;
+        if (x < 0 || y < 0 || x >= n || y >= n) return null;
+        long key = key(zoom, x, y);
+        synchronized (this) {
+            Tile tile = tiles.get(key);
+            if (tile != null) return tile.image;
+        }
+        if (pending.add(key)) {
+            pool.execute(() -> {
+                try {
+                    render(zoom, x, y);
+                } finally {
+                    pending.remove(key);
+                }
+                TileCache.TileListener l = listener;
+                if (l != null) SwingUtilities.invokeLater(() -> l.tileLoaded(zoom, x, y));
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Renders a block of tiles in parallel and waits for them, e.g. to export
+     * an area of the heatmap. Tiles which are already kept are not redrawn.
+     * @param zoom Zoom level of the tiles.
+     * @param x0 The first column.
+     * @param y0 The first row.
+     * @param x1 The last column.
+     * @param y1 The last row.
+     * @throws IOException If the rendering was interrupted.
+     */
+    public void render(int zoom, int x0, int y0, int x1, int y1) throws IOException {
+        List<long[]> missing = new ArrayList<>();
+        synchronized (this) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    if (!tiles.containsKey(key(zoom, x, y))) missing.add(new long[]{x, y});
+                }
+            }
+        }
+        try {
+            pool.submit(() -> missing.parallelStream().forEach(t -> render(zoom, (int) t[0], (int) t[1]))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering the heatmap", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not render the heatmap", e.getCause());
+        }
+    }
+
+    /**
+     * Renders one tile from every activity and keeps it. Activities added
+     * while it was being drawn are added to it before it is kept.
+     */
+    private void render(int zoom, int x, int y) {
+        long start = TILE_TIMER.start();
+        Activity[] snapshot;
+        synchronized (this) {
+            snapshot = activities.toArray(new Activity[0]);
+        }
+        Tile tile = new Tile(zoom, x, y);
+        Scratch scratch = new Scratch();
+        for (Activity activity : snapshot) tile.accumulate(activity, scratch);
+        synchronized (this) {
+            for (int i = snapshot.length; i < activities.size(); i++) tile.accumulate(activities.get(i), scratch);
+            tile.colour();
+            tiles.put(key(zoom, x, y), tile);
+            trimTiles();
+        }
+        TILE_TIMER.stop(start);
+    }
+
+    /**
+     * Drops the least recently used tiles until the rest fit in MEMORY_BYTES.
+     * The sizes are added up afresh, since adding an activity can give a kept
+     * tile its first pixels. Must be called holding this heatmap's lock.
+     */
+    private void trimTiles() {
+        long bytes = 0;
+        for (Tile tile : tiles.values()) bytes += tile.getByteSize();
+        Iterator<Tile> eldest = tiles.values().iterator();
+        while (bytes > MEMORY_BYTES && tiles.size() > 1) {
+            bytes -= eldest.next().getByteSize();
+            eldest.remove();
+        }
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+
+    /**
+     * Drops every kept tile, e.g. to free memory. They are rendered again when next asked for.
+     */
+    public synchronized void clearTiles() {
+        tiles.clear();
+    }
+
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Info Getter Methods">
+
+    public synchronized int getNumActivities() {
+        return activities.size();
+    }
+
+    /**
+     * Returns the area covered by every activity.
+     * @return Array of world coordinates in the form [minX, minY, maxX, maxY], or null if there are no activities.
+     */
+    public synchronized double[] getWorldBounds() {
+        return activities.isEmpty() ? null : worldBounds.clone();
+    }
+
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Rasterising">
+
+    /**
+     * An activity's points, with the world bounds of the whole activity and
+     * of each block of points. A block's bounds include the first point of
+     * the next block, so that they cover the line joining the two.
+     */
+    private static class Activity {
+        final CompressedPoints  points;
+        final double[]          blockBounds;
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+        Activity(CompressedPoints points) {
+            this.points = points;
+            int blocks = (points.size() + BLOCK_SIZE - 1)/BLOCK_SIZE;
+            blockBounds = new double[4*blocks];
+            Scratch scratch = new Scratch();
+            for (int b = 0; b < blocks; b++) {
+                int n = scratch.load(points, b);
+                double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    x0 = Math.min(x0, scratch.x[i]);
+                    y0 = Math.min(y0, scratch.y[i]);
+                    x1 = Math.max(x1, scratch.x[i]);
+                    y1 = Math.max(y1, scratch.y[i]);
+                }
+                blockBounds[4*b] = x0;
+                blockBounds[4*b + 1] = y0;
+                blockBounds[4*b + 2] = x1;
+                blockBounds[4*b + 3] = y1;
+                minX = Math.min(minX, x0);
+                minY = Math.min(minY, y0);
+                maxX = Math.max(maxX, x1);
+                maxY = Math.max(maxY, y1);
+            }
+        }
+    }
+
+    /**
+     * Room for one block of points, decoded and projected to world coordinates.
+     */
+    private static class Scratch {
+        final double[] lat = new double[BLOCK_SIZE + 1];
+        final double[] lon = new double[BLOCK_SIZE + 1];
+        final double[] x = new double[BLOCK_SIZE + 1];
+        final double[] y = new double[BLOCK_SIZE + 1];
+
+        /**
+         * Decodes a block and the first point of the next.
+         * @return The number of points decoded.
+         */
+        int load(CompressedPoints points, int block) {
+            CompressedPoints.Cursor cursor = points.cursor(block*BLOCK_SIZE);
+            int n = 0;
+            while (n <= BLOCK_SIZE && cursor.next()) {
+                lat[n] = cursor.getLat();
+                lon[n] = cursor.getLon();
+                n++;
+            }
+            GeoKernels.get().project(lat, lon, 0, n, x, y);
+            return n;
+        }
+    }
+
+    /**
+     * One tile of the heatmap: the passes through each of its pixels, and
+     * the image coloured from them. A tile nothing crosses has neither.
+     */
+    private static class Tile {
+        final int   zoom, x, y;
+        final int   scale;
+
+        byte[]                  density;
+        volatile BufferedImage  image;
+
+        Tile(int zoom, int x, int y) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.scale = 1 << zoom;
+        }
+
+        /**
+         * Determines whether an area in world coordinates has any pixels on this tile.
+         */
+        boolean touches(double minX, double minY, double maxX, double maxY) {
+            int left = x*TILE_SIZE, top = y*TILE_SIZE;
+            return (int) (maxX*scale) >= left && (int) (minX*scale) < left + TILE_SIZE
+                    && (int) (maxY*scale) >= top && (int) (minY*scale) < top + TILE_SIZE;
+        }
+
+        boolean touches(Activity activity) {
+            return touches(activity.minX, activity.minY, activity.maxX, activity.maxY);
+        }
+
+        /**
+         * Adds the passes of an activity through this tile. Each line between
+         * two points adds one to every pixel it enters, so the shared end of
+         * two lines is counted once, and points which fall on the same pixel
+         * add nothing.
+         */
+        void accumulate(Activity activity, Scratch scratch) {
+            if (!touches(activity)) return;
+            int left = x*TILE_SIZE, top = y*TILE_SIZE;
+            double[] bounds = activity.blockBounds;
+            for (int b = 0; 4*b < bounds.length; b++) {
+                if (!touches(bounds[4*b], bounds[4*b + 1], bounds[4*b + 2], bounds[4*b + 3])) continue;
+                if (density == null) density = new byte[TILE_SIZE*TILE_SIZE];
+                int n = scratch.load(activity.points, b);
+                int px = (int) (scratch.x[0]*scale) - left;
+                int py = (int) (scratch.y[0]*scale) - top;
+                /* The first point of every other block was counted as the last point of the block before */
+                if (b == 0) plot(px, py);
+                for (int i = 1; i < n; i++) {
+                    int qx = (int) (scratch.x[i]*scale) - left;
+                    int qy = (int) (scratch.y[i]*scale) - top;
+                    line(px, py, qx, qy);
+                    px = qx;
+                    py = qy;
+                }
+            }
+        }
+
+        private void plot(int px, int py) {
+            if (px >= 0 && py >= 0 && px < TILE_SIZE && py < TILE_SIZE) {
+                int i = py*TILE_SIZE + px;
+                if (density[i] < SATURATION) density[i]++;
+            }
+        }
+
+        /**
+         * Counts the pixels of a line by Bresenham's algorithm, leaving out
+         * its first pixel. A long line, e.g. across a gap in the recording,
+         * is clipped to the tile first.
+         */
+        private void line(int x0, int y0, int x1, int y1) {
+            if (Math.max(x0, x1) < 0 || Math.max(y0, y1) < 0
+                    || Math.min(x0, x1) >= TILE_SIZE || Math.min(y0, y1) >= TILE_SIZE) return;
+            if (Math.abs(x1 - x0) > TILE_SIZE || Math.abs(y1 - y0) > TILE_SIZE) {
+                int[] clipped = clip(x0, y0, x1, y1);
+                if (clipped == null) return;
+                /* The first pixel is left out as usual unless the clipping moved it */
+                if (clipped[0] != x0 || clipped[1] != y0) plot(clipped[0], clipped[1]);
+                x0 = clipped[0];
+                y0 = clipped[1];
+                x1 = clipped[2];
+                y1 = clipped[3];
+            }
+            int dx = Math.abs(x1 - x0), sx = x0 < x1 ? 1 : -1;
+            int dy = -Math.abs(y1 - y0), sy = y0 < y1 ? 1 : -1;
+            int err = dx + dy;
+            while (x0 != x1 || y0 != y1) {
+                int e2 = 2*err;
+                if (e2 >= dy) {
+                    err += dy;
+                    x0 += sx;
+                }
+                if (e2 <= dx) {
+                    err += dx;
+                    y0 += sy;
+                }
+                plot(x0, y0);
+            }
+        }
+
+        /**
+         * Clips a line to the tile by the Liang-Barsky algorithm.
+         * @return The clipped line in the form [x0, y0, x1, y1], or null if it misses the tile.
+         */
+        private static int[] clip(int x0, int y0, int x1, int y1) {
+            double dx = x1 - x0, dy = y1 - y0;
+            double t0 = 0, t1 = 1;
+            double[] p = {-dx, dx, -dy, dy};
+            double[] q = {x0, TILE_SIZE - 1 - x0, y0, TILE_SIZE - 1 - y0};
+            for (int i = 0; i < 4; i++) {
+                if (p[i] == 0) {
+                    if (q[i] < 0) return null;
+                } else {
+                    double t = q[i]/p[i];
+                    if (p[i] < 0) t0 = Math.max(t0, t);
+                    else t1 = Math.min(t1, t);
+                }
+            }
+            if (t0 > t1) return null;
+            return new int[]{(int) Math.round(x0 + t0*dx), (int) Math.round(y0 + t0*dy),
+                    (int) Math.round(x0 + t1*dx), (int) Math.round(y0 + t1*dy)};
+        }
+
+        /**
+         * @return The approximate number of bytes of heap used by the tile.
+         */
+        long getByteSize() {
+            return 64 + (density == null ? 0 : density.length) + (image == null ? 0 : 4L*TILE_SIZE*TILE_SIZE);
+        }
+
+        /**
+         * Colours the image from the pass counts.
+         */
+        void colour() {
+            if (density == null) return;
+            int[] argb = new int[TILE_SIZE*TILE_SIZE];
+            for (int i = 0; i < argb.length; i++) argb[i] = PALETTE[density[i]];
+            BufferedImage coloured = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            coloured.getRaster().setDataElements(0, 0, TILE_SIZE, TILE_SIZE, argb);
+            image = coloured;
+        }
+    }
+
+    /**
+     * Builds the colour of each pass count, on a log scale from a faint dark
+     * red for one pass through red, orange and yellow to white at saturation.
+     */
+    private static int[] palette() {
+        int[] palette = new int[SATURATION + 1];
+        for (int count = 1; count <= SATURATION; count++) {
+            double heat = Math.log(count + 1)/Math.log(SATURATION + 1);
+            int alpha = (int) Math.round(255*Math.min(1, 0.45 + heat));
+            int r = (int) Math.round(255*Math.min(1, 0.5 + 1.5*heat));
+            int g = (int) Math.round(255*Math.max(0, Math.min(1, 2*heat - 0.4)));
+            int b = (int) Math.round(255*Math.max(0, 3*heat - 2));
+            palette[count] = alpha << 24 | r << 16 | g << 8 | b;
+        }
+        return palette;
+    }
+
+    // </editor-fold>
+}
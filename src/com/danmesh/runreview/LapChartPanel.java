@@ -0,0 +1,139 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.JPanel;
+
+/**
+ * A bar chart of the pace of each lap. Each bar is as wide as the lap is
+ * long, so the chart reads like the run itself, and faster laps stand taller.
+ * The bars are drawn onto an image which is kept until the panel changes
+ * size, so repainting the chart is a single image copy however many laps
+ * there are. Hovering over a bar shows the lap's figures.
+ * @author Dan
+ */
+public class LapChartPanel extends JPanel {
+    private static final int    MARGIN = 30;
+    private static final Color  BAR_COLOR = new Color(66, 133, 244);
+    private static final Color  AXIS_COLOR = Color.GRAY;
+
+    /* Paces are drawn from a little slower than the slowest lap, so every lap has a bar */
+    private static final double PACE_HEADROOM = 1.1;
+
+    private final double[] timerTime;
+    private final double[] distance;
+    private final double[] pace;
+
+    /* Distance at the end of each lap, for finding the lap under the mouse */
+    private final double[] cumulative;
+    private final double   slowest;
+    private final double   fastest;
+
+    private BufferedImage chart;
+
+    /**
+     * Constructor. Creates a chart of laps.
+     * @param laps The laps of the activity, in order.
+     */
+    public LapChartPanel(List<Segment> laps) {
+        int n = laps.size();
+        timerTime = new double[n];
+        distance = new double[n];
+        pace = new double[n];
+        cumulative = new double[n];
+        double slow = 0, fast = Double.MAX_VALUE, total = 0;
+        for (int i = 0; i < n; i++) {
+            Segment lap = laps.get(i);
+            timerTime[i] = lap.getTimerTime();
+            distance[i] = lap.getDistance();
+            pace[i] = distance[i] > 0 ? 1000*timerTime[i]/distance[i] : 0;
+            total += distance[i];
+            cumulative[i] = total;
+            if (pace[i] > 0) {
+                slow = Math.max(slow, pace[i]);
+                fast = Math.min(fast, pace[i]);
+            }
+        }
+        slowest = slow;
+        fastest = fast == Double.MAX_VALUE ? 0 : fast;
+
+        setPreferredSize(new Dimension(700, 300));
+        setBackground(Color.WHITE);
+        setToolTipText("");
+    }
+
+    /**
+     * Draws the chart onto a new image the size of the panel.
+     */
+    private BufferedImage drawChart(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        int plotWidth = width - 2*MARGIN;
+        int plotHeight = height - 2*MARGIN;
+        double total = cumulative.length == 0 ? 0 : cumulative[cumulative.length - 1];
+        if (plotWidth > 0 && plotHeight > 0 && total > 0 && slowest > 0) {
+            double floor = slowest*PACE_HEADROOM;
+            double range = floor - fastest*0.9;
+            g.setColor(BAR_COLOR);
+            int lastRight = MARGIN;
+            for (int i = 0; i < pace.length; i++) {
+                if (pace[i] <= 0) continue;
+                int right = MARGIN + (int) Math.round(plotWidth*cumulative[i]/total);
+                /* Laps narrower than a pixel share it, so the tallest of them shows */
+                int left = Math.min(lastRight, right - 1);
+                int barHeight = (int) Math.round(plotHeight*(floor - pace[i])/range);
+                /* Leave a gap between bars which are wide enough to spare one */
+                int barWidth = right - left > 3 ? right - left - 1 : Math.max(1, right - left);
+                g.fillRect(left, MARGIN + plotHeight - barHeight, barWidth, barHeight);
+                lastRight = right;
+            }
+
+            g.setColor(AXIS_COLOR);
+            g.drawLine(MARGIN, MARGIN + plotHeight, MARGIN + plotWidth, MARGIN + plotHeight);
+            g.drawString("Fastest " + Track.timeToString(fastest, false, false) + " /km", MARGIN, MARGIN - 10);
+            g.drawString(String.format("%.2f km", total/1000), MARGIN + plotWidth - 50, MARGIN + plotHeight + 20);
+        }
+        g.dispose();
+        return image;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) return;
+        if (chart == null || chart.getWidth() != width || chart.getHeight() != height) {
+            chart = drawChart(width, height);
+        }
+        g.drawImage(chart, 0, 0, null);
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int plotWidth = getWidth() - 2*MARGIN;
+        if (cumulative.length == 0 || plotWidth <= 0) return null;
+        double at = (e.getX() - MARGIN)*cumulative[cumulative.length - 1]/plotWidth;
+        if (at < 0 || at > cumulative[cumulative.length - 1]) return null;
+
+        int i = Arrays.binarySearch(cumulative, at);
+        if (i < 0) i = -i - 1;
+        i = Math.min(i, cumulative.length - 1);
+        return "Lap " + (i + 1) + ": " + String.format("%.2f km", distance[i]/1000) + " in "
+                + Track.timeToString(timerTime[i], true, true)
+                + (pace[i] > 0 ? " (" + Track.timeToString(pace[i], false, false) + " /km)" : "");
+    }
+}
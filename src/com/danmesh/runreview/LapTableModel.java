@@ -0,0 +1,83 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.List;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table of an activity's laps.
+ * The lap figures are copied into columns once, and each cell's text is
+ * formatted the first time it is shown and then kept, so scrolling through
+ * thousands of laps formats only the rows which come into view, once each.
+ * @author Dan
+ */
+public class LapTableModel extends AbstractTableModel {
+    private static final String[] COLUMNS = {"Lap", "Distance (km)", "Time", "Pace (min/km)", "Elapsed"};
+    private static final int LAP = 0, DISTANCE = 1, TIME = 2, PACE = 3, ELAPSED = 4;
+
+    private final double[] distance;
+    private final double[] timerTime;
+    private final double[] elapsedTime;
+
+    private final String[][] text;
+
+    /**
+     * Constructor. Creates a table of laps.
+     * @param laps The laps of the activity, in order.
+     */
+    public LapTableModel(List<Segment> laps) {
+        int n = laps.size();
+        distance = new double[n];
+        timerTime = new double[n];
+        elapsedTime = new double[n];
+        for (int i = 0; i < n; i++) {
+            Segment lap = laps.get(i);
+            distance[i] = lap.getDistance();
+            timerTime[i] = lap.getTimerTime();
+            elapsedTime[i] = lap.getElapsedTime();
+        }
+        text = new String[COLUMNS.length][n];
+    }
+
+    @Override
+    public int getRowCount() {
+        return distance.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        String value = text[column][row];
+        if (value == null) {
+            value = format(row, column);
+            text[column][row] = value;
+        }
+        return value;
+    }
+
+    private String format(int row, int column) {
+        switch (column) {
+            case LAP:       return Integer.toString(row + 1);
+            case DISTANCE:  return String.format("%.2f", distance[row]/1000);
+            case TIME:      return Track.timeToString(timerTime[row], true, true);
+            case PACE:      return distance[row] > 0 ? Track.timeToString(1000*timerTime[row]/distance[row], false, false) : "-";
+            case ELAPSED:   return Track.timeToString(elapsedTime[row], true, true);
+            default:        throw new IndexOutOfBoundsException("Column: " + column);
+        }
+    }
+}
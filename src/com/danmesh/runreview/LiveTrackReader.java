@@ -0,0 +1,186 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.StandardOpenOption;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * Reads an activity while it is being recorded, either from a .FIT file which
+ * is still being written or from a local socket standing in for a sensor
+ * bridge. Data is read on a daemon thread as it arrives, and each piece is
+ * decoded into a Track.Batch for the listener to add to a live Track.
+ * @author Dan
+ */
+public class LiveTrackReader implements Closeable {
+    /** How often a file is checked for new data once everything in it has been read */
+    public static final long POLL_MILLIS = 1000;
+
+    /* How many more times a file is checked for the activity message once the session has been read */
+    private static final int AFTER_SESSION_POLLS = 5;
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Receives the batches read from a recording.
+     */
+    public interface Listener {
+        /**
+         * Called on the reader's thread with the messages decoded from each
+         * piece of data. Track.append must be called on the thread which
+         * draws the track, so a listener driving a view should hand the batch
+         * to the event dispatch thread.
+         * @param batch The messages decoded since the last batch, never empty.
+         */
+        void onBatch(Track.Batch batch);
+    }
+
+    private final Listener              listener;
+    private final boolean               follow;
+    private final ServerSocketChannel   server;
+    private volatile ReadableByteChannel channel;
+    private volatile boolean            closed;
+    private final Thread                thread;
+
+    private Track.Batch batch = new Track.Batch();
+    private boolean     sessionRead;
+    private boolean     finished;
+
+    private LiveTrackReader(String name, ReadableByteChannel channel, ServerSocketChannel server, Listener listener) {
+        this.channel = channel;
+        this.server = server;
+        this.follow = server == null;
+        this.listener = listener;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts reading a .FIT file which is still being written. The file is
+     * read to its end, and then checked for more data every POLL_MILLIS until
+     * the activity message, which follows the session, has been recorded or
+     * the reader is closed. If the session is recorded without an activity
+     * message, the file is checked a few more times and then left.
+     * @param file The .FIT file.
+     * @param listener The listener to receive the batches read.
+     * @return The running reader.
+     * @throws IOException If the file could not be opened.
+     */
+    public static LiveTrackReader follow(File file, Listener listener) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        LiveTrackReader reader = new LiveTrackReader("LiveTrack-" + file.getName(), channel, null, listener);
+        reader.thread.start();
+        return reader;
+    }
+
+    /**
+     * Starts listening on a local port for a sensor bridge, which is expected
+     * to connect and send a .FIT file as it is recorded. Only connections
+     * from this machine are accepted, and only one is read.
+     * @param port The port to listen on.
+     * @param listener The listener to receive the batches read.
+     * @return The running reader.
+     * @throws IOException If the port could not be opened.
+     */
+    public static LiveTrackReader listen(int port, Listener listener) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        LiveTrackReader reader = new LiveTrackReader("LiveTrack-" + port, null, server, listener);
+        reader.thread.start();
+        return reader;
+    }
+
+    private void run() {
+        try {
+            if (server != null) {
+                DebugLogger.info("Waiting for a live activity on port " + server.socket().getLocalPort());
+                channel = server.accept();
+                server.close();
+            }
+            FitDecoder.Incremental decoder = new FitDecoder.Incremental(new Forwarder());
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            int pollsLeft = AFTER_SESSION_POLLS;
+            while (!closed && !finished) {
+                chunk.clear();
+                int n = channel.read(chunk);
+                if (n < 0) {
+                    if (!follow || (sessionRead && pollsLeft-- == 0)) break;
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                chunk.flip();
+                decoder.feed(chunk);
+                if (!batch.isEmpty()) {
+                    listener.onBatch(batch);
+                    batch = new Track.Batch();
+                }
+            }
+            DebugLogger.info("Live activity " + (finished || sessionRead ? "finished." : "ended."));
+        } catch (ClosedChannelException | InterruptedException e) {
+            /* Closed while waiting for data */
+        } catch (IOException e) {
+            DebugLogger.error("Could not read the live activity: " + e.getMessage());
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Stops reading. Batches already handed to the listener are unaffected.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            if (server != null) server.close();
+            ReadableByteChannel c = channel;
+            if (c != null) c.close();
+        } catch (IOException e) {
+            DebugLogger.error("Could not close the live activity: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes decoded messages on to the current batch, and notes when the
+     * session and then the activity message have been recorded, the last of
+     * which ends the activity.
+     */
+    private class Forwarder implements FitDecoder.Handler {
+        @Override
+        public void onRecord(long timeMillis, double lat, double lon, double alt, double speed, double distance) {
+            batch.onRecord(timeMillis, lat, lon, alt, speed, distance);
+        }
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            batch.onLap(startMillis, endMillis, timerTime, elapsedTime, distance);
+        }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            batch.onSession(distance, timerTime, elapsedTime, calories);
+            sessionRead = true;
+        }
+
+        @Override
+        public void onActivity(long localTimestampMillis) {
+            batch.onActivity(localTimestampMillis);
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * A size-bounded cache of downloaded map images on disk, keyed by strings
+ * which are safe to use as filenames.
+ * Images are evicted least recently used first once the total size of the
+ * cache goes over its limit. The order of use is kept in the files' modified
+ * times so that it survives between runs.
+ * @author Dan
+ */
+public class MapImageCache {
+    public static final String  DEFAULT_DIRECTORY = "resources/cache/maps";
+    public static final long    DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+    private static final String SUFFIX = ".png";
+
+    private final File  directory;
+    private final long  maxBytes;
+    private long        totalBytes;
+
+    /* Entry sizes by key, in order of least to most recently used */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    public MapImageCache() {
+        this(new File(DEFAULT_DIRECTORY), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor. Opens (or creates) a cache in the given directory.
+     * @param directory The directory holding the cached images.
+     * @param maxBytes The maximum total size of the cached images.
+     */
+    public MapImageCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+
+        /* Downloads which were cut off by the last run ending */
+        File[] partial = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        if (partial != null) for (File file : partial) file.delete();
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    /**
+     * Looks up a cached image and marks it as recently used.
+     * @param key The key of the image.
+     * @return The image file, or null if it is not in the cache.
+     */
+    public synchronized File get(String key) {
+        if (!entries.containsKey(key)) return null;
+        File file = fileFor(key);
+        if (!file.exists()) {
+            totalBytes -= entries.remove(key);
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            DebugLogger.debug("Could not touch cached image " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Creates an empty temporary file in the cache directory to download into.
+     * @return The temporary file.
+     * @throws IOException If the file could not be created.
+     */
+    public File createTempFile() throws IOException {
+        return Files.createTempFile(directory.toPath(), "map", ".tmp").toFile();
+    }
+
+    /**
+     * Adds a downloaded image to the cache, evicting old images if needed.
+     * @param key The key of the image.
+     * @param download A file holding the image, which is moved into the cache.
+     * @return The cached image file.
+     * @throws IOException If the file could not be moved into the cache.
+     */
+    public synchronized File put(String key, File download) throws IOException {
+        File file = fileFor(key);
+        Files.move(download.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Long old = entries.put(key, file.length());
+        if (old != null) totalBytes -= old;
+        totalBytes += file.length();
+        evict();
+        return file;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        /* Always keep the newest entry, even if it alone is over the limit */
+        while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (!fileFor(eldest.getKey()).delete()) {
+                DebugLogger.debug("Could not delete cached image " + eldest.getKey());
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+}
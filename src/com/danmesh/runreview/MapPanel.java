@@ -5,173 +5,485 @@ package com.danmesh.runreview;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Arrays;
-import java.net.URL;
-import javax.imageio.ImageIO;
 import javax.swing.JPanel;
-import net.studioblueplanet.logger.DebugLogger;
 
 /**
- * 
+ * A slippy map of a track, built from map tiles, optionally with a heatmap
+ * of a library of activities laid over it.
+ * The map can be dragged to pan and zoomed with the mouse wheel.
  * @author Dan
  */
 public class MapPanel extends JPanel {
     private static int width = 600;
     private static int height = 500;
-    
+
     private static final double MAP_PADDING = 0.05;
     private static final int    MARKER_RADIUS = 5;
-    
+
+    /** The largest track layer (in pixels per side) which covers the whole track */
+    private static final int    MAX_LAYER_SIZE = 4096;
+    private static final Color  TRACK_COLOR = Color.RED;
+    private static final Color  PLACEHOLDER_COLOR = new Color(229, 227, 223);
+    private static final String LOADING_TEXT = "Loading map...";
+
+    private static final Metrics.Timer PAINT_TIMER = Metrics.timer("map.paint");
+    private static final Metrics.Timer TILES_TIMER = Metrics.timer("map.tiles");
+    private static final Metrics.Timer LAYER_TIMER = Metrics.timer("map.trackLayer");
+    private static final Metrics.Timer RASTERISE_TIMER = Metrics.timer("map.trackLayer.rasterise");
+    private static final Metrics.Timer HEATMAP_TIMER = Metrics.timer("map.heatmap");
+
     private int         zoom = 15;
     private double[]    coordRanges = {0.0176145 * (width/600.0), 0.0311515 * (height/600.0)};
     private Point centrePoint;
-    
-    private Track track;
-    
-    private static String IMAGE_FILE = "resources/mapImage.png";
-    
+
+    /* Pixel coordinates of the centre of the panel at the current zoom */
+    private int centreX;
+    private int centreY;
+
+    private Track       track;
+    private Heatmap     heatmap;
+    private TileCache   tiles;
+
+    /* Shown instead of the loading text if there is nothing to draw because loading failed */
+    private String      error;
+
+    private BufferedImage   trackLayer;
+    private Track           trackLayerTrack;
+    private int             trackLayerZoom;
+    private int             trackLayerX;
+    private int             trackLayerY;
+
+    private int dragX;
+    private int dragY;
+
     public MapPanel() {
         this(null);
     }
-    
+
     /**
      * Constructor. Draws a map of the given track.
-     * @param trackToMap The track to be drawn.
+     * @param trackToMap The track to be drawn, or null to show the map as loading until setTrack is called.
      */
     public MapPanel(Track trackToMap) {
         super();
         this.setPreferredSize(new Dimension(width, height));
-        
-        if (trackToMap == null) return;
+        if (trackToMap != null) setTrack(trackToMap);
+    }
+
+    /**
+     * Shows a track on the map, centred and zoomed to fit. Must be called on
+     * the event dispatch thread. A track which is still being recorded may
+     * have no points yet, and is shown as loading until it has some.
+     * @param trackToMap The track to be drawn.
+     */
+    public void setTrack(Track trackToMap) {
         this.track = trackToMap;
         centrePoint = track.getCentrePoint();
-        setZoomLevel();
-        saveImage(getMapURL(centrePoint, zoom, width, height), IMAGE_FILE);
-    }
-    
-    // <editor-fold defaultstate="collapsed" desc="Map Image Methods"> 
-    
-    private void setZoomLevel() {
-        double latRange = track.worldCoordRange()[0] * (1 + MAP_PADDING);
-        double lonRange = track.worldCoordRange()[1] * (1 + MAP_PADDING);
+        zoom = fitZoom(track);
+        int[] centre = centrePoint.getPixelCoords(zoom);
+        centreX = centre[0];
+        centreY = centre[1];
+        showMap();
+    }
+
+    /**
+     * Lays a heatmap over the map. If there is no track the map is centred
+     * and zoomed to fit the heatmap. Must be called on the event dispatch thread.
+     * @param heatmap The heatmap to draw, or null to remove it.
+     */
+    public void setHeatmap(Heatmap heatmap) {
+        if (this.heatmap != null) this.heatmap.setListener(null);
+        this.heatmap = heatmap;
+        if (heatmap == null) {
+            repaint();
+            return;
+        }
+        heatmap.setListener((tileZoom, x, y) -> {
+            if (tileZoom == zoom) repaint();
+        });
+        double[] bounds = heatmap.getWorldBounds();
+        if (track == null && bounds != null) {
+            zoom = fitZoom(bounds[3] - bounds[1], bounds[2] - bounds[0]);
+            double scale = 1 << zoom;
+            centreX = (int) ((bounds[0] + bounds[2])/2*scale);
+            centreY = (int) ((bounds[1] + bounds[3])/2*scale);
+        }
+        showMap();
+    }
+
+    /**
+     * Shows that the track or heatmap could not be loaded, in place of the
+     * loading text. Must be called on the event dispatch thread.
+     * @param message The message to show.
+     */
+    public void setError(String message) {
+        this.error = message;
+        repaint();
+    }
+
+    private void showMap() {
+        if (tiles == null) {
+            tiles = new TileCache((tileZoom, x, y) -> {
+                if (tileZoom == zoom) repaint();
+            });
+
+            MouseAdapter mouse = new MapMouseListener();
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
+        }
+        tiles.setActiveZoom(zoom);
+        repaint();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Map Navigation Methods">
+
+    /**
+     * Finds the closest zoom level at which the whole of a track fits on the
+     * panel. This is the zoom the map first opens at, so a loader can prepare
+     * the track's projection for it in the background.
+     * @param track The track to fit.
+     * @return The zoom level.
+     */
+    static int fitZoom(Track track) {
+        return fitZoom(track.worldCoordRange()[0], track.worldCoordRange()[1]);
+    }
+
+    /**
+     * Finds the closest zoom level at which an area fits on the panel.
+     * @param latRange The height of the area in world coordinates.
+     * @param lonRange The width of the area in world coordinates.
+     * @return The zoom level.
+     */
+    private static int fitZoom(double latRange, double lonRange) {
+        latRange *= 1 + MAP_PADDING;
+        lonRange *= 1 + MAP_PADDING;
         int latZoom = (int) Math.floor(Math.log(height/latRange)/Math.log(2));
         int lonZoom = (int) Math.floor(Math.log(width/lonRange)/Math.log(2));
-        zoom = Math.min(latZoom, lonZoom);
-    }
-    
-    /**
-     * Forms the URL of a Google Static Map centred on a certain point with a
-     * specified zoom level and dimensions.
-     * Note: The dimensions of the resulting file are doubled as there is a 2x scale factor.
-     * @param centre The location of the centre of the map.
-     * @param zoom The zoom level.
-     * @param width Width of the resulting image.
-     * @param height Height of the resulting image.
-     * @return A string representation of the map's URL.
-     */
-    private String getMapURL(Point centre, int zoom, int width, int height) {
-        return "https://maps.googleapis.com/maps/api/staticmap?"
-                + "center=" + centre.lat + "," + centre.lon +  "&"
-                + "zoom=" + zoom + "&"
-                + "size=" + width + "x" + height + "&"
-                + "scale=2&"
-                + "maptype=roadmap";
-    }
-    
-    /**
-     * Downloads an image at the given URL and stores it as a certain file.
-     * Written by Chad Darby at: http://www.luv2code.com/2015/05/15/how-to-add-google-maps-to-java-swing-gui/
-     * @param imageURL URL of the image to be downloaded.
-     * @param file Filename of the downloaded image.
-     * @return True if successfully downloaded, false if an error occurred.
-     */
-    private boolean saveImage(String imageURL, String file) {
-        try {
-            URL url = new URL(imageURL);
-            InputStream is = url.openStream();
-            OutputStream os = new FileOutputStream(file);
-            byte[] b = new byte[2048];
-            int length;
-            while ((length = is.read(b)) != -1) {
-                os.write(b, 0, length);
+        return Math.max(TileCache.MIN_ZOOM, Math.min(TileCache.MAX_ZOOM, Math.min(latZoom, lonZoom)));
+    }
+
+    /**
+     * Changes the zoom level, keeping the map still under a point on the panel.
+     * @param newZoom The new zoom level.
+     * @param anchorX X position on the panel which should stay still.
+     * @param anchorY Y position on the panel which should stay still.
+     */
+    public void zoomTo(int newZoom, int anchorX, int anchorY) {
+        newZoom = Math.max(TileCache.MIN_ZOOM, Math.min(TileCache.MAX_ZOOM, newZoom));
+        if (newZoom == zoom) return;
+
+        double scale = Math.pow(2, newZoom - zoom);
+        int offsetX = anchorX - getWidth()/2;
+        int offsetY = anchorY - getHeight()/2;
+        centreX = (int) Math.round((centreX + offsetX)*scale) - offsetX;
+        centreY = (int) Math.round((centreY + offsetY)*scale) - offsetY;
+        zoom = newZoom;
+        tiles.setActiveZoom(zoom);
+        clampCentre();
+        repaint();
+    }
+
+    /**
+     * Moves the map by a number of pixels.
+     * @param dx Distance to move the map to the right.
+     * @param dy Distance to move the map down.
+     */
+    public void panBy(int dx, int dy) {
+        centreX -= dx;
+        centreY -= dy;
+        clampCentre();
+        repaint();
+    }
+
+    private void clampCentre() {
+        int worldSize = TileCache.TILE_SIZE << zoom;
+        centreX = Math.max(0, Math.min(worldSize, centreX));
+        centreY = Math.max(0, Math.min(worldSize, centreY));
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Map Tile Methods">
+
+    /**
+     * Draws the tiles which are on screen, and queues their neighbours to be
+     * fetched so that they are ready when the map is panned.
+     */
+    private void drawTiles(Graphics g) {
+        int left = centreX - getWidth()/2;
+        int top = centreY - getHeight()/2;
+        int size = TileCache.TILE_SIZE;
+        int x0 = Math.floorDiv(left, size);
+        int y0 = Math.floorDiv(top, size);
+        int x1 = Math.floorDiv(left + getWidth() - 1, size);
+        int y1 = Math.floorDiv(top + getHeight() - 1, size);
+
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                BufferedImage tile = tiles.getTile(zoom, x, y);
+                if (tile != null) {
+                    g.drawImage(tile, x*size - left, y*size - top, null);
+                } else {
+                    g.setColor(PLACEHOLDER_COLOR);
+                    g.fillRect(x*size - left, y*size - top, size, size);
+                }
             }
-            is.close();
-            os.close();
-        } catch (IOException e) {
-            DebugLogger.error("Could not download image at URL=" + imageURL);
-            return false;
-        }
-        
-        return true;
-    }
-    
-    private boolean drawBackgroundImage(Graphics g, String imageFile) {
-        try {
-            BufferedImage image = ImageIO.read(new File(imageFile));
-            g.drawImage(image, 0, 0, width, height, this);
-        } catch (IOException e) {
-            DebugLogger.error("Could not draw the background image from imageFile=" + imageFile);
-            return false;
-        }
-        return true;
-    }
-    
+        }
+
+        for (int x = x0 - 1; x <= x1 + 1; x++) {
+            tiles.prefetch(zoom, x, y0 - 1);
+            tiles.prefetch(zoom, x, y1 + 1);
+        }
+        for (int y = y0; y <= y1; y++) {
+            tiles.prefetch(zoom, x0 - 1, y);
+            tiles.prefetch(zoom, x1 + 1, y);
+        }
+    }
+
+    /**
+     * Draws the heatmap tiles which are on screen and have been rendered.
+     * The rest are rendered in the background, and the panel is repainted
+     * as they arrive.
+     */
+    private void drawHeatmap(Graphics g) {
+        int left = centreX - getWidth()/2;
+        int top = centreY - getHeight()/2;
+        int size = TileCache.TILE_SIZE;
+        int x0 = Math.floorDiv(left, size);
+        int y0 = Math.floorDiv(top, size);
+        int x1 = Math.floorDiv(left + getWidth() - 1, size);
+        int y1 = Math.floorDiv(top + getHeight() - 1, size);
+
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                BufferedImage tile = heatmap.getTile(zoom, x, y);
+                if (tile != null) g.drawImage(tile, x*size - left, y*size - top, null);
+            }
+        }
+    }
+
     // </editor-fold>
-    
-    // <editor-fold defaultstate="collapsed" desc="Track Graphics & Drawing Methods"> 
-    
-    private int[] getPointXY(Point p) {
-        int x = (width/2)  + (p.getPixelCoords(zoom)[0] - centrePoint.getPixelCoords(zoom)[0]);
-        int y = (height/2) + (p.getPixelCoords(zoom)[1] - centrePoint.getPixelCoords(zoom)[1]);
-        return new int[]{x, y};
-    }
-    
-    private void drawMarker(Graphics g, int x, int y, Color color) {
+
+    // <editor-fold defaultstate="collapsed" desc="Track Graphics & Drawing Methods">
+
+    private static void drawMarker(Graphics g, int x, int y, Color color) {
         g.setColor(color);
         x -= MARKER_RADIUS;
         y-= MARKER_RADIUS;
         g.fillOval(x, y, MARKER_RADIUS, MARKER_RADIUS);
     }
-    
-    private void drawMarker(Graphics g, Point point, Color color) {
-        int[] xy = getPointXY(point);
-        drawMarker(g, xy[0], xy[1], color);
+
+    /**
+     * Draws the track using the cached pixel coordinates for the current zoom,
+     * simplified to the points which can be seen at that zoom. The graphics
+     * are translated so that the coordinates can be drawn as they are, without
+     * creating anything per point.
+     * @param projection The projection of the track to draw.
+     * @param zoom The zoom level to draw at.
+     * @param originX X pixel coordinate drawn at the left of the graphics.
+     * @param originY Y pixel coordinate drawn at the top of the graphics.
+     */
+    static void drawTrack(Graphics g, TrackProjection projection, int zoom, Color color, int originX, int originY) {
+        drawRoute(g, projection, zoom, color, originX, originY);
+        drawEndMarker(g, projection, zoom, originX, originY);
     }
-    
-    private void drawLine(Graphics g, int x1, int y1, int x2, int y2, Color color) {
+
+    /**
+     * Draws the line of the track and its start marker, as drawTrack does.
+     */
+    private static void drawRoute(Graphics g, TrackProjection projection, int zoom, Color color, int originX, int originY) {
+        int[][] xy = projection.getSimplifiedPixelCoords(zoom);
+        int n = xy[0].length;
+        if (n == 0) return;
+
+        g.translate(-originX, -originY);
         g.setColor(color);
-        g.drawLine(x1, y1, x2, y2);
+        g.drawPolyline(xy[0], xy[1], n);
+        drawMarker(g, xy[0][0], xy[1][0], Color.GREEN);
+        g.translate(originX, originY);
     }
-    
-    private void drawLine(Graphics g, TrackPoint point1, TrackPoint point2, Color color) {
-        int[] xy1 = getPointXY(point1);
-        int[] xy2 = getPointXY(point2);
-        drawLine(g, xy1[0], xy1[1], xy2[0], xy2[1], color);
+
+    /**
+     * Draws the marker at the end of the track. It is kept off the track
+     * layer, so that the end of a track which is still being recorded can
+     * move on without the layer being redrawn.
+     */
+    private static void drawEndMarker(Graphics g, TrackProjection projection, int zoom, int originX, int originY) {
+        int n = projection.size();
+        if (n == 0) return;
+        int[][] end = projection.getPixelCoords(zoom, n - 1, n);
+        drawMarker(g, end[0][0] - originX, end[1][0] - originY, Color.RED);
+    }
+
+    /**
+     * Draws the points which have been added to the end of a track which is
+     * still being recorded. The new end of the line is drawn straight onto
+     * the track layer and only the area it covers is repainted, so keeping up
+     * with a recording costs nothing like redrawing the whole track. Must be
+     * called on the event dispatch thread, after Track.append.
+     * @param from The index of the first new point, as returned by Track.append.
+     */
+    public void trackExtended(int from) {
+        if (track == null) return;
+        TrackProjection projection = track.getProjection();
+        int n = projection.size();
+        if (from >= n) return;
+        if (from == 0) {
+            /* The first points have arrived, so the map can be centred on them */
+            setTrack(track);
+            return;
+        }
+
+        int[][] tail = projection.getPixelCoords(zoom, from - 1, n);
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < tail[0].length; i++) {
+            minX = Math.min(minX, tail[0][i]);
+            minY = Math.min(minY, tail[1][i]);
+            maxX = Math.max(maxX, tail[0][i]);
+            maxY = Math.max(maxY, tail[1][i]);
+        }
+        minX -= MARKER_RADIUS;
+        minY -= MARKER_RADIUS;
+        maxX += MARKER_RADIUS;
+        maxY += MARKER_RADIUS;
+
+        /* Any of the tail which falls off the layer is clipped, but the layer
+           is only used while it covers the panel, and is redrawn whole otherwise */
+        if (trackLayer != null && trackLayerTrack == track && trackLayerZoom == zoom) {
+            Graphics2D lg = trackLayer.createGraphics();
+            lg.translate(-trackLayerX, -trackLayerY);
+            lg.setColor(TRACK_COLOR);
+            lg.drawPolyline(tail[0], tail[1], tail[0].length);
+            lg.dispose();
+        }
+        int left = centreX - getWidth()/2;
+        int top = centreY - getHeight()/2;
+        repaint(minX - left, minY - top, maxX - minX + 1, maxY - minY + 1);
     }
-    
-    private void drawTrack(Graphics g, Color color) {
-        for (int i = 0; i < track.points.size()-1; i++) {
-            drawLine(g, track.points.get(i), track.points.get(i+1), color);//TRACE
+
+    /**
+     * Draws the track from its cached layer. The layer covers the whole track
+     * if it fits, so that panning never redraws it. Otherwise it covers the
+     * area around the panel, and is rasterised again once the panel moves
+     * off it or the zoom or track change.
+     */
+    private void drawTrackLayer(Graphics g) {
+        int left = centreX - getWidth()/2;
+        int top = centreY - getHeight()/2;
+        boolean valid = trackLayer != null && trackLayerTrack == track && trackLayerZoom == zoom
+                && left >= trackLayerX && top >= trackLayerY
+                && left + getWidth() <= trackLayerX + trackLayer.getWidth()
+                && top + getHeight() <= trackLayerY + trackLayer.getHeight();
+        if (!valid) {
+            int[] bounds = track.getProjection().getPixelBounds(zoom);
+            int layerX, layerY, layerWidth, layerHeight;
+            if (bounds[2] - bounds[0] + 2*getWidth() <= MAX_LAYER_SIZE
+                    && bounds[3] - bounds[1] + 2*getHeight() <= MAX_LAYER_SIZE) {
+                layerX = Math.min(left, bounds[0] - MARKER_RADIUS);
+                layerY = Math.min(top, bounds[1] - MARKER_RADIUS);
+                layerWidth = Math.max(left + getWidth(), bounds[2] + MARKER_RADIUS) - layerX;
+                layerHeight = Math.max(top + getHeight(), bounds[3] + MARKER_RADIUS) - layerY;
+            } else {
+                layerX = left - getWidth();
+                layerY = top - getHeight();
+                layerWidth = 3*getWidth();
+                layerHeight = 3*getHeight();
+            }
+
+            long start = RASTERISE_TIMER.start();
+            BufferedImage layer = createLayer(layerWidth, layerHeight, Transparency.TRANSLUCENT);
+            Graphics2D lg = layer.createGraphics();
+            drawRoute(lg, track.getProjection(), zoom, TRACK_COLOR, layerX, layerY);
+            lg.dispose();
+            trackLayer = layer;
+            trackLayerTrack = track;
+            trackLayerZoom = zoom;
+            trackLayerX = layerX;
+            trackLayerY = layerY;
+            RASTERISE_TIMER.stop(start);
         }
-        drawMarker(g, track.points.get(0), Color.GREEN);
-        drawMarker(g, track.points.get(track.points.size() - 1), Color.RED);
+        g.drawImage(trackLayer, trackLayerX - left, trackLayerY - top, null);
+        drawEndMarker(g, track.getProjection(), zoom, left, top);
     }
-    
-    // </editor-fold> 
-    
+
+    /**
+     * Creates an image in a format compatible with the screen, so that
+     * drawing it onto the panel is a straight copy.
+     * @param transparency The transparency required, from java.awt.Transparency.
+     * @return A new, empty image.
+     */
+    private BufferedImage createLayer(int layerWidth, int layerHeight, int transparency) {
+        layerWidth = Math.max(1, layerWidth);
+        layerHeight = Math.max(1, layerHeight);
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null) return gc.createCompatibleImage(layerWidth, layerHeight, transparency);
+        int type = transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE;
+        return new BufferedImage(layerWidth, layerHeight, type);
+    }
+
+    // </editor-fold>
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
-        if (track == null) return;
-        drawBackgroundImage(g, IMAGE_FILE);
-        drawTrack(g, Color.RED);
+        if (track == null ? heatmap == null : track.getPoints().isEmpty()) {
+            g.setColor(PLACEHOLDER_COLOR);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            g.setColor(Color.GRAY);
+            String text = error != null ? error : LOADING_TEXT;
+            int textWidth = g.getFontMetrics().stringWidth(text);
+            g.drawString(text, (getWidth() - textWidth)/2, getHeight()/2);
+            return;
+        }
+        long start = PAINT_TIMER.start();
+        long phase = TILES_TIMER.start();
+        drawTiles(g);
+        TILES_TIMER.stop(phase);
+        if (heatmap != null) {
+            phase = HEATMAP_TIMER.start();
+            drawHeatmap(g);
+            HEATMAP_TIMER.stop(phase);
+        }
+        if (track != null) {
+            phase = LAYER_TIMER.start();
+            drawTrackLayer(g);
+            LAYER_TIMER.stop(phase);
+        }
+        PAINT_TIMER.stop(start);
+    }
+
+    /**
+     * Pans the map when it is dragged, and zooms it with the mouse wheel.
+     */
+    private class MapMouseListener extends MouseAdapter {
+        @Override
+        public void mousePressed(MouseEvent e) {
+            dragX = e.getX();
+            dragY = e.getY();
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            panBy(e.getX() - dragX, e.getY() - dragY);
+            dragX = e.getX();
+            dragY = e.getY();
+        }
+
+        @Override
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            zoomTo(zoom - e.getWheelRotation(), e.getX(), e.getY());
+        }
     }
-    
-    
 }
@@ -0,0 +1,290 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * An in-process registry of counters and timers on the hot paths, such as
+ * decoding a track, fetching map tiles and painting the map.
+ * Recording never takes a lock: counters are LongAdders, and timers record
+ * into a histogram of atomic buckets on a log-linear scale (each power of two
+ * split into eight), which keeps every percentile within 12.5%. Metrics are
+ * created once, held in static fields where they are used, and left on.
+ * The registry is published over JMX and can also write a summary to the log
+ * periodically.
+ * @author Dan
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "com.danmesh.runreview:type=Metrics";
+
+    private static final Metrics REGISTRY = new Metrics();
+
+    private final Map<String, Counter>  counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer>    timers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService    logger;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(REGISTRY, new ObjectName(OBJECT_NAME));
+        } catch (JMException | RuntimeException e) {
+            DebugLogger.error("Could not publish the metrics over JMX: " + e);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Metrics getRegistry() {
+        return REGISTRY;
+    }
+
+    /**
+     * Returns the counter with a name, creating it if needed.
+     * @param name The name of the counter, e.g. "tiles.memory.hit".
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        return REGISTRY.counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * Returns the timer with a name, creating it if needed.
+     * @param name The name of the timer, e.g. "track.decode".
+     * @return The timer.
+     */
+    public static Timer timer(String name) {
+        return REGISTRY.timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Metric Types">
+    /**
+     * A count of events.
+     */
+    public static class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        void reset() {
+            count.reset();
+        }
+    }
+
+    /**
+     * A histogram of the durations of an operation.
+     * Time an operation with:
+     * <pre>
+     * long start = timer.start();
+     * ...
+     * timer.stop(start);
+     * </pre>
+     */
+    public static class Timer {
+        /* Durations below 2^LINEAR_BITS ns get a bucket each; above that each power of two gets SUB_BUCKETS */
+        private static final int LINEAR_BITS = 4;
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int NUM_BUCKETS = (1 << LINEAR_BITS) + (63 - LINEAR_BITS)*SUB_BUCKETS;
+
+        private final AtomicLongArray   buckets = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder         count = new LongAdder();
+        private final LongAdder         total = new LongAdder();
+        private final AtomicLong        max = new AtomicLong();
+
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the time since an operation started.
+         * @param start The value returned by start() when the operation began.
+         */
+        public void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Records the duration of an operation.
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            total.add(nanos);
+            if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < (1 << LINEAR_BITS)) return (int) nanos;
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (1 << LINEAR_BITS) + (exponent - LINEAR_BITS)*SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return The middle of the range of durations that fall in a bucket, in nanoseconds.
+         */
+        private static double bucketValue(int bucket) {
+            if (bucket < (1 << LINEAR_BITS)) return bucket;
+            int exponent = (bucket - (1 << LINEAR_BITS))/SUB_BUCKETS + LINEAR_BITS;
+            int sub = (bucket - (1 << LINEAR_BITS)) % SUB_BUCKETS;
+            double width = Math.pow(2, exponent - SUB_BITS);
+            return Math.pow(2, exponent) + (sub + 0.5)*width;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum()/(n*1e6);
+        }
+
+        public double getMaxMillis() {
+            return max.get()/1e6;
+        }
+
+        /**
+         * Returns a percentile of the recorded durations.
+         * @param percentile The percentile, from 0 to 100.
+         * @return The duration in milliseconds, or 0 if nothing has been recorded.
+         */
+        public double getPercentileMillis(double percentile) {
+            long n = 0;
+            long[] snapshot = new long[NUM_BUCKETS];
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                snapshot[b] = buckets.get(b);
+                n += snapshot[b];
+            }
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(percentile/100*n);
+            long seen = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                seen += snapshot[b];
+                if (seen >= rank && snapshot[b] > 0) return Math.min(bucketValue(b), max.get())/1e6;
+            }
+            return getMaxMillis();
+        }
+
+        void reset() {
+            for (int b = 0; b < NUM_BUCKETS; b++) buckets.set(b, 0);
+            count.reset();
+            total.reset();
+            max.set(0);
+        }
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Logging">
+    /**
+     * Writes a summary of the metrics to the log periodically, on a daemon
+     * thread. Calling this again changes the period.
+     * @param periodSeconds Seconds between summaries.
+     */
+    public synchronized void startLogging(long periodSeconds) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> DebugLogger.info(getSummary()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopLogging() {
+        if (logger != null) logger.shutdownNow();
+        logger = null;
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="MXBean Methods">
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getTimerCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.getCount()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerMeanMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.getMeanMillis()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerP50Millis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.getPercentileMillis(50)));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerP99Millis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.getPercentileMillis(99)));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTimerMaxMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        timers.forEach((name, timer) -> values.put(name, timer.getMaxMillis()));
+        return values;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("Metrics:");
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            sb.append(String.format("%n  %-28s %10d", entry.getKey(), entry.getValue()));
+        }
+        for (String name : new TreeMap<>(timers).keySet()) {
+            Timer timer = timers.get(name);
+            if (timer.getCount() == 0) continue;
+            sb.append(String.format("%n  %-28s %10d calls  mean %9.3f  p50 %9.3f  p99 %9.3f  max %9.3f ms", name,
+                    timer.getCount(), timer.getMeanMillis(), timer.getPercentileMillis(50),
+                    timer.getPercentileMillis(99), timer.getMaxMillis()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        counters.values().forEach(Counter::reset);
+        timers.values().forEach(Timer::reset);
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,34 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Map;
+
+/**
+ * The management interface of the Metrics registry, published over JMX as
+ * com.danmesh.runreview:type=Metrics. Each map is keyed by metric name.
+ * @author Dan
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getTimerCounts();
+
+    Map<String, Double> getTimerMeanMillis();
+
+    Map<String, Double> getTimerP50Millis();
+
+    Map<String, Double> getTimerP99Millis();
+
+    Map<String, Double> getTimerMaxMillis();
+
+    /**
+     * @return The summary of every metric that is written to the log.
+     */
+    String getSummary();
+
+    /**
+     * Clears every counter and timer.
+     */
+    void reset();
+}
@@ -0,0 +1,117 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * Rejects GPS jumps and altitude spikes. A point which could only be reached
+ * from the last good point faster than a runner can move is dropped. A point
+ * whose altitude changes faster than anyone can climb keeps its position but
+ * takes the altitude of the last good point. If several points in a row would
+ * be dropped, the track is taken to have really moved (e.g. once the watch
+ * gets a better fix) and the run is kept. The first good point is the first
+ * which agrees with the point after it, so fixes taken before the watch has
+ * locked on are dropped rather than trusted.
+ * Points are compacted in place, so no new columns are made.
+ * @author Dan
+ */
+public class OutlierFilter implements PointFilter {
+    /** Faster than any runner, in meters per second */
+    public static final double DEFAULT_MAX_SPEED = 12;
+    /** Faster than any climb on foot, in meters per second */
+    public static final double DEFAULT_MAX_CLIMB = 5;
+
+    /* The number of points in a row which may be dropped before the jump is accepted */
+    private static final int MAX_REJECTED = 5;
+
+    private final double maxSpeed;
+    private final double maxClimb;
+
+    private int numRejected;
+
+    public OutlierFilter() {
+        this(DEFAULT_MAX_SPEED, DEFAULT_MAX_CLIMB);
+    }
+
+    /**
+     * Constructor. Creates a filter with given limits.
+     * @param maxSpeed The fastest believable speed over the ground, in meters per second.
+     * @param maxClimb The fastest believable rate of climb or descent, in meters per second.
+     */
+    public OutlierFilter(double maxSpeed, double maxClimb) {
+        this.maxSpeed = maxSpeed;
+        this.maxClimb = maxClimb;
+    }
+
+    @Override
+    public PointStore apply(PointStore points) {
+        int n = points.size();
+        if (n < 2) return points;
+        long[] time = points.timeColumn();
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        double[] alt = points.altColumn();
+        double[] speed = points.speedColumn();
+        double[] distance = points.distanceColumn();
+
+        /* A track covers too little of the earth for the scale of longitude to change much */
+        double yScale = RouteSegment.METERS_PER_DEGREE;
+        double xScale = yScale*Math.cos(Math.toRadians(lat[n/2]));
+
+        /* Start from the first point its successor agrees with, or from the first if none do */
+        int first = 0;
+        while (first < n - 1 && jumps(points, first, first + 1, xScale, yScale)) first++;
+        if (first == n - 1) first = 0;
+        time[0] = time[first];
+        lat[0] = lat[first];
+        lon[0] = lon[first];
+        alt[0] = alt[first];
+        speed[0] = speed[first];
+        distance[0] = distance[first];
+
+        int kept = 1;
+        int run = 0;
+        numRejected = first;
+        for (int i = first + 1; i < n; i++) {
+            int last = kept - 1;
+            double dt = Math.max(1, (time[i] - time[last])/1000.0);
+            if (jumps(points, last, i, xScale, yScale) && run < MAX_REJECTED) {
+                run++;
+                numRejected++;
+                continue;
+            }
+            run = 0;
+            time[kept] = time[i];
+            lat[kept] = lat[i];
+            lon[kept] = lon[i];
+            alt[kept] = Math.abs(alt[i] - alt[last]) > maxClimb*dt ? alt[last] : alt[i];
+            speed[kept] = speed[i];
+            distance[kept] = distance[i];
+            kept++;
+        }
+        return new PointStore(time, lat, lon, alt, speed, distance, kept);
+    }
+
+    /**
+     * Determines whether a point could only be reached from an earlier one
+     * faster than maxSpeed.
+     */
+    private boolean jumps(PointStore points, int from, int to, double xScale, double yScale) {
+        double dt = Math.max(1, (points.getTime(to) - points.getTime(from))/1000.0);
+        double dy = (points.getLat(to) - points.getLat(from))*yScale;
+        double dx = (points.getLon(to) - points.getLon(from))*xScale;
+        double reach = maxSpeed*dt;
+        return dx*dx + dy*dy > reach*reach;
+    }
+
+    @Override
+    public String getId() {
+        return "OutlierFilter(" + maxSpeed + "," + maxClimb + ")";
+    }
+
+    /**
+     * @return The number of points dropped by the last call to apply.
+     */
+    public int getNumRejected() {
+        return numRejected;
+    }
+}
@@ -21,10 +21,7 @@ public class Point {
      * @return 2D array of world coordinates in the form [x, y].
      */
     public double[] getWorldCoords() {
-        double siny = Math.sin(lat * Math.PI/180);
-        double y = 256 * (0.5 - (Math.log((1 + siny)/(1 - siny)) / (4 * Math.PI)));
-        double x = 256 * (0.5 + lon/360);
-        return new double[]{x, y};
+        return new double[]{worldX(lon), worldY(lat)};
     }
     
     /**
@@ -35,10 +32,47 @@ public class Point {
      * @return 2D array of pixel coordinates in the form [x, y].
      */
     public int[] getPixelCoords(int zoom) {
-        double[] wc = this.getWorldCoords();
-        int x = (int) (wc[0]*Math.pow(2, zoom));
-        int y = (int) (wc[1]*Math.pow(2, zoom));
-        return new int[]{x, y};
+        return getPixelCoords(lat, lon, zoom);
+    }
+    
+    /**
+     * Calculates the pixel coordinates of a raw latitude and longitude, so that
+     * points held in columns need not be wrapped in a Point first.
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @param zoom The zoom level of the map.
+     * @return 2D array of pixel coordinates in the form [x, y].
+     */
+    public static int[] getPixelCoords(double lat, double lon, int zoom) {
+        double scale = 1 << zoom;
+        return new int[]{(int) (worldX(lon)*scale), (int) (worldY(lat)*scale)};
+    }
+    
+    /**
+     * Calculates the x world coordinate of a longitude.
+     * @param lon Longitude in degrees.
+     * @return The x world coordinate, in the range [0, 256].
+     */
+    public static double worldX(double lon) {
+        return 256 * (0.5 + lon/360);
+    }
+    
+    /**
+     * Calculates the y world coordinate of a latitude.
+     * @param lat Latitude in degrees.
+     * @return The y world coordinate, in the range [0, 256].
+     */
+    public static double worldY(double lat) {
+        double siny = Math.sin(lat * Math.PI/180);
+        return 256 * (0.5 - (Math.log((1 + siny)/(1 - siny)) / (4 * Math.PI)));
+    }
+    
+    public double getLat() {
+        return lat;
+    }
+    
+    public double getLon() {
+        return lon;
     }
     
     @Override
@@ -0,0 +1,30 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * One stage of a PointPipeline, which cleans up the points of a track before
+ * the Track is built from them. A stage works on the store's columns in bulk
+ * and may reuse them for its result, so the store passed in must not be used
+ * afterwards.
+ * @author Dan
+ */
+public interface PointFilter {
+
+    /**
+     * Filters a track's points.
+     * @param points The points, in time order.
+     * @return The filtered points, which may share the columns of the store passed in.
+     */
+    PointStore apply(PointStore points);
+
+    /**
+     * Identifies the stage and its settings, e.g. to key cached tracks. Two
+     * stages with the same id must filter points in the same way, so a stage
+     * with settings should include them.
+     * @return The id of the stage.
+     */
+    default String getId() {
+        return getClass().getSimpleName();
+    }
+}
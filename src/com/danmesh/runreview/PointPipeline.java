@@ -0,0 +1,74 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of filters which the points of a track pass through between
+ * being decoded and the Track being built, e.g.
+ * <pre>
+ * new PointPipeline()
+ *         .then(new OutlierFilter())
+ *         .then(Resampler.everySeconds(1))
+ *         .then(new SavitzkyGolayFilter(5, SavitzkyGolayFilter.Column.ALT));
+ * </pre>
+ * @author Dan
+ */
+public class PointPipeline {
+    private static final Metrics.Timer PIPELINE_TIMER = Metrics.timer("track.pipeline");
+
+    private final List<PointFilter> stages = new ArrayList<>();
+
+    /**
+     * Returns the pipeline used for watch recordings: GPS jumps are dropped,
+     * the points are put onto a one second grid, and the altitude and speed
+     * are smoothed over eleven seconds.
+     * @return A new pipeline.
+     */
+    public static PointPipeline standard() {
+        return new PointPipeline()
+                .then(new OutlierFilter())
+                .then(Resampler.everySeconds(1))
+                .then(new SavitzkyGolayFilter(5, SavitzkyGolayFilter.Column.ALT, SavitzkyGolayFilter.Column.SPEED));
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline.
+     * @param stage The filter to add.
+     * @return This pipeline.
+     */
+    public PointPipeline then(PointFilter stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Identifies the pipeline by the ids of its stages in order, so that
+     * tracks cached through one pipeline are not served through another.
+     * @return The id of the pipeline.
+     */
+    public String getId() {
+        StringBuilder id = new StringBuilder();
+        for (PointFilter stage : stages) {
+            if (id.length() > 0) id.append(" > ");
+            id.append(stage.getId());
+        }
+        return id.toString();
+    }
+
+    /**
+     * Passes points through every stage in turn.
+     * @param points The decoded points, which must not be used afterwards.
+     * @return The filtered points.
+     */
+    public PointStore process(PointStore points) {
+        long start = PIPELINE_TIMER.start();
+        for (PointFilter stage : stages) {
+            points = stage.apply(points);
+        }
+        PIPELINE_TIMER.stop(start);
+        return points;
+    }
+}
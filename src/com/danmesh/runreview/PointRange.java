@@ -0,0 +1,70 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * A contiguous range of the points in a PointStore. The range refers to the
+ * store's columns rather than copying them.
+ * @author Dan
+ */
+public class PointRange {
+    private final PointStore    points;
+    private final int           start;
+    private final int           end;
+
+    /**
+     * Constructor. Creates a range of points.
+     * @param points The store holding the points.
+     * @param start Index of the first point in the range.
+     * @param end Index one past the last point in the range.
+     */
+    public PointRange(PointStore points, int start, int end) {
+        if (start < 0 || end > points.size() || start > end) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") of " + points.size() + " points");
+        }
+        this.points = points;
+        this.start = start;
+        this.end = end;
+    }
+
+    public PointStore getPoints() {
+        return points;
+    }
+
+    /**
+     * @return Index of the first point in the range.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return Index one past the last point in the range.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public int size() {
+        return end - start;
+    }
+
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * Returns a TrackPoint view of a point in the range.
+     * @param i Index of the point within the range.
+     * @return TrackPoint backed by the store.
+     */
+    public TrackPoint get(int i) {
+        if (i < 0 || i >= size()) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+        return points.get(start + i);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
@@ -0,0 +1,250 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import hirondelle.date4j.DateTime;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Columnar storage for the GPS points of a track.
+ * Each field is held in its own primitive array, indexed by point number, so
+ * that long tracks avoid a per-point object and can be scanned quickly.
+ * Points are expected to be added in time order, which makes the time column
+ * an index that can be binary searched.
+ * @author Dan
+ */
+public class PointStore {
+    static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[]   time;
+    private double[] lat;
+    private double[] lon;
+    private double[] alt;
+    private double[] speed;
+    private double[] distance;
+
+    private int size;
+
+    public PointStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor. Creates an empty store with room for a number of points.
+     * @param capacity The initial number of points the store can hold.
+     */
+    public PointStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        time     = new long[capacity];
+        lat      = new double[capacity];
+        lon      = new double[capacity];
+        alt      = new double[capacity];
+        speed    = new double[capacity];
+        distance = new double[capacity];
+    }
+
+    /**
+     * Constructor. Creates a store over existing columns, which are used
+     * directly rather than copied.
+     * @param size The number of points in the columns.
+     */
+    PointStore(long[] time, double[] lat, double[] lon, double[] alt, double[] speed, double[] distance, int size) {
+        this.time = time;
+        this.lat = lat;
+        this.lon = lon;
+        this.alt = alt;
+        this.speed = speed;
+        this.distance = distance;
+        this.size = size;
+    }
+
+    /**
+     * Appends a point to the end of the store.
+     * @param timeMillis Time of the point in milliseconds since the epoch (UTC).
+     * @param lat Latitude in degrees.
+     * @param lon Longitude in degrees.
+     * @param alt Altitude in meters.
+     * @param speed Speed in meters per second.
+     * @param distance Cumulative distance from the start in meters.
+     */
+    public void add(long timeMillis, double lat, double lon, double alt, double speed, double distance) {
+        if (size == time.length) grow();
+        this.time[size]     = timeMillis;
+        this.lat[size]      = lat;
+        this.lon[size]      = lon;
+        this.alt[size]      = alt;
+        this.speed[size]    = speed;
+        this.distance[size] = distance;
+        size++;
+    }
+
+    /**
+     * Appends every point of another store, column by column.
+     * @param other The points to append, which must follow this store's points in time.
+     */
+    public void addAll(PointStore other) {
+        int n = other.size;
+        while (size + n > time.length) grow();
+        System.arraycopy(other.time, 0, time, size, n);
+        System.arraycopy(other.lat, 0, lat, size, n);
+        System.arraycopy(other.lon, 0, lon, size, n);
+        System.arraycopy(other.alt, 0, alt, size, n);
+        System.arraycopy(other.speed, 0, speed, size, n);
+        System.arraycopy(other.distance, 0, distance, size, n);
+        size += n;
+    }
+
+    private void grow() {
+        int capacity = time.length + (time.length >> 1) + 1;
+        time     = Arrays.copyOf(time, capacity);
+        lat      = Arrays.copyOf(lat, capacity);
+        lon      = Arrays.copyOf(lon, capacity);
+        alt      = Arrays.copyOf(alt, capacity);
+        speed    = Arrays.copyOf(speed, capacity);
+        distance = Arrays.copyOf(distance, capacity);
+    }
+
+    /**
+     * Releases any unused capacity once all points have been added.
+     */
+    public void trim() {
+        if (size == time.length || size == 0) return;
+        time     = Arrays.copyOf(time, size);
+        lat      = Arrays.copyOf(lat, size);
+        lon      = Arrays.copyOf(lon, size);
+        alt      = Arrays.copyOf(alt, size);
+        speed    = Arrays.copyOf(speed, size);
+        distance = Arrays.copyOf(distance, size);
+    }
+
+    /**
+     * Returns a TrackPoint view of a single row of the store.
+     * @param i Index of the point.
+     * @return TrackPoint backed by this store.
+     */
+    public TrackPoint get(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        return new TrackPoint(this, i);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Column Accessors">
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTime(int i) {
+        return time[i];
+    }
+
+    public DateTime getTimestamp(int i) {
+        return DateTime.forInstant(time[i], UTC);
+    }
+
+    public double getLat(int i) {
+        return lat[i];
+    }
+
+    public double getLon(int i) {
+        return lon[i];
+    }
+
+    public double getAlt(int i) {
+        return alt[i];
+    }
+
+    public double getSpeed(int i) {
+        return speed[i];
+    }
+
+    public double getDistance(int i) {
+        return distance[i];
+    }
+
+    /**
+     * The raw columns below are shared, not copied. Only the first size()
+     * entries are valid and callers must not modify them.
+     */
+    long[] timeColumn() {
+        return time;
+    }
+
+    double[] latColumn() {
+        return lat;
+    }
+
+    double[] lonColumn() {
+        return lon;
+    }
+
+    double[] altColumn() {
+        return alt;
+    }
+
+    double[] speedColumn() {
+        return speed;
+    }
+
+    double[] distanceColumn() {
+        return distance;
+    }
+    //</editor-fold>
+
+    /**
+     * Determines whether a point lies within a Segment, comparing the raw
+     * epoch times rather than DateTime objects.
+     * @param i Index of the point.
+     * @param seg The Segment of interest.
+     * @return True if the point lies within the segment, false if not.
+     */
+    public boolean isInSegment(int i, Segment seg) {
+        return time[i] >= seg.getStartMillis() && time[i] <= seg.getEndMillis();
+    }
+
+    /**
+     * Finds the first point at or after a time.
+     * @param millis Time in milliseconds since the epoch (UTC).
+     * @return Index of the first point with a time at or after millis, or size() if there is none.
+     */
+    public int indexAtOrAfter(long millis) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (time[mid] < millis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the first point after a time.
+     * @param millis Time in milliseconds since the epoch (UTC).
+     * @return Index of the first point with a time after millis, or size() if there is none.
+     */
+    public int indexAfter(long millis) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (time[mid] <= millis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the range of points between two times, inclusive.
+     * @param startMillis Start time in milliseconds since the epoch (UTC).
+     * @param endMillis End time in milliseconds since the epoch (UTC).
+     * @return The (possibly empty) range of points.
+     */
+    public PointRange rangeBetween(long startMillis, long endMillis) {
+        int start = indexAtOrAfter(startMillis);
+        return new PointRange(this, start, Math.max(start, indexAfter(endMillis)));
+    }
+}
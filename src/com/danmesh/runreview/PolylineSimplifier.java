@@ -0,0 +1,119 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Arrays;
+
+/**
+ * Multi-resolution simplification of a polyline by the Douglas-Peucker method.
+ * Rather than simplifying once for a single tolerance, the significance of
+ * every vertex is found in one pass: a vertex survives simplification with
+ * tolerance t if and only if its significance is greater than t. Any level of
+ * detail can then be picked out with a single scan.
+ * @author Dan
+ */
+public class PolylineSimplifier {
+
+    private PolylineSimplifier() {
+    }
+
+    /**
+     * Calculates the significance of every vertex of a polyline.
+     * The end points are always kept, so they have infinite significance.
+     * @param x The x coordinates of the vertices.
+     * @param y The y coordinates of the vertices.
+     * @param n The number of vertices.
+     * @return Array of the significance of each vertex, in the units of the coordinates.
+     */
+    public static double[] significance(double[] x, double[] y, int n) {
+        double[] sig = new double[n];
+        significance(x, y, 0, n, sig);
+        return sig;
+    }
+
+    /**
+     * Calculates the significance of the vertices of one piece of a polyline,
+     * as if the piece were a polyline of its own, so that a growing line can
+     * be simplified a piece at a time. The end points of the piece are kept.
+     * @param x The x coordinates of the vertices.
+     * @param y The y coordinates of the vertices.
+     * @param from The index of the first vertex of the piece.
+     * @param to The index after the last vertex of the piece.
+     * @param sig Array to receive the significance of each vertex of the piece, at the same indices.
+     */
+    public static void significance(double[] x, double[] y, int from, int to, double[] sig) {
+        if (to <= from) return;
+        sig[from] = Double.POSITIVE_INFINITY;
+        sig[to-1] = Double.POSITIVE_INFINITY;
+
+        /* Explicit stack of (first, last) ranges and the significance of the vertex which split them */
+        int[] ranges = new int[64];
+        double[] parents = new double[32];
+        ranges[0] = from;
+        ranges[1] = to - 1;
+        parents[0] = Double.POSITIVE_INFINITY;
+        int top = 1;
+
+        while (top > 0) {
+            top--;
+            int first = ranges[2*top];
+            int last = ranges[2*top + 1];
+            double parent = parents[top];
+            if (last - first < 2) continue;
+
+            int split = -1;
+            double max = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distanceToSegment(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d > max) {
+                    max = d;
+                    split = i;
+                }
+            }
+            /* A vertex can only survive if the vertex which split its range does */
+            double s = Math.min(max, parent);
+            sig[split] = s;
+
+            if (top + 2 > parents.length) {
+                parents = Arrays.copyOf(parents, 2*parents.length);
+                ranges = Arrays.copyOf(ranges, 2*parents.length);
+            }
+            ranges[2*top] = first;
+            ranges[2*top + 1] = split;
+            parents[top++] = s;
+            ranges[2*top] = split;
+            ranges[2*top + 1] = last;
+            parents[top++] = s;
+        }
+    }
+
+    /**
+     * Picks out the vertices which survive simplification with a tolerance.
+     * @param sig The significance of each vertex.
+     * @param n The number of vertices.
+     * @param tolerance The tolerance, in the units of the coordinates.
+     * @return Array of the indices of the surviving vertices, in order.
+     */
+    public static int[] select(double[] sig, int n, double tolerance) {
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (sig[i] > tolerance) count++;
+        }
+        int[] kept = new int[count];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (sig[i] > tolerance) kept[j++] = i;
+        }
+        return kept;
+    }
+
+    private static double distanceToSegment(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSq = dx*dx + dy*dy;
+        double t = lengthSq == 0 ? 0 : ((px - ax)*dx + (py - ay)*dy) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - (ax + t*dx);
+        double ey = py - (ay + t*dy);
+        return Math.sqrt(ex*ex + ey*ey);
+    }
+}
@@ -0,0 +1,137 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * Statistics over any range of a track's points, answered in constant time.
+ * Prefix sums of moving time, ascent, descent and speed are built once over
+ * the whole track (distance is already cumulative), so the figures for a
+ * range are the difference of two entries rather than a rescan of the points.
+ * Ranges are given as inclusive point indices.
+ * @author Dan
+ */
+public class RangeStats {
+    /** Speeds at or below this (in m/s) count as stopped when summing moving time */
+    public static final double MOVING_SPEED = 0.5;
+
+    private final PointStore points;
+
+    private final double[] movingTime;
+    private final double[] ascent;
+    private final double[] descent;
+    private final double[] speedTime;
+
+    /**
+     * Constructor. Builds the prefix sums for a store of points.
+     * @param points The points of the track.
+     */
+    public RangeStats(PointStore points) {
+        this.points = points;
+        int n = points.size();
+        movingTime = new double[n];
+        ascent = new double[n];
+        descent = new double[n];
+        speedTime = new double[n];
+
+        long[] time = points.timeColumn();
+        double[] alt = points.altColumn();
+        double[] speed = points.speedColumn();
+        for (int i = 1; i < n; i++) {
+            double dt = (time[i] - time[i-1])/1000.0;
+            double climb = alt[i] - alt[i-1];
+            movingTime[i] = movingTime[i-1] + (speed[i] > MOVING_SPEED ? dt : 0);
+            ascent[i] = ascent[i-1] + Math.max(climb, 0);
+            descent[i] = descent[i-1] + Math.max(-climb, 0);
+            speedTime[i] = speedTime[i-1] + speed[i]*dt;
+        }
+    }
+
+    /**
+     * @return Distance in meters covered from point i to point j.
+     */
+    public double distance(int i, int j) {
+        return points.getDistance(j) - points.getDistance(i);
+    }
+
+    /**
+     * @return Time in seconds from point i to point j, including stops.
+     */
+    public double duration(int i, int j) {
+        return (points.getTime(j) - points.getTime(i))/1000.0;
+    }
+
+    /**
+     * @return Time in seconds spent moving from point i to point j.
+     */
+    public double movingTime(int i, int j) {
+        return movingTime[j] - movingTime[i];
+    }
+
+    /**
+     * @return Total climb in meters from point i to point j.
+     */
+    public double ascent(int i, int j) {
+        return ascent[j] - ascent[i];
+    }
+
+    /**
+     * @return Total descent in meters from point i to point j.
+     */
+    public double descent(int i, int j) {
+        return descent[j] - descent[i];
+    }
+
+    /**
+     * @return Average speed in m/s from point i to point j, over the time spent moving.
+     */
+    public double averageSpeed(int i, int j) {
+        double t = movingTime(i, j);
+        return t > 0 ? distance(i, j)/t : 0;
+    }
+
+    /**
+     * @return Average of the recorded speed in m/s from point i to point j, weighted by time.
+     */
+    public double averageRecordedSpeed(int i, int j) {
+        double t = duration(i, j);
+        return t > 0 ? (speedTime[j] - speedTime[i])/t : 0;
+    }
+
+    /**
+     * @return Average pace in seconds per km from point i to point j, over the time spent moving.
+     */
+    public double averagePace(int i, int j) {
+        double d = distance(i, j);
+        return d > 0 ? 1000*movingTime(i, j)/d : 0;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="PointRange Methods">
+    public double distance(PointRange r) {
+        return r.isEmpty() ? 0 : distance(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double duration(PointRange r) {
+        return r.isEmpty() ? 0 : duration(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double movingTime(PointRange r) {
+        return r.isEmpty() ? 0 : movingTime(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double ascent(PointRange r) {
+        return r.isEmpty() ? 0 : ascent(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double descent(PointRange r) {
+        return r.isEmpty() ? 0 : descent(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double averageSpeed(PointRange r) {
+        return r.isEmpty() ? 0 : averageSpeed(r.getStart(), r.getEnd() - 1);
+    }
+
+    public double averagePace(PointRange r) {
+        return r.isEmpty() ? 0 : averagePace(r.getStart(), r.getEnd() - 1);
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,103 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * Resamples a track's points onto a fixed grid of time or distance, so that
+ * later stages and statistics see evenly spaced samples however irregularly
+ * the watch recorded them. Each column is interpolated linearly between the
+ * two points either side of each grid line. A gap between two recorded
+ * points of more than MAX_GAP_STEPS grid steps is taken to be a pause, or a
+ * loss of signal, and no grid points are made inside it: interpolating
+ * across it would invent points moving steadily while the runner stood
+ * still. The grid carries on from the far side, so the output is evenly
+ * spaced except across pauses.
+ * @author Dan
+ */
+public class Resampler implements PointFilter {
+    /* Gaps longer than this many grid steps are pauses, which are not filled in */
+    static final int MAX_GAP_STEPS = 5;
+
+    public enum Grid {
+        TIME, DISTANCE
+    }
+
+    private final Grid      grid;
+    private final double    step;
+
+    /**
+     * Constructor. Creates a resampler onto a grid.
+     * @param grid Whether the grid is of time or distance.
+     * @param step The grid spacing, in seconds or meters.
+     */
+    public Resampler(Grid grid, double step) {
+        if (!(step > 0)) throw new IllegalArgumentException("Step must be positive: " + step);
+        this.grid = grid;
+        this.step = step;
+    }
+
+    public static Resampler everySeconds(double seconds) {
+        return new Resampler(Grid.TIME, seconds);
+    }
+
+    public static Resampler everyMeters(double meters) {
+        return new Resampler(Grid.DISTANCE, meters);
+    }
+
+    @Override
+    public String getId() {
+        return "Resampler(" + grid + "," + step + ")";
+    }
+
+    @Override
+    public PointStore apply(PointStore points) {
+        int n = points.size();
+        if (n < 2) return points;
+        long[] time = points.timeColumn();
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        double[] alt = points.altColumn();
+        double[] speed = points.speedColumn();
+        double[] distance = points.distanceColumn();
+
+        /* The grid runs along time in seconds since the first point, or along distance */
+        double[] key = grid == Grid.TIME ? null : distance;
+        long t0 = time[0];
+        double first = grid == Grid.TIME ? 0 : distance[0];
+        double last = grid == Grid.TIME ? (time[n - 1] - t0)/1000.0 : distance[n - 1];
+        if (!(last > first)) return points;
+
+        int count = (int) Math.floor((last - first)/step) + 1;
+        long[]   outTime = new long[count];
+        double[] outLat = new double[count];
+        double[] outLon = new double[count];
+        double[] outAlt = new double[count];
+        double[] outSpeed = new double[count];
+        double[] outDistance = new double[count];
+
+        double maxGap = MAX_GAP_STEPS*step;
+        int m = 0;
+        int j = 0;
+        double keyJ = first;
+        double keyNext = key == null ? (time[1] - t0)/1000.0 : key[1];
+        for (int k = 0; k < count; k++) {
+            double target = first + k*step;
+            while (j < n - 2 && keyNext < target) {
+                j++;
+                keyJ = keyNext;
+                keyNext = key == null ? (time[j + 1] - t0)/1000.0 : key[j + 1];
+            }
+            if (keyNext - keyJ > maxGap && target > keyJ && target < keyNext) continue;
+            double f = keyNext > keyJ ? (target - keyJ)/(keyNext - keyJ) : 0;
+            f = Math.max(0, Math.min(1, f));
+            outTime[m] = time[j] + Math.round(f*(time[j + 1] - time[j]));
+            outLat[m] = lat[j] + f*(lat[j + 1] - lat[j]);
+            outLon[m] = lon[j] + f*(lon[j + 1] - lon[j]);
+            outAlt[m] = alt[j] + f*(alt[j + 1] - alt[j]);
+            outSpeed[m] = speed[j] + f*(speed[j + 1] - speed[j]);
+            outDistance[m] = distance[j] + f*(distance[j + 1] - distance[j]);
+            m++;
+        }
+        return new PointStore(outTime, outLat, outLon, outAlt, outSpeed, outDistance, m);
+    }
+}
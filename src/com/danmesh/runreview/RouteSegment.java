@@ -0,0 +1,150 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+/**
+ * A fixed piece of route, such as a climb or a lap of a park, whose
+ * traversals can be found in any activity.
+ * The route is stored as checkpoints spaced evenly along it, so routes drawn
+ * with few vertices and routes cut from a densely recorded track are matched
+ * in the same way.
+ * @author Dan
+ */
+public class RouteSegment {
+    /** Distance in meters between consecutive checkpoints along the route */
+    public static final double CHECKPOINT_SPACING = 20;
+
+    static final double METERS_PER_DEGREE = Math.PI*6371000/180;
+
+    private final String    name;
+    private final double[]  lat;
+    private final double[]  lon;
+    private final double    length;
+
+    private final double south, west, north, east;
+
+    /**
+     * Constructor. Creates a route from a polyline.
+     * @param name The name of the route.
+     * @param lat The latitudes of the vertices in degrees, in order along the route.
+     * @param lon The longitudes of the vertices in degrees.
+     */
+    public RouteSegment(String name, double[] lat, double[] lon) {
+        if (lat.length != lon.length) throw new IllegalArgumentException("Latitudes and longitudes differ in length");
+        if (lat.length < 2) throw new IllegalArgumentException("A route needs at least two vertices");
+        this.name = name;
+
+        double total = 0;
+        for (int i = 1; i < lat.length; i++) total += distance(lat[i-1], lon[i-1], lat[i], lon[i]);
+        this.length = total;
+
+        /* Place checkpoints evenly along the route, always keeping both ends */
+        int count = Math.max(2, (int)Math.ceil(total/CHECKPOINT_SPACING) + 1);
+        double spacing = total/(count - 1);
+        this.lat = new double[count];
+        this.lon = new double[count];
+        int v = 0;
+        double walked = 0;
+        for (int k = 0; k < count - 1; k++) {
+            double goal = k*spacing;
+            double leg = distance(lat[v], lon[v], lat[v+1], lon[v+1]);
+            while (v < lat.length - 2 && walked + leg < goal) {
+                walked += leg;
+                v++;
+                leg = distance(lat[v], lon[v], lat[v+1], lon[v+1]);
+            }
+            double t = leg > 0 ? Math.min(1, (goal - walked)/leg) : 0;
+            this.lat[k] = lat[v] + t*(lat[v+1] - lat[v]);
+            this.lon[k] = lon[v] + t*(lon[v+1] - lon[v]);
+        }
+        this.lat[count-1] = lat[lat.length-1];
+        this.lon[count-1] = lon[lon.length-1];
+
+        double s = Double.MAX_VALUE, w = Double.MAX_VALUE, n = -Double.MAX_VALUE, e = -Double.MAX_VALUE;
+        for (int k = 0; k < count; k++) {
+            s = Math.min(s, this.lat[k]);
+            n = Math.max(n, this.lat[k]);
+            w = Math.min(w, this.lon[k]);
+            e = Math.max(e, this.lon[k]);
+        }
+        south = s;
+        west = w;
+        north = n;
+        east = e;
+    }
+
+    /**
+     * Creates a route from part of a recorded track.
+     * @param name The name of the route.
+     * @param range The points of the track which make up the route.
+     * @return The route.
+     */
+    public static RouteSegment fromRange(String name, PointRange range) {
+        PointStore points = range.getPoints();
+        int n = range.size();
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            lat[i] = points.getLat(range.getStart() + i);
+            lon[i] = points.getLon(range.getStart() + i);
+        }
+        return new RouteSegment(name, lat, lon);
+    }
+
+    /**
+     * Returns the approximate distance between two nearby locations, on an
+     * equirectangular projection about their midpoint.
+     * @return The distance in meters.
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double y = (lat2 - lat1)*METERS_PER_DEGREE;
+        double x = (lon2 - lon1)*METERS_PER_DEGREE*Math.cos(Math.toRadians((lat1 + lat2)/2));
+        return Math.sqrt(x*x + y*y);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Getters">
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Length of the route in meters.
+     */
+    public double getLength() {
+        return length;
+    }
+
+    public int getNumCheckpoints() {
+        return lat.length;
+    }
+
+    public double getLat(int checkpoint) {
+        return lat[checkpoint];
+    }
+
+    public double getLon(int checkpoint) {
+        return lon[checkpoint];
+    }
+
+    public double getSouth() {
+        return south;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getEast() {
+        return east;
+    }
+    //</editor-fold>
+
+    @Override
+    public String toString() {
+        return "[" + name + " " + Math.round(length) + "m]";
+    }
+}
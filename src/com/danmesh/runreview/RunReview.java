@@ -2,8 +2,23 @@
 
 package com.danmesh.runreview;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import net.studioblueplanet.fitreader.FitReader;
 import net.studioblueplanet.fitreader.FitRecord;
 import net.studioblueplanet.fitreader.FitRecordRepository;
@@ -16,12 +31,47 @@ import net.studioblueplanet.logger.DebugLogger;
  */
 public class RunReview {
     
+    private static final String DEFAULT_FILE = "resources/testfile.FIT";
+    
+    private static final String USAGE = "Usage: RunReview [--smooth] [file.FIT]\n"
+            + "       RunReview --live file.FIT|port\n"
+            + "       RunReview [--smooth] --heatmap directory\n"
+            + "       RunReview --batch [--format json|csv] [--output file] [--threads n] file|directory...";
+    
+    private static final int OUTPUT_BUFFER = 1 << 16;
+    
     Scanner scan;
     Track track;
     
     public RunReview() {
+        this(DEFAULT_FILE);
+    }
+    
+    /**
+     * Constructor. Opens a view of the activity in the given .FIT file.
+     * The view opens as soon as the activity's summary has been read, and
+     * the track is loaded on a background thread and then shown in it.
+     * @param filename The filename of the .FIT file to review.
+     */
+    public RunReview(String filename) {
+        this(filename, null);
+    }
+    
+    /**
+     * Constructor. Opens a view of the activity in the given .FIT file, with
+     * its points passed through a pipeline of filters.
+     * @param filename The filename of the .FIT file to review.
+     * @param pipeline The filters to apply to the points, or null to show them as recorded.
+     */
+    public RunReview(String filename, PointPipeline pipeline) {
         DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_INFO);
-        track = new Track("resources/testfile.FIT");
+        ActivitySummary summary;
+        try {
+            summary = ActivitySummary.read(new File(filename));
+        } catch (IOException e) {
+            DebugLogger.error("Could not read the activity: " + e.getMessage());
+            return;
+        }
         
         /*
         scan = new Scanner(System.in);
@@ -41,7 +91,31 @@ public class RunReview {
             }
         }
         */
-        new TrackView(track);
+        TrackView view = onEventThread(() -> new TrackView(summary));
+        Thread loader = new Thread(() -> loadTrack(filename, pipeline, view), "TrackLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+    
+    /**
+     * Loads a track and hands it to a view. The projection for the map's
+     * first zoom is prepared here too, so the event dispatch thread only has
+     * to draw it.
+     */
+    private void loadTrack(String filename, PointPipeline pipeline, TrackView view) {
+        Track loaded;
+        try {
+            loaded = new TrackCache(new File(TrackCache.DEFAULT_DIRECTORY), pipeline).open(filename);
+            loaded.getProjection().getSimplifiedPixelCoords(MapPanel.fitZoom(loaded));
+        } catch (IOException | RuntimeException e) {
+            DebugLogger.error("Could not read the track: " + e.getMessage());
+            SwingUtilities.invokeLater(() -> view.loadFailed(e.getMessage()));
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            track = loaded;
+            view.setTrack(loaded);
+        });
     }
     
     private void showLapInfo() {
@@ -67,7 +141,10 @@ public class RunReview {
         return scan.nextInt();
     }
 
-    public static void main(String[] args) {        
+    public static void main(String[] args) {
+        String metricsPeriod = System.getProperty("runreview.metrics.log");
+        if (metricsPeriod != null) Metrics.getRegistry().startLogging(Long.parseLong(metricsPeriod));
+        
         /*
         DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
         Track track = new Track("resources/testfile.FIT");
@@ -88,7 +165,162 @@ public class RunReview {
         System.out.println(sesRecord.getIntValue(0, "total_calories"));
         System.out.println(pointsRecord.getIntValue(1000, "calories"));
         */
-        new RunReview();
+        /* Smoothing applies to the tracks opened from files, not to a live one which is still growing */
+        PointPipeline pipeline = null;
+        if (args.length > 0 && args[0].equals("--smooth")) {
+            pipeline = PointPipeline.standard();
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            if (pipeline != null) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            System.exit(runBatch(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--live")) {
+            if (args.length != 2 || pipeline != null) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            runLive(args[1]);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--heatmap")) {
+            if (args.length != 2) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            runHeatmap(new File(args[1]), pipeline);
+            return;
+        }
+        new RunReview(args.length > 0 ? args[0] : DEFAULT_FILE, pipeline);
+    }
+    
+    /**
+     * Opens a view of an activity which is still being recorded, and adds to
+     * it as more is read.
+     * @param source A .FIT file which is being written, or the number of a local port on which a sensor bridge will connect.
+     */
+    private static void runLive(String source) {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_INFO);
+        Track track = new Track();
+        TrackView view = onEventThread(() -> new TrackView(new ActivitySummary(new File(source), track)));
+        /* Queued before any batch, so the view has the track when trackExtended runs */
+        SwingUtilities.invokeLater(() -> view.setTrack(track));
+        LiveTrackReader.Listener listener = batch -> SwingUtilities.invokeLater(() -> view.trackExtended(track.append(batch)));
+        try {
+            if (source.matches("\\d+")) LiveTrackReader.listen(Integer.parseInt(source), listener);
+            else LiveTrackReader.follow(new File(source), listener);
+        } catch (IOException e) {
+            DebugLogger.error("Could not read the live activity: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Opens a heatmap of every activity in a directory. The map is shown as
+     * loading while the library is read.
+     * @param directory The directory of .FIT files.
+     * @param pipeline The filters to apply to each activity's points, or null to draw them as recorded.
+     */
+    private static void runHeatmap(File directory, PointPipeline pipeline) {
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_INFO);
+        MapPanel map = onEventThread(() -> {
+            MapPanel panel = new MapPanel();
+            JFrame frame = new JFrame("Heatmap - " + directory.getName());
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.add(panel);
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            frame.setVisible(true);
+            return panel;
+        });
+        
+        ActivityLibrary library = new ActivityLibrary(directory, new TrackCache(new File(TrackCache.DEFAULT_DIRECTORY), pipeline));
+        library.setRetainTracks(true);
+        Heatmap heatmap = new Heatmap();
+        try {
+            library.load(null);
+            heatmap.addAll(library, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            DebugLogger.error("Could not read the library: " + e.getMessage());
+            SwingUtilities.invokeLater(() -> map.setError("Could not read the library: " + e.getMessage()));
+            return;
+        }
+        SwingUtilities.invokeLater(() -> map.setHeatmap(heatmap));
+    }
+    
+    /**
+     * Creates Swing components on the event dispatch thread and waits for
+     * them, so that background threads can then hand them work with
+     * invokeLater.
+     * @param factory Creates and shows the components.
+     * @return The component created.
+     */
+    private static <T> T onEventThread(Supplier<T> factory) {
+        AtomicReference<T> created = new AtomicReference<>();
+        try {
+            SwingUtilities.invokeAndWait(() -> created.set(factory.get()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while opening the window", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not open the window", e.getCause());
+        }
+        return created.get();
+    }
+    
+    /**
+     * Writes a report of the given files and directories without opening any
+     * windows, so that it can be run on a machine with no display.
+     * @param args The batch options and the files and directories to report on.
+     * @return The exit status: 0 if every file was reported, 1 if some could not be read, 2 on bad usage or output failure.
+     */
+    private static int runBatch(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        DebugLogger.setDebugLevel(DebugLogger.DEBUGLEVEL_ERROR);
+        
+        BatchReport.Format format = BatchReport.Format.JSON;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--format":
+                        format = BatchReport.Format.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--output":
+                        output = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        paths.add(new File(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (paths.isEmpty()) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        
+        BatchReport report = new BatchReport(format, threads);
+        OutputStream stream = System.out;
+        try {
+            if (output != null) stream = new FileOutputStream(output);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), OUTPUT_BUFFER)) {
+                report.write(BatchReport.expand(paths), out);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write the report: " + e.getMessage());
+            return 2;
+        }
+        return report.getNumFailed() > 0 ? 1 : 0;
     }
 
 }
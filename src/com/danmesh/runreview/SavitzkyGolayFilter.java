@@ -0,0 +1,151 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Arrays;
+
+/**
+ * Smooths columns of a track's points with a Savitzky-Golay filter, which
+ * fits a quadratic to the samples around each point by least squares. Noise
+ * is removed without flattening the tops of hills and the peaks of efforts
+ * the way a moving average does. The fit is a fixed weighted sum of the
+ * window, so the weights are worked out once and each column is smoothed in
+ * one pass. The samples are assumed to be evenly spaced, so this is best run
+ * after a Resampler. The gaps a Resampler leaves at pauses, where the time
+ * between samples is more than Resampler.MAX_GAP_STEPS times the usual
+ * spacing, split the track into runs which are smoothed separately, so that
+ * values from before a stop are not blended with those after it. Near the
+ * ends of each run the window shrinks so that it stays centred.
+ * @author Dan
+ */
+public class SavitzkyGolayFilter implements PointFilter {
+
+    public enum Column {
+        LAT, LON, ALT, SPEED
+    }
+
+    private final int       halfWidth;
+    private final Column[]  columns;
+
+    /* Weights of the window for each half width up to halfWidth, from the centre outwards */
+    private final double[][] weights;
+
+    /**
+     * Constructor. Creates a filter over a window of 2*halfWidth + 1 samples.
+     * @param halfWidth The number of samples either side of each point in the window.
+     * @param columns The columns to smooth.
+     */
+    public SavitzkyGolayFilter(int halfWidth, Column... columns) {
+        if (halfWidth < 1) throw new IllegalArgumentException("Half width must be at least 1: " + halfWidth);
+        this.halfWidth = halfWidth;
+        this.columns = columns.clone();
+        weights = new double[halfWidth + 1][];
+        for (int m = 0; m <= halfWidth; m++) weights[m] = weights(m);
+    }
+
+    /**
+     * Returns the quadratic smoothing weights of a window of 2m + 1 samples.
+     * @return The weight of the sample i away from the centre, for i from 0 to m.
+     */
+    private static double[] weights(int m) {
+        double[] w = new double[m + 1];
+        if (m == 0) {
+            w[0] = 1;
+            return w;
+        }
+        double norm = (2.0*m - 1)*(2.0*m + 1)*(2.0*m + 3);
+        for (int i = 0; i <= m; i++) {
+            w[i] = (3.0*(3.0*m*m + 3*m - 1) - 15.0*i*i)/norm;
+        }
+        return w;
+    }
+
+    @Override
+    public String getId() {
+        return "SavitzkyGolayFilter(" + halfWidth + "," + Arrays.toString(columns) + ")";
+    }
+
+    @Override
+    public PointStore apply(PointStore points) {
+        int n = points.size();
+        if (n < 3) return points;
+        double[] smoothed = new double[n];
+        int[] runs = runs(points.timeColumn(), n);
+        for (Column column : columns) {
+            double[] values = column(points, column);
+            for (int r = 0; r + 1 < runs.length; r++) smooth(values, runs[r], runs[r + 1], smoothed);
+            if (column == Column.SPEED) {
+                /* A fit through a standstill can dip below zero */
+                for (int i = 0; i < n; i++) smoothed[i] = Math.max(0, smoothed[i]);
+            }
+            System.arraycopy(smoothed, 0, values, 0, n);
+        }
+        return points;
+    }
+
+    /**
+     * Smooths one run of samples.
+     * @param values The column.
+     * @param from The index of the first sample of the run.
+     * @param to The index after the last sample of the run.
+     * @param smoothed Array to receive the smoothed values, at the same indices.
+     */
+    private void smooth(double[] values, int from, int to, double[] smoothed) {
+        int m = Math.min(halfWidth, (to - from - 1)/2);
+        double[] w = weights[m];
+
+        /* The interior is summed one weight at a time across the whole run,
+           which the JIT can vectorise */
+        for (int i = from + m; i < to - m; i++) smoothed[i] = w[0]*values[i];
+        for (int k = 1; k <= m; k++) {
+            double wk = w[k];
+            for (int i = from + m; i < to - m; i++) smoothed[i] += wk*(values[i - k] + values[i + k]);
+        }
+        /* Near the ends the window shrinks to stay centred */
+        for (int i = 0; i < m; i++) {
+            smoothed[from + i] = shrunk(values, from + i, i);
+            smoothed[to - 1 - i] = shrunk(values, to - 1 - i, i);
+        }
+    }
+
+    /**
+     * Splits the samples into runs at the gaps left by a Resampler.
+     * @return The index of the first sample of each run, followed by n.
+     */
+    private static int[] runs(long[] time, int n) {
+        long[] spacing = new long[n - 1];
+        for (int i = 1; i < n; i++) spacing[i - 1] = time[i] - time[i - 1];
+        long[] sorted = spacing.clone();
+        Arrays.sort(sorted);
+        long maxSpacing = Resampler.MAX_GAP_STEPS*sorted[sorted.length/2];
+
+        int numRuns = 1;
+        for (long dt : spacing) if (dt > maxSpacing) numRuns++;
+        int[] runs = new int[numRuns + 1];
+        int r = 1;
+        for (int i = 1; i < n; i++) {
+            if (spacing[i - 1] > maxSpacing) runs[r++] = i;
+        }
+        runs[numRuns] = n;
+        return runs;
+    }
+
+    /**
+     * Smooths one point over a window of 2m + 1 samples.
+     */
+    private double shrunk(double[] values, int i, int m) {
+        double[] w = weights[m];
+        double sum = w[0]*values[i];
+        for (int k = 1; k <= m; k++) sum += w[k]*(values[i - k] + values[i + k]);
+        return sum;
+    }
+
+    private static double[] column(PointStore points, Column column) {
+        switch (column) {
+            case LAT:   return points.latColumn();
+            case LON:   return points.lonColumn();
+            case ALT:   return points.altColumn();
+            default:    return points.speedColumn();
+        }
+    }
+}
@@ -13,6 +13,8 @@ import java.util.ArrayList;
 public class Segment {
     private DateTime startTime;
     private DateTime endTime;
+    private long startMillis;
+    private long endMillis;
     
     private double timerTime;
     private double elapsedTime;
@@ -33,6 +35,8 @@ public class Segment {
     public Segment(DateTime startTime, DateTime endTime, double timerTime, double elapsedTime, double distance) {
         this.startTime = startTime;
         this.endTime = endTime;
+        this.startMillis = startTime.getMilliseconds(PointStore.UTC);
+        this.endMillis = endTime.getMilliseconds(PointStore.UTC);
         this.timerTime = timerTime;
         this.elapsedTime = elapsedTime;
         this.distance = distance;
@@ -63,6 +67,14 @@ public class Segment {
         return endTime;
     }
 
+    public long getStartMillis() {
+        return startMillis;
+    }
+    
+    public long getEndMillis() {
+        return endMillis;
+    }
+
     public double getTimerTime() {
         return timerTime;
     }
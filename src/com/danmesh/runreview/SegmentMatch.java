@@ -0,0 +1,46 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+
+/**
+ * One traversal of a RouteSegment found in an activity.
+ * @author Dan
+ */
+public class SegmentMatch extends Segment {
+    private final File          file;
+    private final RouteSegment  route;
+
+    /**
+     * Constructor. Creates a match between two points of an activity.
+     * @param file The .FIT file of the activity.
+     * @param route The route which was traversed.
+     * @param points The points of the activity's track.
+     * @param start Index of the point where the traversal starts.
+     * @param end Index of the point where the traversal ends.
+     */
+    public SegmentMatch(File file, RouteSegment route, PointStore points, int start, int end) {
+        super(points.getTimestamp(start), points.getTimestamp(end),
+                (points.getTime(end) - points.getTime(start))/1000.0,
+                (points.getTime(end) - points.getTime(start))/1000.0,
+                points.getDistance(end) - points.getDistance(start));
+        this.file = file;
+        this.route = route;
+        setStartPoint(points.get(start));
+        setEndPoint(points.get(end));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public RouteSegment getRoute() {
+        return route;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + file.getName() + " " + route.getName() + " in " + Track.timeToString(getElapsedTime(), true, true) + "]";
+    }
+}
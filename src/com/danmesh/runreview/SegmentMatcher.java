@@ -0,0 +1,176 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds every traversal of a RouteSegment across a library of activities and
+ * ranks them by elapsed time.
+ * Only activities which the spatial index shows passing both the start and
+ * the end of the route are opened. Within those, an attempt starts at each
+ * visit to the start and follows the track forward, requiring it to pass the
+ * route's checkpoints in order. An attempt is abandoned as soon as it strays
+ * outside the route's bounding box or travels much further than the route's
+ * length, so each attempt only looks at the points near the route.
+ * @author Dan
+ */
+public class SegmentMatcher {
+    /** Default distance in meters that a track may be from the route and still follow it */
+    public static final double DEFAULT_TOLERANCE = 25;
+
+    /* How much further than the route's length an attempt may travel */
+    private static final double MAX_DETOUR = 1.5;
+
+    private final ActivityLibrary   library;
+    private final SpatialIndex      index;
+    private final double            tolerance;
+
+    public SegmentMatcher(ActivityLibrary library, SpatialIndex index) {
+        this(library, index, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Constructor. Creates a matcher over an indexed library.
+     * @param library The library of activities.
+     * @param index A spatial index of the library's activities.
+     * @param tolerance Distance in meters that a track may be from the route and still follow it.
+     */
+    public SegmentMatcher(ActivityLibrary library, SpatialIndex index, double tolerance) {
+        this.library = library;
+        this.index = index;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Finds every traversal of a route, opening the candidate activities in parallel.
+     * @param route The route to find.
+     * @param parallelism The maximum number of activities opened at once.
+     * @return List of the traversals, fastest first.
+     * @throws IOException If the search was interrupted.
+     */
+    public List<SegmentMatch> match(RouteSegment route, int parallelism) throws IOException {
+        int last = route.getNumCheckpoints() - 1;
+        Map<File, SpatialIndex.Match> starts = new HashMap<>();
+        for (SpatialIndex.Match m : index.near(route.getLat(0), route.getLon(0), tolerance)) {
+            starts.put(m.getFile(), m);
+        }
+        List<File> candidates = new ArrayList<>();
+        for (SpatialIndex.Match m : index.near(route.getLat(last), route.getLon(last), tolerance)) {
+            if (starts.containsKey(m.getFile())) candidates.add(m.getFile());
+        }
+
+        List<SegmentMatch> matches = Collections.synchronizedList(new ArrayList<>());
+        library.forEachTrack(candidates, parallelism,
+                (file, track) -> matches.addAll(match(file, track, route, starts.get(file))));
+
+        List<SegmentMatch> ranked = new ArrayList<>(matches);
+        ranked.sort(Comparator.comparingDouble(SegmentMatch::getElapsedTime));
+        return ranked;
+    }
+
+    /**
+     * Finds the traversals of a route in one activity.
+     * @param file The .FIT file of the activity.
+     * @param track The parsed track of the activity.
+     * @param route The route to find.
+     * @param starts The activity's visits to the start of the route, from the spatial index.
+     * @return List of the traversals, in order.
+     */
+    private List<SegmentMatch> match(File file, Track track, RouteSegment route, SpatialIndex.Match starts) {
+        List<SegmentMatch> found = new ArrayList<>();
+        PointStore points = track.getPoints();
+        int resumeFrom = 0;
+        for (int r = 0; r < starts.getNumRanges(); r++) {
+            int from = Math.max(starts.getStart(r), resumeFrom);
+            int to = Math.min(starts.getEnd(r), points.size());
+            if (from >= to) continue;
+
+            int start = closest(points, from, to, route.getLat(0), route.getLon(0));
+            int end = follow(points, start, route);
+            if (end < 0) continue;
+            found.add(new SegmentMatch(file, route, points, start, end));
+            resumeFrom = end;
+        }
+        return found;
+    }
+
+    /**
+     * Follows a track forward from a point, checking that it passes each of
+     * the route's checkpoints in order.
+     * @return Index of the point where the track finishes the route, or -1 if it does not follow the route.
+     */
+    private int follow(PointStore points, int start, RouteSegment route) {
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        int n = points.size();
+        int last = route.getNumCheckpoints() - 1;
+
+        double marginLat = tolerance/RouteSegment.METERS_PER_DEGREE;
+        double marginLon = marginLat/Math.max(Math.cos(Math.toRadians(Math.max(Math.abs(route.getNorth()), Math.abs(route.getSouth())))), 1e-9);
+        double south = route.getSouth() - marginLat, north = route.getNorth() + marginLat;
+        double west = route.getWest() - marginLon, east = route.getEast() + marginLon;
+        double maxTravel = route.getLength()*MAX_DETOUR + 2*tolerance;
+
+        /* Travel is measured from the positions, as the recorded distance may not agree with them */
+        double travelled = 0;
+        int checkpoint = 1;
+        for (int i = start + 1; i < n; i++) {
+            travelled += RouteSegment.distance(lat[i-1], lon[i-1], lat[i], lon[i]);
+            if (travelled > maxTravel) return -1;
+            if (lat[i] < south || lat[i] > north || lon[i] < west || lon[i] > east) return -1;
+
+            /* Test against the leg from the previous point, so sparsely recorded tracks don't skip checkpoints */
+            while (checkpoint <= last && legDistance(lat[i-1], lon[i-1], lat[i], lon[i],
+                    route.getLat(checkpoint), route.getLon(checkpoint)) <= tolerance) {
+                checkpoint++;
+            }
+            if (checkpoint > last) {
+                /* Finish at the point closest to the end of the route */
+                double d = RouteSegment.distance(lat[i], lon[i], route.getLat(last), route.getLon(last));
+                while (i + 1 < n) {
+                    double next = RouteSegment.distance(lat[i+1], lon[i+1], route.getLat(last), route.getLon(last));
+                    if (next >= d) break;
+                    d = next;
+                    i++;
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int closest(PointStore points, int from, int to, double lat, double lon) {
+        int best = from;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            double d = RouteSegment.distance(points.getLat(i), points.getLon(i), lat, lon);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Distance in meters from a location to the leg between two points.
+     */
+    private static double legDistance(double lat1, double lon1, double lat2, double lon2, double lat, double lon) {
+        double scale = Math.cos(Math.toRadians(lat));
+        double ax = (lon1 - lon)*scale, ay = lat1 - lat;
+        double bx = (lon2 - lon)*scale, by = lat2 - lat;
+        double dx = bx - ax, dy = by - ay;
+        double lengthSq = dx*dx + dy*dy;
+        double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, -(ax*dx + ay*dy)/lengthSq));
+        double ex = ax + t*dx, ey = ay + t*dy;
+        return Math.sqrt(ex*ex + ey*ey)*RouteSegment.METERS_PER_DEGREE;
+    }
+}
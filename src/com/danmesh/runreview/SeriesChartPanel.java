@@ -0,0 +1,445 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.swing.JPanel;
+
+/**
+ * A line chart of pace, elevation or speed over the distance or time of a
+ * run. However many points the track has, the visible part of the series is
+ * downsampled to a few samples per pixel before it is drawn, and the result
+ * is kept for each width and visible range, so going back to an earlier zoom
+ * costs nothing. The line itself is drawn onto an image, so moving the
+ * crosshair repaints only the image and the crosshair.
+ * Scroll to zoom about the mouse, drag to pan, and double click to zoom out.
+ * @author Dan
+ */
+public class SeriesChartPanel extends JPanel {
+    private static final Metrics.Timer DOWNSAMPLE_TIMER = Metrics.timer("chart.downsample");
+
+    private static final int    MARGIN = 40;
+    private static final Color  LINE_COLOR = new Color(66, 133, 244);
+    private static final Color  AXIS_COLOR = Color.GRAY;
+    private static final Color  CROSSHAIR_COLOR = new Color(200, 0, 0);
+
+    /* Paces slower than this (15 min/km) are walking or standing, and are drawn at this pace */
+    private static final double SLOWEST_PACE = 900;
+    /* Samples kept per pixel of plot width by LTTB */
+    private static final int    SAMPLES_PER_PIXEL = 2;
+    /* Downsampled views kept, most recently used first */
+    private static final int    CACHE_SIZE = 16;
+    private static final double ZOOM_STEP = 1.25;
+
+    public enum Series {
+        PACE("Pace", "/km"), ELEVATION("Elevation", "m"), SPEED("Speed", "km/h");
+
+        private final String name;
+        private final String unit;
+
+        Series(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public enum Axis {
+        DISTANCE, TIME
+    }
+
+    public enum Decimation {
+        LTTB, MIN_MAX
+    }
+
+    private final PointStore    points;
+    private final Series        series;
+    private final double[]      y;
+    private Axis                axis;
+    private Decimation          decimation = Decimation.LTTB;
+    private double[]            x;
+
+    /* The visible range of x */
+    private double              viewStart;
+    private double              viewEnd;
+
+    private final Map<View, Plot> plots = new LinkedHashMap<View, Plot>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<View, Plot> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private BufferedImage       chart;
+    /* The view and visible range the chart image was drawn for */
+    private View                chartView;
+    private double              chartStart;
+    private double              chartEnd;
+
+    private int                 hoverX = -1;
+    private int                 dragX;
+
+    /**
+     * Constructor. Creates a chart of one series of a track.
+     * @param points The points of the track.
+     * @param series The series to plot.
+     * @param axis What to plot the series against.
+     */
+    public SeriesChartPanel(PointStore points, Series series, Axis axis) {
+        this.points = points;
+        this.series = series;
+        int n = points.size();
+        y = new double[n];
+        for (int i = 0; i < n; i++) {
+            switch (series) {
+                case PACE:
+                    double speed = points.getSpeed(i);
+                    y[i] = speed > 1000/SLOWEST_PACE ? 1000/speed : SLOWEST_PACE;
+                    break;
+                case ELEVATION:
+                    y[i] = points.getAlt(i);
+                    break;
+                default:
+                    y[i] = points.getSpeed(i)*3.6;
+            }
+        }
+        setAxis(axis);
+
+        setPreferredSize(new Dimension(700, 200));
+        setBackground(Color.WHITE);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                hoverX = e.getX();
+                repaint();
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                hoverX = -1;
+                repaint();
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragX = e.getX();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                pan(dragX - e.getX());
+                dragX = e.getX();
+                hoverX = e.getX();
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) zoomOut();
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoom(e.getX(), Math.pow(ZOOM_STEP, e.getPreciseWheelRotation()));
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="View">
+    /**
+     * Changes what the series is plotted against, and zooms out fully.
+     * @param axis Distance or time.
+     */
+    public final void setAxis(Axis axis) {
+        this.axis = axis;
+        int n = points.size();
+        x = new double[n];
+        long start = n == 0 ? 0 : points.getTime(0);
+        for (int i = 0; i < n; i++) {
+            x[i] = axis == Axis.DISTANCE ? points.getDistance(i) : (points.getTime(i) - start)/1000.0;
+        }
+        plots.clear();
+        chart = null;
+        zoomOut();
+    }
+
+    public Axis getAxis() {
+        return axis;
+    }
+
+    /**
+     * Changes how the series is downsampled for drawing.
+     * @param decimation LTTB for the truest line, or min/max to keep every peak.
+     */
+    public void setDecimation(Decimation decimation) {
+        this.decimation = decimation;
+        plots.clear();
+        chart = null;
+        repaint();
+    }
+
+    /**
+     * Shows the whole series.
+     */
+    public void zoomOut() {
+        viewStart = x.length == 0 ? 0 : x[0];
+        viewEnd = x.length == 0 ? 0 : x[x.length - 1];
+        repaint();
+    }
+
+    /**
+     * Zooms in or out, keeping the point under the mouse where it is.
+     * @param mouseX The x coordinate of the mouse, in pixels.
+     * @param factor The factor to scale the visible range by; less than 1 zooms in.
+     */
+    private void zoom(int mouseX, double factor) {
+        int plotWidth = getWidth() - 2*MARGIN;
+        if (plotWidth <= 0 || x.length < 2) return;
+        double fraction = Math.max(0, Math.min(1, (double) (mouseX - MARGIN)/plotWidth));
+        double centre = viewStart + fraction*(viewEnd - viewStart);
+        double span = (viewEnd - viewStart)*factor;
+        /* Never zoom in past a few samples across the plot */
+        double minSpan = 4*(x[x.length - 1] - x[0])/x.length;
+        span = Math.max(minSpan, Math.min(span, x[x.length - 1] - x[0]));
+        setView(centre - fraction*span, span);
+    }
+
+    private void pan(int pixels) {
+        int plotWidth = getWidth() - 2*MARGIN;
+        if (plotWidth <= 0 || x.length < 2) return;
+        double span = viewEnd - viewStart;
+        setView(viewStart + pixels*span/plotWidth, span);
+    }
+
+    private void setView(double start, double span) {
+        start = Math.max(x[0], Math.min(start, x[x.length - 1] - span));
+        viewStart = start;
+        viewEnd = start + span;
+        repaint();
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Drawing">
+    /**
+     * The visible part of the series at a plot width, which is what a
+     * downsampled plot depends on.
+     */
+    private static class View {
+        private final int width;
+        private final int from;
+        private final int to;
+
+        View(int width, int from, int to) {
+            this.width = width;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof View)) return false;
+            View v = (View) o;
+            return width == v.width && from == v.from && to == v.to;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, from, to);
+        }
+    }
+
+    /**
+     * The samples kept from a view, and the range of their values.
+     */
+    private static class Plot {
+        private final int[]     kept;
+        private final double    min;
+        private final double    max;
+
+        Plot(int[] kept, double[] y) {
+            this.kept = kept;
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+            for (int i : kept) {
+                lo = Math.min(lo, y[i]);
+                hi = Math.max(hi, y[i]);
+            }
+            if (hi - lo < 1e-9) {
+                lo -= 1;
+                hi += 1;
+            }
+            this.min = lo;
+            this.max = hi;
+        }
+    }
+
+    /**
+     * @return The view at a plot width, including a sample either side of the visible range so the line reaches the edges.
+     */
+    private View currentView(int plotWidth) {
+        int from = Math.max(0, lowerBound(viewStart) - 1);
+        int to = Math.min(x.length, lowerBound(viewEnd) + 1);
+        return new View(plotWidth, from, to);
+    }
+
+    private Plot getPlot(View view) {
+        Plot plot = plots.get(view);
+        if (plot == null) {
+            long start = DOWNSAMPLE_TIMER.start();
+            int[] kept = decimation == Decimation.LTTB
+                    ? SeriesDownsampler.lttb(x, y, view.from, view.to, SAMPLES_PER_PIXEL*view.width)
+                    : SeriesDownsampler.minMax(x, y, view.from, view.to, view.width);
+            plot = new Plot(kept, y);
+            DOWNSAMPLE_TIMER.stop(start);
+            plots.put(view, plot);
+        }
+        return plot;
+    }
+
+    /**
+     * Draws the axes and the downsampled line onto a new image the size of the panel.
+     */
+    private BufferedImage drawChart(int width, int height, View view) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        int plotWidth = view.width;
+        int plotHeight = height - 2*MARGIN;
+        g.setColor(AXIS_COLOR);
+        g.drawString(series.name + " (" + series.unit + ")", MARGIN, MARGIN - 15);
+        if (plotHeight > 0 && view.to - view.from > 1 && viewEnd > viewStart) {
+            Plot plot = getPlot(view);
+            int[] px = new int[plot.kept.length];
+            int[] py = new int[plot.kept.length];
+            for (int k = 0; k < plot.kept.length; k++) {
+                int i = plot.kept[k];
+                px[k] = (int) Math.round(toPixelX(x[i], plotWidth));
+                py[k] = (int) Math.round(toPixelY(y[i], plot, plotHeight));
+            }
+            g.setClip(MARGIN, MARGIN, plotWidth + 1, plotHeight + 1);
+            g.setColor(LINE_COLOR);
+            g.drawPolyline(px, py, px.length);
+            g.setClip(null);
+
+            g.setColor(AXIS_COLOR);
+            g.drawLine(MARGIN, MARGIN + plotHeight, MARGIN + plotWidth, MARGIN + plotHeight);
+            g.drawString(formatY(series == Series.PACE ? plot.min : plot.max), 2, MARGIN + 5);
+            g.drawString(formatY(series == Series.PACE ? plot.max : plot.min), 2, MARGIN + plotHeight);
+            g.drawString(formatX(viewStart), MARGIN, MARGIN + plotHeight + 20);
+            String end = formatX(viewEnd);
+            g.drawString(end, MARGIN + plotWidth - g.getFontMetrics().stringWidth(end), MARGIN + plotHeight + 20);
+        }
+        g.dispose();
+        return image;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int width = getWidth();
+        int height = getHeight();
+        int plotWidth = width - 2*MARGIN;
+        if (plotWidth <= 0 || height <= 0) return;
+
+        View view = currentView(plotWidth);
+        if (chart == null || chart.getWidth() != width || chart.getHeight() != height || !view.equals(chartView)
+                || chartStart != viewStart || chartEnd != viewEnd) {
+            chart = drawChart(width, height, view);
+            chartView = view;
+            chartStart = viewStart;
+            chartEnd = viewEnd;
+        }
+        g.drawImage(chart, 0, 0, null);
+        drawCrosshair((Graphics2D) g, plotWidth, height - 2*MARGIN, view);
+    }
+
+    /**
+     * Draws a line at the mouse, with the value of the nearest sample of the full series.
+     */
+    private void drawCrosshair(Graphics2D g, int plotWidth, int plotHeight, View view) {
+        if (hoverX < MARGIN || hoverX > MARGIN + plotWidth || plotHeight <= 0 || x.length == 0) return;
+        double at = viewStart + (double) (hoverX - MARGIN)*(viewEnd - viewStart)/plotWidth;
+        int i = nearest(at);
+        Plot plot = plots.get(view);
+        if (plot == null) return;
+
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(CROSSHAIR_COLOR);
+        int px = (int) Math.round(toPixelX(x[i], plotWidth));
+        int py = (int) Math.round(toPixelY(y[i], plot, plotHeight));
+        g.drawLine(px, MARGIN, px, MARGIN + plotHeight);
+        g.fillOval(px - 3, py - 3, 7, 7);
+
+        String label = formatY(y[i]) + " at " + formatX(x[i]);
+        int labelWidth = g.getFontMetrics().stringWidth(label);
+        int labelX = px + 6 + labelWidth > MARGIN + plotWidth ? px - 6 - labelWidth : px + 6;
+        g.drawString(label, labelX, MARGIN - 2);
+    }
+
+    private double toPixelX(double value, int plotWidth) {
+        return MARGIN + (value - viewStart)*plotWidth/(viewEnd - viewStart);
+    }
+
+    private double toPixelY(double value, Plot plot, int plotHeight) {
+        double fraction = (value - plot.min)/(plot.max - plot.min);
+        /* Faster paces are lower numbers, but should still be drawn higher */
+        if (series == Series.PACE) fraction = 1 - fraction;
+        return MARGIN + plotHeight - fraction*plotHeight;
+    }
+
+    private String formatX(double value) {
+        return axis == Axis.DISTANCE
+                ? String.format("%.2f km", value/1000)
+                : Track.timeToString(value, false, true);
+    }
+
+    private String formatY(double value) {
+        switch (series) {
+            case PACE:      return Track.timeToString(value, false, false) + " /km";
+            case ELEVATION: return String.format("%.0f m", value);
+            default:        return String.format("%.1f km/h", value);
+        }
+    }
+    //</editor-fold>
+
+    /**
+     * @return The index of the first sample at or after a value of x.
+     */
+    private int lowerBound(double value) {
+        int lo = 0, hi = x.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (x[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return The index of the sample with x nearest a value.
+     */
+    private int nearest(double value) {
+        int i = Math.min(lowerBound(value), x.length - 1);
+        if (i > 0 && value - x[i - 1] < x[i] - value) i--;
+        return i;
+    }
+}
@@ -0,0 +1,122 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Arrays;
+
+/**
+ * Reduction of a long series of samples to a few per pixel for drawing.
+ * Two methods are offered: Largest-Triangle-Three-Buckets, which keeps the
+ * sample in each bucket that best preserves the shape of the line, and
+ * min/max bucketing, which keeps the lowest and highest sample in each bucket
+ * so that no peak is ever lost. Both return the indices of the kept samples
+ * in order, so the caller can look up any column of the original points.
+ * @author Dan
+ */
+public class SeriesDownsampler {
+
+    private SeriesDownsampler() {
+    }
+
+    /**
+     * Downsamples a series by the Largest-Triangle-Three-Buckets method.
+     * The first and last samples are always kept, and the rest are split into
+     * equal buckets of which one sample each is kept: the one forming the
+     * largest triangle with the sample kept from the bucket before and the
+     * average of the bucket after.
+     * @param x The x value of each sample, in increasing order.
+     * @param y The y value of each sample.
+     * @param from The index of the first sample to include.
+     * @param to The index after the last sample to include.
+     * @param threshold The number of samples to keep, at least 3.
+     * @return The indices of the kept samples, in increasing order.
+     */
+    public static int[] lttb(double[] x, double[] y, int from, int to, int threshold) {
+        int n = to - from;
+        if (n <= threshold || threshold < 3) return all(from, to);
+
+        int[] kept = new int[threshold];
+        kept[0] = from;
+        double every = (double) (n - 2)/(threshold - 2);
+        int a = from;
+
+        for (int b = 0; b < threshold - 2; b++) {
+            /* The average of the next bucket stands in for the sample yet to be chosen from it */
+            int nextStart = from + 1 + (int) ((b + 1)*every);
+            int nextEnd = Math.min(from + 1 + (int) ((b + 2)*every), to);
+            if (nextStart >= nextEnd) {
+                nextStart = to - 1;
+                nextEnd = to;
+            }
+            double avgX = 0, avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x[i];
+                avgY += y[i];
+            }
+            avgX /= nextEnd - nextStart;
+            avgY /= nextEnd - nextStart;
+
+            int start = from + 1 + (int) (b*every);
+            int end = from + 1 + (int) ((b + 1)*every);
+            double ax = x[a], ay = y[a];
+            double maxArea = -1;
+            int chosen = start;
+            for (int i = start; i < end; i++) {
+                /* Twice the area of the triangle, which ranks the same */
+                double area = Math.abs((ax - avgX)*(y[i] - ay) - (ax - x[i])*(avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = i;
+                }
+            }
+            kept[b + 1] = chosen;
+            a = chosen;
+        }
+        kept[threshold - 1] = to - 1;
+        return kept;
+    }
+
+    /**
+     * Downsamples a series by keeping the lowest and highest sample of each
+     * bucket. The range of x is split into buckets of equal width, normally
+     * one per pixel, so a vertical line through each pixel column covers
+     * exactly the values the full series would.
+     * @param x The x value of each sample, in increasing order.
+     * @param y The y value of each sample.
+     * @param from The index of the first sample to include.
+     * @param to The index after the last sample to include.
+     * @param buckets The number of buckets.
+     * @return The indices of the kept samples, in increasing order.
+     */
+    public static int[] minMax(double[] x, double[] y, int from, int to, int buckets) {
+        int n = to - from;
+        if (n <= 2*buckets || buckets < 1) return all(from, to);
+
+        int[] kept = new int[2*buckets + 2];
+        int count = 0;
+        kept[count++] = from;
+        double x0 = x[from];
+        double width = (x[to - 1] - x0)/buckets;
+
+        int i = from + 1;
+        for (int b = 0; b < buckets && i < to - 1; b++) {
+            double bucketEnd = b == buckets - 1 ? Double.POSITIVE_INFINITY : x0 + (b + 1)*width;
+            if (x[i] >= bucketEnd) continue;
+            int min = i, max = i;
+            for (; i < to - 1 && x[i] < bucketEnd; i++) {
+                if (y[i] < y[min]) min = i;
+                if (y[i] > y[max]) max = i;
+            }
+            kept[count++] = Math.min(min, max);
+            if (min != max) kept[count++] = Math.max(min, max);
+        }
+        kept[count++] = to - 1;
+        return Arrays.copyOf(kept, count);
+    }
+
+    private static int[] all(int from, int to) {
+        int[] kept = new int[Math.max(0, to - from)];
+        for (int i = 0; i < kept.length; i++) kept[i] = from + i;
+        return kept;
+    }
+}
@@ -0,0 +1,429 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * An index of the points of every activity in a library, for finding which
+ * runs passed a place.
+ * The points are bucketed into a grid of cells of a fixed size in degrees. A
+ * query only visits the cells overlapping the area of interest and tests the
+ * points inside them, so it takes time in proportion to the points near the
+ * area rather than the points in the library. Each point is held as its
+ * activity, its index in the activity and its position in fixed point
+ * (1e-7 degrees), and the index can be saved next to the track cache.
+ * @author Dan
+ */
+public class SpatialIndex {
+    public static final String DEFAULT_FILE = "resources/cache/spatial.rsi";
+
+    /** Size of a grid cell in degrees (about 550 m of latitude) */
+    public static final double CELL_DEGREES = 0.005;
+
+    private static final int    MAGIC = 0x52525349;  // "RRSI"
+    private static final int    VERSION = 1;
+
+    private static final double FIXED = 1e7;
+    private static final double EARTH_RADIUS = 6371000;
+    private static final double METERS_PER_DEGREE = Math.PI*EARTH_RADIUS/180;
+
+    /* Ints per indexed point: activity, point index, latitude and longitude */
+    private static final int STRIDE = 4;
+
+    private final List<File>        activities = new ArrayList<>();
+    private final Map<File, Integer> activityIds = new HashMap<>();
+    private final Map<Long, Cell>   cells = new HashMap<>();
+    private long                    numPoints;
+
+    /**
+     * A growable list of the points in one grid cell.
+     */
+    private static class Cell {
+        int[] data;
+        int size;
+
+        Cell(int capacity) {
+            data = new int[Math.max(capacity, STRIDE)];
+        }
+
+        void add(int[] values, int from, int length) {
+            if (size + length > data.length) data = Arrays.copyOf(data, Math.max(size + length, 2*data.length));
+            System.arraycopy(values, from, data, size, length);
+            size += length;
+        }
+
+        void add(int value) {
+            if (size == data.length) data = Arrays.copyOf(data, 2*data.length);
+            data[size++] = value;
+        }
+    }
+
+    /**
+     * The points of one activity found by a query, as ranges of point indices.
+     */
+    public static class Match {
+        private final File  file;
+        private final int[] starts;
+        private final int[] ends;
+
+        Match(File file, int[] starts, int[] ends) {
+            this.file = file;
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The number of separate ranges, i.e. the number of times the activity passed the area.
+         */
+        public int getNumRanges() {
+            return starts.length;
+        }
+
+        /**
+         * @return Index of the first point in range i.
+         */
+        public int getStart(int i) {
+            return starts[i];
+        }
+
+        /**
+         * @return Index one past the last point in range i.
+         */
+        public int getEnd(int i) {
+            return ends[i];
+        }
+
+        /**
+         * Resolves the ranges against the points of the activity once it has been opened.
+         * @param points The points of the activity's track.
+         * @return List of the ranges, in order.
+         */
+        public List<PointRange> getRanges(PointStore points) {
+            List<PointRange> ranges = new ArrayList<>(starts.length);
+            for (int i = 0; i < starts.length; i++) ranges.add(new PointRange(points, starts[i], ends[i]));
+            return ranges;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[" + file.getName());
+            for (int i = 0; i < starts.length; i++) sb.append(" [").append(starts[i]).append(", ").append(ends[i]).append(")");
+            return sb.append("]").toString();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Building">
+    /**
+     * Adds the points of an activity to the index. An activity which has
+     * already been indexed is ignored.
+     * The points are grouped by cell before the index is locked, so tracks
+     * can be added from several threads at once.
+     * @param file The .FIT file of the activity.
+     * @param track The parsed track of the activity.
+     */
+    public void add(File file, Track track) {
+        PointStore points = track.getPoints();
+        int n = points.size();
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+
+        Map<Long, Cell> local = new HashMap<>();
+        int[] row = new int[STRIDE];
+        Cell cell = null;
+        long lastKey = 0;
+        for (int i = 0; i < n; i++) {
+            long key = cellKey(cellRow(lat[i]), cellColumn(lon[i]));
+            if (cell == null || key != lastKey) {
+                cell = local.computeIfAbsent(key, k -> new Cell(64));
+                lastKey = key;
+            }
+            row[1] = i;
+            row[2] = (int)Math.round(lat[i]*FIXED);
+            row[3] = (int)Math.round(lon[i]*FIXED);
+            cell.add(row, 0, STRIDE);
+        }
+
+        synchronized (this) {
+            if (activityIds.containsKey(file)) return;
+            int id = activities.size();
+            activities.add(file);
+            activityIds.put(file, id);
+            for (Map.Entry<Long, Cell> entry : local.entrySet()) {
+                Cell from = entry.getValue();
+                for (int j = 0; j < from.size; j += STRIDE) from.data[j] = id;
+                Cell to = cells.get(entry.getKey());
+                if (to == null) {
+                    from.data = Arrays.copyOf(from.data, from.size);
+                    cells.put(entry.getKey(), from);
+                } else {
+                    to.add(from.data, 0, from.size);
+                }
+            }
+            numPoints += n;
+        }
+    }
+
+    /**
+     * Indexes every activity in a library which has not been indexed yet, in
+     * parallel. Activities which cannot be read are skipped.
+     * @param library The library of activities.
+     * @param parallelism The maximum number of activities opened at once.
+     * @throws IOException If the indexing was interrupted.
+     */
+    public void addAll(ActivityLibrary library, int parallelism) throws IOException {
+        List<File> files = new ArrayList<>();
+        synchronized (this) {
+            for (ActivitySummary activity : library.getActivities()) {
+                if (!activityIds.containsKey(activity.getFile())) files.add(activity.getFile());
+            }
+        }
+        long start = System.currentTimeMillis();
+        library.forEachTrack(files, parallelism, this::add);
+        DebugLogger.info("Indexed " + files.size() + " activities in " + (System.currentTimeMillis() - start) + " ms ("
+                + getNumPoints() + " points, " + getNumCells() + " cells).");
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Queries">
+    /**
+     * Finds the activities which passed within a distance of a location.
+     * @param lat Latitude of the location in degrees.
+     * @param lon Longitude of the location in degrees.
+     * @param radius The distance in meters.
+     * @return List of the matching activities with the ranges of points within the distance.
+     */
+    public synchronized List<Match> near(double lat, double lon, double radius) {
+        double dLat = radius/METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(lat));
+        double dLon = cos > 1e-9 ? Math.min(180, dLat/cos) : 180;
+
+        /* Points are compared on an equirectangular projection about the location,
+           which is well within GPS error at the distances of interest */
+        double scaleLat = METERS_PER_DEGREE/FIXED;
+        double scaleLon = scaleLat*cos;
+        double radiusSq = radius*radius;
+        int fixedLat = (int)Math.round(lat*FIXED);
+        int fixedLon = (int)Math.round(lon*FIXED);
+
+        Hits hits = new Hits();
+        for (int r = cellRow(lat - dLat); r <= cellRow(lat + dLat); r++) {
+            for (int c = cellColumn(lon - dLon); c <= cellColumn(lon + dLon); c++) {
+                Cell cell = cells.get(cellKey(r, c));
+                if (cell == null) continue;
+                int[] data = cell.data;
+                for (int j = 0; j < cell.size; j += STRIDE) {
+                    double y = (data[j+2] - fixedLat)*scaleLat;
+                    double x = (data[j+3] - fixedLon)*scaleLon;
+                    if (x*x + y*y <= radiusSq) hits.add(data[j], data[j+1]);
+                }
+            }
+        }
+        return hits.toMatches();
+    }
+
+    /**
+     * Finds the activities which passed through a bounding box.
+     * @param south Southern edge of the box in degrees.
+     * @param west Western edge of the box in degrees.
+     * @param north Northern edge of the box in degrees.
+     * @param east Eastern edge of the box in degrees.
+     * @return List of the matching activities with the ranges of points inside the box.
+     */
+    public synchronized List<Match> within(double south, double west, double north, double east) {
+        int minLat = (int)Math.round(south*FIXED);
+        int maxLat = (int)Math.round(north*FIXED);
+        int minLon = (int)Math.round(west*FIXED);
+        int maxLon = (int)Math.round(east*FIXED);
+
+        Hits hits = new Hits();
+        for (int r = cellRow(south); r <= cellRow(north); r++) {
+            for (int c = cellColumn(west); c <= cellColumn(east); c++) {
+                Cell cell = cells.get(cellKey(r, c));
+                if (cell == null) continue;
+                int[] data = cell.data;
+                for (int j = 0; j < cell.size; j += STRIDE) {
+                    int y = data[j+2];
+                    int x = data[j+3];
+                    if (y >= minLat && y <= maxLat && x >= minLon && x <= maxLon) hits.add(data[j], data[j+1]);
+                }
+            }
+        }
+        return hits.toMatches();
+    }
+
+    /**
+     * The points found by a query, gathered per activity and merged into ranges.
+     */
+    private class Hits {
+        private final Map<Integer, Cell> byActivity = new HashMap<>();
+
+        void add(int activity, int index) {
+            byActivity.computeIfAbsent(activity, k -> new Cell(16)).add(index);
+        }
+
+        List<Match> toMatches() {
+            List<Match> matches = new ArrayList<>(byActivity.size());
+            for (Map.Entry<Integer, Cell> entry : byActivity.entrySet()) {
+                int[] indices = entry.getValue().data;
+                int size = entry.getValue().size;
+                Arrays.sort(indices, 0, size);
+
+                int[] starts = new int[size];
+                int[] ends = new int[size];
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (count > 0 && indices[i] <= ends[count-1]) {
+                        ends[count-1] = Math.max(ends[count-1], indices[i] + 1);
+                    } else {
+                        starts[count] = indices[i];
+                        ends[count++] = indices[i] + 1;
+                    }
+                }
+                matches.add(new Match(activities.get(entry.getKey()), Arrays.copyOf(starts, count), Arrays.copyOf(ends, count)));
+            }
+            matches.sort((a, b) -> a.getFile().compareTo(b.getFile()));
+            return matches;
+        }
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Grid">
+    private static int cellRow(double lat) {
+        return (int)Math.floor(lat/CELL_DEGREES);
+    }
+
+    private static int cellColumn(double lon) {
+        return (int)Math.floor(lon/CELL_DEGREES);
+    }
+
+    private static long cellKey(int row, int column) {
+        return ((long)row << 32) | (column & 0xFFFFFFFFL);
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Persistence">
+    /**
+     * Saves the index to a file. The file is written in full to a temporary
+     * file first, so an interrupted save leaves the previous index intact.
+     * @param file The file to save to.
+     * @throws IOException If the file could not be written.
+     */
+    public synchronized void save(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        Path temp = Files.createTempFile(directory.toPath(), "spatial", ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4*4 + 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(activities.size()).putInt(cells.size()).putLong(numPoints);
+            writeFully(channel, header);
+
+            for (File activity : activities) {
+                byte[] path = activity.getPath().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buf = ByteBuffer.allocate(4 + path.length).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(path.length).put(path);
+                writeFully(channel, buf);
+            }
+
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                Cell cell = entry.getValue();
+                ByteBuffer buf = ByteBuffer.allocate(8 + 4 + 4*cell.size).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putLong(entry.getKey()).putInt(cell.size);
+                buf.asIntBuffer().put(cell.data, 0, cell.size);
+                buf.position(buf.limit());
+                writeFully(channel, buf);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    /**
+     * Loads an index saved by save().
+     * @param file The file to load from.
+     * @return The index, or an empty index if the file does not exist or cannot be read.
+     */
+    public static SpatialIndex load(File file) {
+        SpatialIndex index = new SpatialIndex();
+        if (!file.exists()) return index;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) throw new IOException("Not a spatial index");
+            int numActivities = map.getInt();
+            int numCells = map.getInt();
+            index.numPoints = map.getLong();
+
+            for (int i = 0; i < numActivities; i++) {
+                byte[] path = new byte[map.getInt()];
+                map.get(path);
+                File activity = new File(new String(path, StandardCharsets.UTF_8));
+                index.activityIds.put(activity, i);
+                index.activities.add(activity);
+            }
+
+            for (int i = 0; i < numCells; i++) {
+                long key = map.getLong();
+                int size = map.getInt();
+                Cell cell = new Cell(size);
+                cell.size = size;
+                map.asIntBuffer().get(cell.data, 0, size);
+                map.position(map.position() + 4*cell.size);
+                index.cells.put(key, cell);
+            }
+            DebugLogger.info("Loaded spatial index of " + numActivities + " activities from " + file);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            DebugLogger.error("Could not load spatial index " + file + ", starting afresh: " + e);
+            return new SpatialIndex();
+        }
+    }
+    //</editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Getters">
+    public synchronized boolean contains(File file) {
+        return activityIds.containsKey(file);
+    }
+
+    public synchronized int getNumActivities() {
+        return activities.size();
+    }
+
+    public synchronized long getNumPoints() {
+        return numPoints;
+    }
+
+    public synchronized int getNumCells() {
+        return cells.size();
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,328 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * A two-level cache of map tiles in the standard z/x/y scheme, where tile
+ * (x, y) at zoom z covers the pixel coordinates (as defined by Point) from
+ * (256x, 256y) to (256x + 255, 256y + 255).
+ * Decoded tiles are kept in memory, least recently used first out, and the
+ * downloaded files are kept in a MapImageCache on disk. Missing tiles are
+ * loaded by a pool of background threads, with the tiles on screen fetched
+ * ahead of prefetched neighbours. A tile which could not be loaded is not
+ * asked for again until FAILURE_BACKOFF has passed or the zoom changes, so
+ * that a passing network error does not blank it for good.
+ * @author Dan
+ */
+public class TileCache {
+    public static final int TILE_SIZE = 256;
+    public static final int MIN_ZOOM = 1;
+    public static final int MAX_ZOOM = 19;
+
+    public static final String DEFAULT_DIRECTORY = "resources/cache/tiles";
+    public static final String DEFAULT_URL = "https://tile.openstreetmap.org/{z}/{x}/{y}.png";
+
+    private static final int MEMORY_TILES = 256;
+    private static final int LOADER_THREADS = 4;
+    private static final long DISK_BYTES = 256L*1024*1024;
+    private static final long FAILURE_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String USER_AGENT = "RunReview";
+
+    private static final Metrics.Counter MEMORY_HITS = Metrics.counter("tiles.memory.hit");
+    private static final Metrics.Counter MEMORY_MISSES = Metrics.counter("tiles.memory.miss");
+    private static final Metrics.Counter DISK_HITS = Metrics.counter("tiles.disk.hit");
+    private static final Metrics.Counter DISK_MISSES = Metrics.counter("tiles.disk.miss");
+    private static final Metrics.Counter DOWNLOAD_FAILURES = Metrics.counter("tiles.download.failed");
+    private static final Metrics.Timer  DOWNLOAD_TIMER = Metrics.timer("tiles.download");
+    private static final Metrics.Timer  DECODE_TIMER = Metrics.timer("tiles.decode");
+
+    /**
+     * Is told when a requested tile has been loaded. Called on the Swing thread.
+     */
+    public interface TileListener {
+        void tileLoaded(int zoom, int x, int y);
+    }
+
+    private final String        urlTemplate;
+    private final MapImageCache disk;
+    private final TileListener  listener;
+
+    private final Map<Long, BufferedImage> memory = new LinkedHashMap<Long, BufferedImage>(MEMORY_TILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > MEMORY_TILES;
+        }
+    };
+
+    /* Tiles which are queued or loading, and the time at which each tile which could not be loaded failed */
+    private final Map<Long, TileRequest> pending = new ConcurrentHashMap<>();
+    private final Map<Long, Long> failed = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor loader;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int activeZoom = -1;
+
+    /* The disk cache of the default directory, shared by every TileCache using it */
+    private static MapImageCache defaultDisk;
+
+    /**
+     * Constructor. Creates a tile cache using the default tile server and directory.
+     * The tile server can also be set with the runreview.tile.url property.
+     * Every tile cache made this way shares one disk cache, so that two maps
+     * open at once keep one account of the files and never delete each
+     * other's downloads.
+     * @param listener Listener to tell when tiles are loaded.
+     */
+    public TileCache(TileListener listener) {
+        this(System.getProperty("runreview.tile.url", DEFAULT_URL),
+                defaultDisk(), listener);
+    }
+
+    private static synchronized MapImageCache defaultDisk() {
+        if (defaultDisk == null) defaultDisk = new MapImageCache(new File(DEFAULT_DIRECTORY), DISK_BYTES);
+        return defaultDisk;
+    }
+
+    /**
+     * Constructor. Creates a tile cache.
+     * @param urlTemplate URL of the tiles, where {z}, {x} and {y} are replaced by the tile's zoom and position.
+     * @param disk The disk cache for downloaded tiles.
+     * @param listener Listener to tell when tiles are loaded.
+     */
+    public TileCache(String urlTemplate, MapImageCache disk, TileListener listener) {
+        this.urlTemplate = urlTemplate;
+        this.disk = disk;
+        this.listener = listener;
+        this.loader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "tile-loader");
+                    t.setDaemon(true);
+                    return t;
+                });
+        loader.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a tile if it is in memory. Otherwise the tile is queued to be
+     * loaded and the listener is told when it arrives.
+     * @param zoom Zoom level of the tile.
+     * @param x Column of the tile.
+     * @param y Row of the tile.
+     * @return The decoded tile, or null if it is not loaded yet.
+     */
+    public BufferedImage getTile(int zoom, int x, int y) {
+        if (!isValid(zoom, x, y)) return null;
+        long key = key(zoom, x, y);
+        BufferedImage tile;
+        synchronized (memory) {
+            tile = memory.get(key);
+        }
+        if (tile == null) {
+            MEMORY_MISSES.increment();
+            request(zoom, x, y, false);
+        } else {
+            MEMORY_HITS.increment();
+        }
+        return tile;
+    }
+
+    /**
+     * Queues a tile to be loaded ahead of being shown, behind any tiles
+     * which are already on screen.
+     */
+    public void prefetch(int zoom, int x, int y) {
+        if (!isValid(zoom, x, y)) return;
+        synchronized (memory) {
+            if (memory.containsKey(key(zoom, x, y))) return;
+        }
+        request(zoom, x, y, true);
+    }
+
+    /**
+     * Sets the zoom level on screen. Queued tiles for other zoom levels are
+     * dropped when they reach the front of the queue, and tiles which failed
+     * may be tried again.
+     */
+    public void setActiveZoom(int zoom) {
+        if (zoom != activeZoom) failed.clear();
+        activeZoom = zoom;
+    }
+
+    public boolean hasFailed(int zoom, int x, int y) {
+        return hasFailed(key(zoom, x, y));
+    }
+
+    private boolean hasFailed(long key) {
+        Long time = failed.get(key);
+        if (time == null) return false;
+        if (System.currentTimeMillis() - time < FAILURE_BACKOFF) return true;
+        failed.remove(key, time);
+        return false;
+    }
+
+    private static boolean isValid(int zoom, int x, int y) {
+        int n = 1 << zoom;
+        return zoom >= 0 && x >= 0 && y >= 0 && x < n && y < n;
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+
+    private void request(int zoom, int x, int y, boolean prefetch) {
+        long key = key(zoom, x, y);
+        if (hasFailed(key)) return;
+        TileRequest req = new TileRequest(zoom, x, y, prefetch, sequence.incrementAndGet());
+        TileRequest queued = pending.putIfAbsent(key, req);
+        if (queued == null) {
+            loader.execute(req);
+        } else if (!prefetch && queued.prefetch && loader.remove(queued)) {
+            /* A prefetched tile which has come on screen goes ahead of the other prefetches */
+            pending.put(key, req);
+            loader.execute(req);
+        }
+    }
+
+    private void load(TileRequest req) {
+        long key = key(req.zoom, req.x, req.y);
+        try {
+            if (req.zoom != activeZoom) return;
+            BufferedImage tile = fetch(req.zoom, req.x, req.y);
+            if (tile == null) {
+                failed.put(key, System.currentTimeMillis());
+                return;
+            }
+            synchronized (memory) {
+                memory.put(key, tile);
+            }
+            if (listener != null) SwingUtilities.invokeLater(() -> listener.tileLoaded(req.zoom, req.x, req.y));
+        } finally {
+            pending.remove(key, req);
+        }
+    }
+
+    /**
+     * Reads a tile from the disk cache, downloading it first if needed, and
+     * decodes it into a format which is quick to draw.
+     * @return The decoded tile, or null if it could not be fetched.
+     */
+    private BufferedImage fetch(int zoom, int x, int y) {
+        String key = "tile_" + zoom + "_" + x + "_" + y;
+        try {
+            File file = disk.get(key);
+            if (file == null) {
+                DISK_MISSES.increment();
+                File download = disk.createTempFile();
+                long start = DOWNLOAD_TIMER.start();
+                boolean saved = saveImage(tileURL(zoom, x, y), download.getPath());
+                DOWNLOAD_TIMER.stop(start);
+                if (!saved) {
+                    DOWNLOAD_FAILURES.increment();
+                    download.delete();
+                    return null;
+                }
+                file = disk.put(key, download);
+            } else {
+                DISK_HITS.increment();
+            }
+            long start = DECODE_TIMER.start();
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                DebugLogger.error("Could not decode the map tile " + file);
+                return null;
+            }
+            /* Tiles are usually palette PNGs, which are slow to draw */
+            BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tile.createGraphics();
+            g.drawImage(image, 0, 0, TILE_SIZE, TILE_SIZE, null);
+            g.dispose();
+            DECODE_TIMER.stop(start);
+            return tile;
+        } catch (IOException e) {
+            DebugLogger.error("Could not cache the map tile " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String tileURL(int zoom, int x, int y) {
+        return urlTemplate.replace("{z}", Integer.toString(zoom))
+                .replace("{x}", Integer.toString(x))
+                .replace("{y}", Integer.toString(y));
+    }
+
+    /**
+     * Downloads an image at the given URL and stores it as a certain file.
+     * Written by Chad Darby at: http://www.luv2code.com/2015/05/15/how-to-add-google-maps-to-java-swing-gui/
+     * @param imageURL URL of the image to be downloaded.
+     * @param file Filename of the downloaded image.
+     * @return True if successfully downloaded, false if an error occurred.
+     */
+    private static boolean saveImage(String imageURL, String file) {
+        try {
+            URLConnection connection = new URL(imageURL).openConnection();
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            try (InputStream is = connection.getInputStream(); OutputStream os = new FileOutputStream(file)) {
+                byte[] b = new byte[2048];
+                int length;
+                while ((length = is.read(b)) != -1) {
+                    os.write(b, 0, length);
+                }
+            }
+        } catch (IOException e) {
+            DebugLogger.error("Could not download image at URL=" + imageURL);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A queued tile load. Tiles on screen are loaded before prefetched tiles,
+     * and otherwise the most recently requested tiles are loaded first.
+     */
+    private class TileRequest implements Runnable, Comparable<TileRequest> {
+        final int       zoom, x, y;
+        final boolean   prefetch;
+        final long      order;
+
+        TileRequest(int zoom, int x, int y, boolean prefetch, long order) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.prefetch = prefetch;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            load(this);
+        }
+
+        @Override
+        public int compareTo(TileRequest other) {
+            if (prefetch != other.prefetch) return prefetch ? 1 : -1;
+            return Long.compare(other.order, order);
+        }
+    }
+}
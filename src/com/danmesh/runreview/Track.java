@@ -3,12 +3,11 @@
 package com.danmesh.runreview;
 
 import hirondelle.date4j.DateTime;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import net.studioblueplanet.fitreader.FitReader;
-import net.studioblueplanet.fitreader.FitRecord;
-import net.studioblueplanet.fitreader.FitRecordRepository;
 import net.studioblueplanet.logger.DebugLogger;
 
 /**
@@ -20,9 +19,9 @@ public class Track {
     private ArrayList<Segment> laps;
 
     /**
-     * A list of all the GPS track points recorded in the track.
+     * All the GPS track points recorded in the track, stored by column.
      */
-    protected ArrayList<TrackPoint> points;
+    protected PointStore points;
     
     private double distance;
     private double timerTime;
@@ -30,34 +29,93 @@ public class Track {
     private DateTime localTimestamp;
     private int calories;
     
-    private Point[] limit;
+    private TrackProjection projection;
+    private RangeStats      rangeStats;
+    
+    /* Whether the session has been recorded, which gives the final totals of a live track */
+    private boolean         complete;
+    
+    private Point[] limit = {new Point(0,0), new Point(0,0), new Point(0,0), new Point(0,0)};
     private static final int N = 0;
     private static final int S = 1;
     private static final int E = 2;
     private static final int W = 3;
     
+    /**
+     * The version of what a .FIT file is parsed into. Increase it whenever a
+     * change to FitDecoder or to the Parser here changes the points, laps or
+     * totals of a parsed Track, so that tracks cached by an older version are
+     * parsed again.
+     */
+    static final int PARSE_VERSION = 2;
+    
+    private static final Metrics.Timer OPEN_TIMER = Metrics.timer("track.open");
+    private static final Metrics.Timer DECODE_TIMER = Metrics.timer("track.decode");
+    private static final Metrics.Timer FINISH_TIMER = Metrics.timer("track.finish");
+    
     /**
      * Constructor. Creates a Track sing the data stored in a .FIT file.
      * @param filename The filename of the .FIT file for the Track.
+     * @throws IOException If the file could not be read or decoded.
      */
-    public Track(String filename) {
-        FitReader reader = FitReader.getInstance();
-        FitRecordRepository repo = reader.readFile("resources/testfile.FIT");
-        
-        FitRecord record = repo.getFitRecord("lap");
-        parseLaps(record);
-        
-        record = repo.getFitRecord("record");
-        parseTrackPoints(record);
-        
-        record = repo.getFitRecord("session");
-        this.distance = record.getDistanceValue(0, "total_distance");
-        this.timerTime = record.getIntValue(0, "total_timer_time")/1000.0;
-        this.elapsedTime = record.getIntValue(0, "total_elapsed_time")/1000.0;
-        this.calories = record.getIntValue(0, "total_calories");
-        
-        record = repo.getFitRecord("activity");
-        this.localTimestamp = record.getTimeValue(0, "local_timestamp");
+    public Track(String filename) throws IOException {
+        this(filename, null);
+    }
+    
+    /**
+     * Constructor. Creates a Track using the data stored in a .FIT file,
+     * passing its points through a pipeline of filters before the Track's
+     * bounds and laps are worked out from them.
+     * @param filename The filename of the .FIT file for the Track.
+     * @param pipeline The filters to apply to the points, or null to keep them as recorded.
+     * @throws IOException If the file could not be read or decoded.
+     */
+    public Track(String filename, PointPipeline pipeline) throws IOException {
+        long start = OPEN_TIMER.start();
+        laps = new ArrayList<>();
+        points = new PointStore();
+        Parser parser = new Parser(pipeline);
+        long phase = DECODE_TIMER.start();
+        FitDecoder.decode(filename, parser);
+        DECODE_TIMER.stop(phase);
+        phase = FINISH_TIMER.start();
+        parser.finish();
+        FINISH_TIMER.stop(phase);
+        OPEN_TIMER.stop(start);
+    }
+    
+    /**
+     * Constructor. Creates a Track from data that has already been parsed,
+     * e.g. when reopening a cached track.
+     * @param points The track points.
+     * @param laps The laps recorded in the track.
+     * @param distance Total distance in meters.
+     * @param timerTime Timer time in seconds.
+     * @param elapsedTime Elapsed time in seconds.
+     * @param calories Calories burned.
+     * @param localTimestamp Local time of the activity (may be null).
+     * @param limits Indices of the most northern, southern, eastern and western points.
+     */
+    Track(PointStore points, List<Segment> laps, double distance, double timerTime, double elapsedTime,
+            int calories, DateTime localTimestamp, int[] limits) {
+        this.points = points;
+        this.laps = new ArrayList<>(laps);
+        this.distance = distance;
+        this.timerTime = timerTime;
+        this.elapsedTime = elapsedTime;
+        this.calories = calories;
+        this.localTimestamp = localTimestamp;
+        setLimits(limits);
+        resolveLapPoints();
+    }
+    
+    /**
+     * Constructor. Creates an empty track for an activity which is still
+     * being recorded. Its points, laps and totals are filled in by append.
+     */
+    public Track() {
+        laps = new ArrayList<>();
+        points = new PointStore();
     }
     
     //<editor-fold defaultstate="collapsed" desc="Info Getter Methods">
@@ -126,10 +184,95 @@ public class Track {
         return laps.size();
     }
     
+    /**
+     * Returns the laps recorded in the track.
+     * @return Unmodifiable list of laps.
+     */
+    public List<Segment> getLaps() {
+        return Collections.unmodifiableList(laps);
+    }
+    
+    /**
+     * Returns the points recorded between two times, found by binary search
+     * of the points' timestamps.
+     * @param start The start time (inclusive).
+     * @param end The end time (inclusive).
+     * @return The range of points, which refers to the track's points rather than copying them.
+     */
+    public PointRange pointsBetween(DateTime start, DateTime end) {
+        return points.rangeBetween(start.getMilliseconds(PointStore.UTC), end.getMilliseconds(PointStore.UTC));
+    }
+    
+    /**
+     * Returns the points which lie within a Segment.
+     * @param seg The Segment of interest.
+     * @return The range of points in the segment.
+     */
+    public PointRange pointsIn(Segment seg) {
+        return points.rangeBetween(seg.getStartMillis(), seg.getEndMillis());
+    }
+    
+    /**
+     * Fills in the start and end points of every lap.
+     */
+    private void resolveLapPoints() {
+        for (Segment lap : laps) resolveLapPoints(lap);
+    }
+    
+    private void resolveLapPoints(Segment lap) {
+        PointRange range = pointsIn(lap);
+        if (range.isEmpty()) return;
+        lap.setStartPoint(range.get(0));
+        lap.setEndPoint(range.get(range.size() - 1));
+    }
+    
+    /**
+     * Returns the GPS track points recorded in the track.
+     * @return The column store of track points.
+     */
+    public PointStore getPoints() {
+        return points;
+    }
+    
     //</editor-fold>
     
     //<editor-fold defaultstate="collapsed" desc="GPS & Map Info Methods">
       
+    private void setLimits(int[] limits) {
+        if (points.isEmpty()) return;
+        limit = new Point[]{points.get(limits[N]), points.get(limits[S]), points.get(limits[E]), points.get(limits[W])};
+    }
+    
+    /**
+     * Returns the indices of the points at the limits of the track.
+     * @return Array of point indices in the order north, south, east, west.
+     */
+    int[] getLimitIndices() {
+        int[] indices = new int[4];
+        for (int i = 0; i < 4; i++) {
+            if (limit[i] instanceof TrackPoint) indices[i] = ((TrackPoint) limit[i]).getIndex();
+        }
+        return indices;
+    }
+    
+    /**
+     * Returns the map projection of the track's points, creating it on first use.
+     * @return The projection of the track.
+     */
+    public synchronized TrackProjection getProjection() {
+        if (projection == null) projection = new TrackProjection(points);
+        return projection;
+    }
+    
+    /**
+     * Returns the range statistics of the track, building them on first use.
+     * @return The range statistics of the track's points.
+     */
+    public synchronized RangeStats getRangeStats() {
+        if (rangeStats == null) rangeStats = new RangeStats(points);
+        return rangeStats;
+    }
+    
     public Point getCentrePoint() {
         double lat = 0.5*(limit[N].lat + limit[S].lat);
         double lon = 0.5*(limit[E].lon + limit[W].lon);
@@ -149,6 +292,74 @@ public class Track {
     
     //</editor-fold>
     
+    //<editor-fold defaultstate="collapsed" desc="Live Recording Methods">
+    
+    /**
+     * Adds the points, laps and totals decoded from the next piece of an
+     * activity which is still being recorded. The limits are extended by
+     * looking at the new points alone and the projection is extended rather
+     * than rebuilt, so the cost is in proportion to the size of the batch.
+     * Must be called on the thread which draws the track.
+     * @param batch The messages decoded since the last batch.
+     * @return The index of the first new point.
+     */
+    public synchronized int append(Batch batch) {
+        int from = points.size();
+        points.addAll(batch.points);
+        int n = points.size();
+        if (n > from) {
+            int[] limits = from == 0 ? new int[4] : getLimitIndices();
+            for (int i = from; i < n; i++) {
+                double lat = points.getLat(i);
+                double lon = points.getLon(i);
+                if (lat > points.getLat(limits[N])) limits[N] = i;
+                if (lat < points.getLat(limits[S])) limits[S] = i;
+                if (lon > points.getLon(limits[E])) limits[E] = i;
+                if (lon < points.getLon(limits[W])) limits[W] = i;
+            }
+            setLimits(limits);
+            if (projection != null) projection.append(points);
+            rangeStats = null;
+        }
+        for (Segment lap : batch.laps) {
+            resolveLapPoints(lap);
+            laps.add(lap);
+        }
+        if (batch.localTimestamp != null) localTimestamp = batch.localTimestamp;
+        
+        if (batch.complete) {
+            distance = batch.distance;
+            timerTime = batch.timerTime;
+            elapsedTime = batch.elapsedTime;
+            calories = batch.calories;
+            complete = true;
+        } else if (!complete && n > 0) {
+            /* Until the session is recorded, the totals run up to the latest point */
+            long first = points.getTime(0);
+            long last = points.getTime(n - 1);
+            distance = points.getDistance(n - 1);
+            elapsedTime = (last - first)/1000.0;
+            double lapTime = 0;
+            long lapEnd = first;
+            for (Segment lap : laps) {
+                lapTime += lap.getTimerTime();
+                lapEnd = lap.getEndMillis();
+            }
+            timerTime = lapTime + Math.max(0, last - lapEnd)/1000.0;
+        }
+        return from;
+    }
+    
+    /**
+     * Returns whether the activity has finished recording.
+     * @return True once the session, with the final totals, has been added.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+    
+    //</editor-fold>
+    
     public void printLapInfoTable() {
         System.out.printf("%3s%12s%12s\n", "Lap", "Dist (km)", "Time (s)");
         System.out.println("---------------------------");
@@ -159,54 +370,127 @@ public class Track {
     
     
     /**
-     * Parses laps from a FitRecord into Segment objects.
-     * @param record The FitRecord of "laps".
+     * Receives the decoded messages of a .FIT file and stores them in the Track.
      */
-    private void parseLaps(FitRecord record) {
-        int numLaps = record.getNumberOfRecordValues();
-        laps = new ArrayList<>();
+    private class Parser implements FitDecoder.Handler {
+        private final PointPipeline pipeline;
+        private int north, south, east, west;
+        
+        Parser(PointPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
         
-        for (int i = 0; i < numLaps; i++) {
-            DateTime startTime  = record.getTimeValue(i, "start_time");
-            DateTime endTime    = record.getTimeValue(i, "timestamp");
-            double timerTime    = record.getIntValue(i, "total_timer_time")/1000.0;
-            double elapsedTime  = record.getIntValue(i, "total_elapsed_time")/1000.0;
-            double distance     = record.getDistanceValue(i, "total_distance");
+        @Override
+        public void onRecord(long timeMillis, double lat, double lon, double alt, double speed, double distance) {
+            int i = points.size();
+            points.add(timeMillis, lat, lon, alt, speed, distance);
             
+            /* Find the coordinate bounds now to avoid going through all points later */
+            if (lat > points.getLat(north)) north = i;
+            if (lat < points.getLat(south)) south = i;
+            if (lon > points.getLon(east))  east = i;
+            if (lon < points.getLon(west))  west = i;
+        }
+        
+        /**
+         * Completes the Track once every message has been decoded.
+         */
+        void finish() {
+            points.trim();
+            if (pipeline != null) {
+                points = pipeline.process(points);
+                findLimits();
+            }
+            setLimits(new int[]{north, south, east, west});
+            resolveLapPoints();
+            DebugLogger.debug("Parsed all track points.");
+        }
+
+        /**
+         * Finds the coordinate bounds again once the pipeline has moved the points.
+         */
+        private void findLimits() {
+            north = south = east = west = 0;
+            double[] lat = points.latColumn();
+            double[] lon = points.lonColumn();
+            for (int i = 1; i < points.size(); i++) {
+                if (lat[i] > lat[north]) north = i;
+                if (lat[i] < lat[south]) south = i;
+                if (lon[i] > lon[east])  east = i;
+                if (lon[i] < lon[west])  west = i;
+            }
+        }
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            DateTime startTime = DateTime.forInstant(startMillis, PointStore.UTC);
+            DateTime endTime = DateTime.forInstant(endMillis, PointStore.UTC);
             laps.add(new Segment(startTime, endTime, timerTime, elapsedTime, distance));
         }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            Track.this.distance = distance;
+            Track.this.timerTime = timerTime;
+            Track.this.elapsedTime = elapsedTime;
+            Track.this.calories = calories;
+        }
+
+        @Override
+        public void onActivity(long localTimestampMillis) {
+            localTimestamp = DateTime.forInstant(localTimestampMillis, PointStore.UTC);
+        }
     }
     
     /**
-     * Parses track points from a FitRecord.
-     * @param record The FitRecord containing "records".
+     * Collects the messages decoded from a piece of an activity which is still
+     * being recorded, so that they can be handed to the thread which draws
+     * the track and added in one go.
      */
-    private void parseTrackPoints(FitRecord record) {
-        int numPoints = record.getNumberOfRecordValues();
-        points = new ArrayList<>();
-        limit = new Point[]{new Point(-90,0), new Point(90,0), new Point(0,-180), new Point(0,180)};
+    public static class Batch implements FitDecoder.Handler {
+        private final PointStore    points = new PointStore(256);
+        private final List<Segment> laps = new ArrayList<>();
+        private DateTime            localTimestamp;
         
-        for (int i = 0; i < numPoints; i++) {
-            DateTime timestamp = record.getTimeValue(i, "timestamp");
-            
-            double lat = record.getLatLonValue(i, "position_lat");
-            double lon = record.getLatLonValue(i, "position_long");
-            
-            double alt = record.getAltitudeValue(i, "altitude");
-            
-            double speed = record.getSpeedValue(i, "speed");
-            double distance = record.getDistanceValue(i, "distance");
-            
-            TrackPoint tp = new TrackPoint(timestamp, lat, lon, alt, speed, distance);
-            points.add(tp);
-            
-            /* Find the coordinate bounds now to avoid going through all points later */
-            if (lat > limit[N].lat) limit[N] = tp;
-            if (lat < limit[S].lat) limit[S] = tp;
-            if (lon > limit[E].lon) limit[E] = tp;
-            if (lon < limit[W].lon) limit[W] = tp;
+        private boolean complete;
+        private double  distance;
+        private double  timerTime;
+        private double  elapsedTime;
+        private int     calories;
+        
+        @Override
+        public void onRecord(long timeMillis, double lat, double lon, double alt, double speed, double distance) {
+            points.add(timeMillis, lat, lon, alt, speed, distance);
+        }
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            DateTime startTime = DateTime.forInstant(startMillis, PointStore.UTC);
+            DateTime endTime = DateTime.forInstant(endMillis, PointStore.UTC);
+            laps.add(new Segment(startTime, endTime, timerTime, elapsedTime, distance));
+        }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            this.distance = distance;
+            this.timerTime = timerTime;
+            this.elapsedTime = elapsedTime;
+            this.calories = calories;
+            this.complete = true;
+        }
+
+        @Override
+        public void onActivity(long localTimestampMillis) {
+            localTimestamp = DateTime.forInstant(localTimestampMillis, PointStore.UTC);
+        }
+        
+        public int getNumPoints() {
+            return points.size();
+        }
+        
+        public boolean isEmpty() {
+            return points.isEmpty() && laps.isEmpty() && !complete && localTimestamp == null;
         }
-        DebugLogger.debug("Parsed all track points.");
     }
     
     public static String timeToString(double timeInSeconds, boolean withDecimal, boolean showHours) {
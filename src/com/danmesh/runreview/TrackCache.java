@@ -0,0 +1,352 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import hirondelle.date4j.DateTime;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import net.studioblueplanet.logger.DebugLogger;
+
+/**
+ * An on-disk cache of parsed Tracks, so that a .FIT file only needs to be
+ * decoded the first time it is opened.
+ * Entries are keyed by a hash of the source file's contents, the version of
+ * the parser (Track.PARSE_VERSION) and the id of the cache's point pipeline,
+ * so a file parsed by an older decoder or through another pipeline is parsed
+ * again rather than served stale. Each entry holds the track summary, its
+ * laps and its point columns in a compact binary form, and is reopened
+ * through a memory-mapped FileChannel. Entries that are stale or corrupt are
+ * detected on reopen and rebuilt from the source file.
+ * @author Dan
+ */
+public class TrackCache {
+    public static final String DEFAULT_DIRECTORY = "resources/cache/tracks";
+
+    private static final int    MAGIC = 0x52525443;  // "RRTC"
+    private static final int    VERSION = 2;
+    private static final String SUFFIX = ".rrt";
+
+    private static final int HASH_BYTES = 32;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + HASH_BYTES + 8*3 + 4 + 8 + 4 + 4 + 4*4;
+    private static final int LAP_BYTES = 8*5;
+    private static final int POINT_BYTES = 8*6;
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final Metrics.Counter HITS = Metrics.counter("trackcache.hit");
+    private static final Metrics.Counter MISSES = Metrics.counter("trackcache.miss");
+    private static final Metrics.Counter REBUILDS = Metrics.counter("trackcache.rebuild");
+    private static final Metrics.Timer  HASH_TIMER = Metrics.timer("trackcache.hash");
+    private static final Metrics.Timer  READ_TIMER = Metrics.timer("trackcache.read");
+    private static final Metrics.Timer  WRITE_TIMER = Metrics.timer("trackcache.write");
+
+    private final File          directory;
+    private final PointPipeline pipeline;
+
+    public TrackCache() {
+        this(new File(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Constructor. Creates a cache stored in the given directory.
+     * @param directory The directory holding the cache entries.
+     */
+    public TrackCache(File directory) {
+        this(directory, null);
+    }
+
+    /**
+     * Constructor. Creates a cache of tracks whose points are passed through a
+     * pipeline. Entries made through different pipelines are kept apart, so
+     * several caches may share a directory.
+     * @param directory The directory holding the cache entries.
+     * @param pipeline The filters to apply to the points, or null to keep them as recorded.
+     */
+    public TrackCache(File directory, PointPipeline pipeline) {
+        this.directory = directory;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * @return The pipeline the cached tracks' points pass through, or null if they are kept as recorded.
+     */
+    public PointPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Opens the Track for a .FIT file, from the cache if possible. If there is
+     * no valid entry the file is decoded and a new entry is written.
+     * @param filename The filename of the .FIT file.
+     * @return The parsed Track.
+     * @throws IOException If the file could not be read or decoded.
+     */
+    public Track open(String filename) throws IOException {
+        long start = HASH_TIMER.start();
+        byte[] hash = key(new File(filename).toPath());
+        HASH_TIMER.stop(start);
+        File entry = entryFile(hash);
+
+        if (entry.exists()) {
+            try {
+                start = READ_TIMER.start();
+                Track track = read(entry, hash);
+                READ_TIMER.stop(start);
+                if (track != null) {
+                    HITS.increment();
+                    return track;
+                }
+                DebugLogger.info("Stale cache entry for " + filename + ", rebuilding.");
+            } catch (IOException | RuntimeException e) {
+                DebugLogger.error("Corrupt cache entry for " + filename + ", rebuilding: " + e);
+            }
+        }
+
+        if (entry.exists()) REBUILDS.increment();
+        MISSES.increment();
+        Track track = new Track(filename, pipeline);
+        try {
+            start = WRITE_TIMER.start();
+            write(entry, hash, track);
+            WRITE_TIMER.stop(start);
+        } catch (IOException e) {
+            /* A failed write only costs us the next reopen */
+            DebugLogger.error("Could not write cache entry for " + filename + ": " + e.getMessage());
+        }
+        return track;
+    }
+
+    private File entryFile(byte[] hash) {
+        StringBuilder name = new StringBuilder(2*hash.length + SUFFIX.length());
+        for (byte b : hash) name.append(String.format("%02x", b));
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+
+    /**
+     * Calculates the key of a file's entry: the SHA-256 hash of its contents,
+     * the parser version and the pipeline id.
+     * @param file Path of the file.
+     * @return The 32 byte key.
+     * @throws IOException If the file could not be read.
+     */
+    byte[] key(Path file) throws IOException {
+        MessageDigest digest = digest();
+        digest.update(hash(file));
+        digest.update(ByteBuffer.allocate(4).putInt(Track.PARSE_VERSION).array());
+        if (pipeline != null) digest.update(pipeline.getId().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of a file's contents.
+     * @param file Path of the file.
+     * @return The 32 byte hash.
+     * @throws IOException If the file could not be read.
+     */
+    static byte[] hash(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest digest = digest();
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return digest.digest();
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Reading">
+
+    /**
+     * Reads a cache entry.
+     * @param entry The cache entry file.
+     * @param hash The expected key of the entry.
+     * @return The cached Track, or null if the entry is for a different version, parser or source.
+     * @throws IOException If the entry could not be read or is corrupt.
+     */
+    Track read(File entry, byte[] hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + 4) throw new IOException("Truncated cache entry");
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer buf = map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buf.getInt() != MAGIC) throw new IOException("Not a cache entry");
+            if (buf.getInt() != VERSION) return null;
+            if (buf.getInt() != Track.PARSE_VERSION) return null;
+            byte[] storedHash = new byte[HASH_BYTES];
+            buf.get(storedHash);
+            if (!Arrays.equals(hash, storedHash)) return null;
+
+            /* Everything is covered by the trailing checksum */
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate().position(0).limit((int) size - 4));
+            if ((int) crc.getValue() != buf.getInt((int) size - 4)) throw new IOException("Checksum mismatch");
+
+            double distance = buf.getDouble();
+            double timerTime = buf.getDouble();
+            double elapsedTime = buf.getDouble();
+            int calories = buf.getInt();
+            long localMillis = buf.getLong();
+            int numLaps = buf.getInt();
+            int numPoints = buf.getInt();
+            int[] limits = {buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt()};
+
+            if (size != HEADER_BYTES + (long) numLaps*LAP_BYTES + (long) numPoints*POINT_BYTES + 4) {
+                throw new IOException("Cache entry size does not match its header");
+            }
+
+            List<Segment> laps = new ArrayList<>(numLaps);
+            for (int i = 0; i < numLaps; i++) {
+                DateTime start = DateTime.forInstant(buf.getLong(), PointStore.UTC);
+                DateTime end = DateTime.forInstant(buf.getLong(), PointStore.UTC);
+                laps.add(new Segment(start, end, buf.getDouble(), buf.getDouble(), buf.getDouble()));
+            }
+
+            long[] time = new long[numPoints];
+            buf.asLongBuffer().get(time);
+            buf.position(buf.position() + 8*numPoints);
+            double[][] columns = new double[5][numPoints];
+            for (double[] column : columns) {
+                buf.asDoubleBuffer().get(column);
+                buf.position(buf.position() + 8*numPoints);
+            }
+
+            PointStore points = new PointStore(time, columns[0], columns[1], columns[2], columns[3], columns[4], numPoints);
+            DateTime localTimestamp = localMillis == NO_TIMESTAMP ? null : DateTime.forInstant(localMillis, PointStore.UTC);
+            return new Track(points, laps, distance, timerTime, elapsedTime, calories, localTimestamp, limits);
+        }
+    }
+
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Writing">
+
+    /**
+     * Writes a cache entry. The entry is written to a temporary file first and
+     * then moved into place, so a reader never sees a partial entry.
+     * @param entry The cache entry file.
+     * @param hash The key of the entry.
+     * @param track The parsed Track.
+     * @throws IOException If the entry could not be written.
+     */
+    void write(File entry, byte[] hash, Track track) throws IOException {
+        Files.createDirectories(directory.toPath());
+        Path temp = Files.createTempFile(directory.toPath(), "track", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                EntryWriter out = new EntryWriter(channel);
+                List<Segment> laps = track.getLaps();
+                PointStore points = track.getPoints();
+                int n = points.size();
+
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(Track.PARSE_VERSION);
+                out.put(hash);
+                out.putDouble(track.getDistance());
+                out.putDouble(track.getTimerTime());
+                out.putDouble(track.getElapsedTime());
+                out.putInt(track.getCalories());
+                DateTime local = track.getLocalTimestamp();
+                out.putLong(local == null ? NO_TIMESTAMP : local.getMilliseconds(PointStore.UTC));
+                out.putInt(laps.size());
+                out.putInt(n);
+                for (int limit : track.getLimitIndices()) out.putInt(limit);
+
+                for (Segment lap : laps) {
+                    out.putLong(lap.getStartMillis());
+                    out.putLong(lap.getEndMillis());
+                    out.putDouble(lap.getTimerTime());
+                    out.putDouble(lap.getElapsedTime());
+                    out.putDouble(lap.getDistance());
+                }
+
+                long[] time = points.timeColumn();
+                for (int i = 0; i < n; i++) out.putLong(time[i]);
+                for (double[] column : new double[][]{points.latColumn(), points.lonColumn(),
+                        points.altColumn(), points.speedColumn(), points.distanceColumn()}) {
+                    for (int i = 0; i < n; i++) out.putDouble(column[i]);
+                }
+                out.finish();
+            }
+            Files.move(temp, entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Buffers the values of an entry on their way to disk, keeping a running
+     * checksum which is appended when the entry is finished.
+     */
+    private static class EntryWriter {
+        private final FileChannel   channel;
+        private final ByteBuffer    buf = ByteBuffer.allocateDirect(64*1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32         crc = new CRC32();
+
+        EntryWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            ensure(bytes.length);
+            buf.put(bytes);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush();
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) channel.write(buf);
+            buf.clear();
+        }
+
+        void finish() throws IOException {
+            flush();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            channel.force(false);
+        }
+    }
+
+    // </editor-fold>
+}
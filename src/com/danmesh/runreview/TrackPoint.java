@@ -5,33 +5,24 @@ package com.danmesh.runreview;
 import hirondelle.date4j.DateTime;
 
 /**
- * This class contains the details of a single point recorded on a route.
+ * This class is a lightweight view of a single point recorded on a route.
+ * The point data itself lives in the columns of a PointStore.
  * @author Dan
  */
 public class TrackPoint extends Point {
-    private DateTime    timestamp;
-    
-    private double      alt;
-    
-    private double      speed;
-    private double      distance;
+    private final PointStore store;
+    private final int        index;
 
     
     /**
-     * Constructor. Creates a TrackPoint from given data.
-     * @param timestamp
-     * @param lat
-     * @param lon
-     * @param alt
-     * @param speed
-     * @param distance 
+     * Constructor. Creates a view of one row of a PointStore.
+     * @param store The store holding the point data.
+     * @param index The index of the point in the store.
      */
-    public TrackPoint(DateTime timestamp, double lat, double lon, double alt, double speed, double distance) {
-        super(lat, lon);
-        this.timestamp = timestamp;
-        this.alt = alt;
-        this.speed = speed;
-        this.distance = distance;
+    TrackPoint(PointStore store, int index) {
+        super(store.getLat(index), store.getLon(index));
+        this.store = store;
+        this.index = index;
     }
     
     /**
@@ -40,25 +31,27 @@ public class TrackPoint extends Point {
      * @return True if the point lies within the segment, false if not.
      */
     public boolean isInSegment(Segment seg) {
-        DateTime startTime = seg.getStartTime();
-        DateTime endTime = seg.getEndTime();
-        return timestamp.gteq(startTime) && timestamp.lteq(endTime);
+        return store.isInSegment(index, seg);
+    }
+    
+    public int getIndex() {
+        return index;
     }
     
     public DateTime getTimestamp() {
-        return timestamp;
+        return store.getTimestamp(index);
     }
 
     public double getAlt() {
-        return alt;
+        return store.getAlt(index);
     }
 
     public double getSpeed() {
-        return speed;
+        return store.getSpeed(index);
     }
 
     public double getDistance() {
-        return distance;
+        return store.getDistance(index);
     }
     
     /**
@@ -67,7 +60,7 @@ public class TrackPoint extends Point {
      */
     /*@Override
     public String toString() {
-        return "[Time: " + timestamp + ", Dist: " + distance + "]";
+        return "[Time: " + getTimestamp() + ", Dist: " + getDistance() + "]";
     }*/
 
 }
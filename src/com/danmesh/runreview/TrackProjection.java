@@ -0,0 +1,241 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Web-Mercator projection of a track's points.
+ * World coordinates are calculated once for the whole track, and the pixel
+ * coordinates for each zoom level are derived from them on first use and kept
+ * in a small cache, so redrawing a track needs no trigonometry.
+ * @author Dan
+ */
+public class TrackProjection {
+    private static final int MAX_CACHED_ZOOMS = 4;
+
+    private static final Metrics.Timer PROJECT_TIMER = Metrics.timer("projection.world");
+    private static final Metrics.Timer PIXELS_TIMER = Metrics.timer("projection.pixels");
+    private static final Metrics.Timer SIMPLIFY_TIMER = Metrics.timer("projection.simplify");
+
+    private double[]        worldX;
+    private double[]        worldY;
+    private int             size;
+    
+    /* Bounds of the world coordinates, in the form [minX, minY, maxX, maxY] */
+    private final double[]  worldBounds = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+    /** Simplification tolerance, in pixels at the zoom being drawn */
+    private static final double PIXEL_TOLERANCE = 0.5;
+
+    /* The number of points at the end of a growing track which are simplified again as it grows */
+    private static final int SETTLE_POINTS = 4096;
+
+    private final Map<Integer, int[][]> pixelCache = new ZoomCache();
+    private final Map<Integer, int[][]> simplifiedCache = new ZoomCache();
+    private double[] significance;
+
+    /* The number of points whose significance is known, and the first point of the piece still growing */
+    private int significant;
+    private int anchor;
+
+    /**
+     * Constructor. Projects every point in a store into world coordinates.
+     * @param points The points to project.
+     */
+    public TrackProjection(PointStore points) {
+        long start = PROJECT_TIMER.start();
+        worldX = new double[points.size()];
+        worldY = new double[points.size()];
+        project(points);
+        PROJECT_TIMER.stop(start);
+    }
+
+    /**
+     * Projects the points which have been added to a store since it was last
+     * projected, for a track which is still being recorded. The cached pixel
+     * coordinates are extended with the new points. Only the end of the track
+     * since the last settled point is simplified again, as a piece of its
+     * own, and once that piece is longer than SETTLE_POINTS its last point
+     * becomes the start of the next. The settled points keep their
+     * significance, so a pan or zoom does not simplify the whole track again.
+     * @param points The store this projection was made from, with points added to the end.
+     */
+    public synchronized void append(PointStore points) {
+        if (points.size() <= size) return;
+        long start = PROJECT_TIMER.start();
+        if (points.size() > worldX.length) {
+            int capacity = Math.max(points.size(), worldX.length + (worldX.length >> 1) + 1);
+            worldX = Arrays.copyOf(worldX, capacity);
+            worldY = Arrays.copyOf(worldY, capacity);
+        }
+        int from = size;
+        project(points);
+        for (Map.Entry<Integer, int[][]> entry : pixelCache.entrySet()) {
+            entry.setValue(extend(entry.getValue(), entry.getKey(), from));
+        }
+        simplifiedCache.clear();
+        PROJECT_TIMER.stop(start);
+    }
+
+    /**
+     * Adds the pixel coordinates of the points from an index onwards to a cached array.
+     */
+    private int[][] extend(int[][] xy, int zoom, int from) {
+        double scale = 1 << zoom;
+        int[] xs = Arrays.copyOf(xy[0], size);
+        int[] ys = Arrays.copyOf(xy[1], size);
+        for (int i = from; i < size; i++) {
+            xs[i] = (int) (worldX[i]*scale);
+            ys[i] = (int) (worldY[i]*scale);
+        }
+        return new int[][]{xs, ys};
+    }
+
+    /**
+     * Projects the points from the current size to the end of the store.
+     */
+    private void project(PointStore points) {
+        int n = points.size();
+        double[] lat = points.latColumn();
+        double[] lon = points.lonColumn();
+        GeoKernels.get().project(lat, lon, size, n, worldX, worldY);
+        for (int i = size; i < n; i++) {
+            worldBounds[0] = Math.min(worldBounds[0], worldX[i]);
+            worldBounds[1] = Math.min(worldBounds[1], worldY[i]);
+            worldBounds[2] = Math.max(worldBounds[2], worldX[i]);
+            worldBounds[3] = Math.max(worldBounds[3], worldY[i]);
+        }
+        size = n;
+    }
+
+    /**
+     * Returns the pixel coordinates of every point at a zoom level, as defined
+     * by Point.getPixelCoords. The arrays are shared and must not be modified.
+     * @param zoom The zoom level of the map.
+     * @return Array in the form [xs, ys].
+     */
+    public synchronized int[][] getPixelCoords(int zoom) {
+        int[][] xy = pixelCache.get(zoom);
+        if (xy == null) {
+            long start = PIXELS_TIMER.start();
+            double scale = 1 << zoom;
+            int[] xs = new int[size];
+            int[] ys = new int[size];
+            for (int i = 0; i < size; i++) {
+                xs[i] = (int) (worldX[i]*scale);
+                ys[i] = (int) (worldY[i]*scale);
+            }
+            xy = new int[][]{xs, ys};
+            pixelCache.put(zoom, xy);
+            PIXELS_TIMER.stop(start);
+        }
+        return xy;
+    }
+
+    /**
+     * Returns the pixel coordinates of the points which are visible at a zoom
+     * level. Points which lie within half a pixel of the simplified line are
+     * left out. The end points are always included. The arrays are shared and
+     * must not be modified.
+     * @param zoom The zoom level of the map.
+     * @return Array in the form [xs, ys].
+     */
+    public synchronized int[][] getSimplifiedPixelCoords(int zoom) {
+        int[][] xy = simplifiedCache.get(zoom);
+        if (xy == null) {
+            long start = SIMPLIFY_TIMER.start();
+            updateSignificance();
+            double scale = 1 << zoom;
+            int[] kept = PolylineSimplifier.select(significance, size, PIXEL_TOLERANCE/scale);
+            int[] xs = new int[kept.length];
+            int[] ys = new int[kept.length];
+            for (int i = 0; i < kept.length; i++) {
+                xs[i] = (int) (worldX[kept[i]]*scale);
+                ys[i] = (int) (worldY[kept[i]]*scale);
+            }
+            xy = new int[][]{xs, ys};
+            simplifiedCache.put(zoom, xy);
+            SIMPLIFY_TIMER.stop(start);
+        }
+        return xy;
+    }
+
+    /**
+     * Brings the significance of the points up to date with the projection.
+     * A track which has not grown is simplified in one piece.
+     */
+    private void updateSignificance() {
+        if (significant == size) return;
+        if (significance == null) {
+            significance = PolylineSimplifier.significance(worldX, worldY, size);
+        } else {
+            if (significant - anchor > SETTLE_POINTS) anchor = significant - 1;
+            if (significance.length < size) significance = Arrays.copyOf(significance, worldX.length);
+            PolylineSimplifier.significance(worldX, worldY, anchor, size, significance);
+        }
+        significant = size;
+    }
+
+    /**
+     * Returns the pixel coordinates of a run of points at a zoom level,
+     * worked out afresh rather than cached, e.g. for the newly recorded end of a track.
+     * @param zoom The zoom level of the map.
+     * @param from The index of the first point.
+     * @param to The index after the last point.
+     * @return Array in the form [xs, ys].
+     */
+    public synchronized int[][] getPixelCoords(int zoom, int from, int to) {
+        double scale = 1 << zoom;
+        int[] xs = new int[to - from];
+        int[] ys = new int[to - from];
+        for (int i = from; i < to; i++) {
+            xs[i - from] = (int) (worldX[i]*scale);
+            ys[i - from] = (int) (worldY[i]*scale);
+        }
+        return new int[][]{xs, ys};
+    }
+
+    /**
+     * Returns the bounding box of the track in pixel coordinates.
+     * @param zoom The zoom level of the map.
+     * @return Array in the form [minX, minY, maxX, maxY].
+     */
+    public synchronized int[] getPixelBounds(int zoom) {
+        double scale = 1 << zoom;
+        return new int[]{(int) (worldBounds[0]*scale), (int) (worldBounds[1]*scale),
+                (int) (worldBounds[2]*scale), (int) (worldBounds[3]*scale)};
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The world coordinate columns are shared, not copied, and must not be modified.
+     * A projection which has been appended to may have columns longer than its size.
+     */
+    double[] worldXColumn() {
+        return worldX;
+    }
+
+    double[] worldYColumn() {
+        return worldY;
+    }
+
+    /**
+     * A small map of the arrays for the most recently used zoom levels.
+     */
+    private static class ZoomCache extends LinkedHashMap<Integer, int[][]> {
+        ZoomCache() {
+            super(8, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[][]> eldest) {
+            return size() > MAX_CACHED_ZOOMS;
+        }
+    }
+}
@@ -3,19 +3,86 @@
 package com.danmesh.runreview;
 
 /**
- * 
+ * The main window, showing the summary of an activity and a map of its track.
+ * The window opens with just the summary, and the map is filled in once the
+ * track has been loaded.
  * @author Dan
  */
 public class TrackView extends javax.swing.JFrame {
 
-    private final Track track;
+    private final ActivitySummary summary;
+    private Track track;
     
-    public TrackView(Track trackToView) {
-        this.track = trackToView;
+    private javax.swing.JFrame lapTableFrame;
+    private javax.swing.JFrame lapChartFrame;
+    private javax.swing.JFrame seriesChartFrame;
+    
+    public TrackView(ActivitySummary summaryToView) {
+        this.summary = summaryToView;
         initComponents();
         this.setLocationRelativeTo(null);
         this.setVisible(true);
     }
+    
+    /**
+     * Fills in the panels which need the activity's points and laps. Must be
+     * called on the event dispatch thread.
+     * @param loadedTrack The fully loaded track.
+     */
+    public void setTrack(Track loadedTrack) {
+        this.track = loadedTrack;
+        mapPanel.setTrack(track);
+        enableActions();
+    }
+    
+    /**
+     * Shows that the track could not be loaded, in place of the map. The
+     * actions which need the track stay disabled. Must be called on the
+     * event dispatch thread.
+     * @param reason Why the track could not be loaded.
+     */
+    public void loadFailed(String reason) {
+        mapPanel.setError("Could not load the track: " + reason);
+    }
+    
+    /**
+     * Shows the points added to a track which is still being recorded, and
+     * brings the figures up to date. Must be called on the event dispatch
+     * thread, after Track.append.
+     * @param from The index of the first new point, as returned by Track.append.
+     */
+    public void trackExtended(int from) {
+        mapPanel.trackExtended(from);
+        timeLabel.setText(Track.timeToString(track.getTimerTime(), false, true));
+        distanceLabel.setText(String.format("%.2f", track.getDistance()/1000.0) + " km");
+        if (track.getDistance() > 0) paceLabel.setText(track.getPaceString() + " min/km");
+        caloriesLabel.setText(track.getCalories() + " C");
+        if (track.getLocalTimestamp() != null) {
+            dateLabel.setText(track.getDateString());
+            titleLabel.setText(track.getDayOfWeek() + " Run");
+        }
+        enableActions();
+    }
+    
+    private void enableActions() {
+        boolean hasLaps = track.getNumLaps() > 0;
+        showLapTableButton.setEnabled(hasLaps);
+        showLapTableButton1.setEnabled(hasLaps);
+        showSeriesChartButton.setEnabled(!track.getPoints().isEmpty());
+    }
+    
+    /**
+     * Creates a window next to this one which is hidden rather than disposed
+     * when it is closed, so that it can be shown again.
+     */
+    private javax.swing.JFrame createWindow(String title, java.awt.Component content) {
+        javax.swing.JFrame frame = new javax.swing.JFrame(summary.getDayOfWeek() + " Run - " + title);
+        frame.setDefaultCloseOperation(javax.swing.WindowConstants.HIDE_ON_CLOSE);
+        frame.getContentPane().add(content);
+        frame.pack();
+        frame.setLocationRelativeTo(this);
+        return frame;
+    }
 
     @SuppressWarnings("unchecked")
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
@@ -23,7 +90,7 @@ public class TrackView extends javax.swing.JFrame {
 
         mainScrollPane = new javax.swing.JScrollPane();
         scrollPanePanel = new javax.swing.JPanel();
-        mapPanel = new com.danmesh.runreview.MapPanel(track);
+        mapPanel = new com.danmesh.runreview.MapPanel();
         titlePanel = new javax.swing.JPanel();
         dateLabel = new javax.swing.JLabel();
         titleLabel = new javax.swing.JLabel();
@@ -40,6 +107,7 @@ public class TrackView extends javax.swing.JFrame {
         jLabel5 = new javax.swing.JLabel();
         showLapTableButton = new javax.swing.JButton();
         showLapTableButton1 = new javax.swing.JButton();
+        showSeriesChartButton = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("RunReview");
@@ -65,10 +133,10 @@ public class TrackView extends javax.swing.JFrame {
         titlePanel.setBackground(new java.awt.Color(255, 255, 255));
 
         dateLabel.setFont(new java.awt.Font("Lucida Grande", 2, 18)); // NOI18N
-        dateLabel.setText(track.getDateString());
+        dateLabel.setText(summary.getDateString());
 
         titleLabel.setFont(new java.awt.Font("Lucida Grande", 0, 24)); // NOI18N
-        titleLabel.setText(track.getDayOfWeek() + " Run");
+        titleLabel.setText(summary.getDayOfWeek() + " Run");
 
         javax.swing.GroupLayout titlePanelLayout = new javax.swing.GroupLayout(titlePanel);
         titlePanel.setLayout(titlePanelLayout);
@@ -104,16 +172,16 @@ public class TrackView extends javax.swing.JFrame {
         jLabel4.setText("Calories");
 
         timeLabel.setFont(new java.awt.Font("Lucida Grande", 0, 18)); // NOI18N
-        timeLabel.setText(Track.timeToString(track.getTimerTime(), false, true));
+        timeLabel.setText(Track.timeToString(summary.getTimerTime(), false, true));
 
         distanceLabel.setFont(new java.awt.Font("Lucida Grande", 0, 18)); // NOI18N
-        distanceLabel.setText(String.format("%.2f", track.getDistance()/1000.0) + " km");
+        distanceLabel.setText(String.format("%.2f", summary.getDistance()/1000.0) + " km");
 
         paceLabel.setFont(new java.awt.Font("Lucida Grande", 0, 18)); // NOI18N
-        paceLabel.setText(track.getPaceString() + " min/km");
+        paceLabel.setText(summary.getPaceString() + " min/km");
 
         caloriesLabel.setFont(new java.awt.Font("Lucida Grande", 0, 18)); // NOI18N
-        caloriesLabel.setText(track.getCalories() + " C");
+        caloriesLabel.setText(summary.getCalories() + " C");
 
         javax.swing.GroupLayout infoPanelLayout = new javax.swing.GroupLayout(infoPanel);
         infoPanel.setLayout(infoPanelLayout);
@@ -184,6 +252,16 @@ public class TrackView extends javax.swing.JFrame {
             }
         });
 
+        showSeriesChartButton.setFont(new java.awt.Font("Lucida Grande", 0, 14)); // NOI18N
+        showSeriesChartButton.setText("Show pace & elevation");
+        showSeriesChartButton.setEnabled(false);
+        showSeriesChartButton.setPreferredSize(new java.awt.Dimension(100, 33));
+        showSeriesChartButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                showSeriesChartButtonActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout actionButtonPanelLayout = new javax.swing.GroupLayout(actionButtonPanel);
         actionButtonPanel.setLayout(actionButtonPanelLayout);
         actionButtonPanelLayout.setHorizontalGroup(
@@ -193,7 +271,8 @@ public class TrackView extends javax.swing.JFrame {
                 .addGroup(actionButtonPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING, false)
                     .addComponent(jLabel5)
                     .addComponent(showLapTableButton, javax.swing.GroupLayout.DEFAULT_SIZE, 200, Short.MAX_VALUE)
-                    .addComponent(showLapTableButton1, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+                    .addComponent(showLapTableButton1, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addComponent(showSeriesChartButton, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         actionButtonPanelLayout.setVerticalGroup(
@@ -205,6 +284,8 @@ public class TrackView extends javax.swing.JFrame {
                 .addComponent(showLapTableButton, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(showLapTableButton1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(showSeriesChartButton, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -253,12 +334,53 @@ public class TrackView extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void showLapTableButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_showLapTableButtonActionPerformed
-        // TODO add your handling code here:
+        if (lapTableFrame == null) {
+            javax.swing.JTable table = new javax.swing.JTable(new LapTableModel(track.getLaps()));
+            table.setFillsViewportHeight(true);
+            javax.swing.JScrollPane scrollPane = new javax.swing.JScrollPane(table);
+            scrollPane.setPreferredSize(new java.awt.Dimension(500, 400));
+            lapTableFrame = createWindow("Laps", scrollPane);
+        }
+        lapTableFrame.setVisible(true);
+        lapTableFrame.toFront();
     }//GEN-LAST:event_showLapTableButtonActionPerformed
 
     private void showLapTableButton1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_showLapTableButton1ActionPerformed
-        // TODO add your handling code here:
+        if (lapChartFrame == null) {
+            lapChartFrame = createWindow("Lap Times", new LapChartPanel(track.getLaps()));
+        }
+        lapChartFrame.setVisible(true);
+        lapChartFrame.toFront();
     }//GEN-LAST:event_showLapTableButton1ActionPerformed
+
+    private void showSeriesChartButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_showSeriesChartButtonActionPerformed
+        if (seriesChartFrame == null) {
+            PointStore points = track.getPoints();
+            SeriesChartPanel[] charts = {
+                new SeriesChartPanel(points, SeriesChartPanel.Series.PACE, SeriesChartPanel.Axis.DISTANCE),
+                new SeriesChartPanel(points, SeriesChartPanel.Series.ELEVATION, SeriesChartPanel.Axis.DISTANCE),
+                new SeriesChartPanel(points, SeriesChartPanel.Series.SPEED, SeriesChartPanel.Axis.DISTANCE)
+            };
+            javax.swing.JComboBox<String> axisBox = new javax.swing.JComboBox<>(new String[] {"Distance", "Time"});
+            axisBox.addActionListener(e -> {
+                SeriesChartPanel.Axis axis = axisBox.getSelectedIndex() == 0
+                        ? SeriesChartPanel.Axis.DISTANCE : SeriesChartPanel.Axis.TIME;
+                for (SeriesChartPanel chart : charts) chart.setAxis(axis);
+            });
+            javax.swing.JPanel axisPanel = new javax.swing.JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT));
+            axisPanel.add(new javax.swing.JLabel("Plot against:"));
+            axisPanel.add(axisBox);
+
+            javax.swing.JPanel chartPanel = new javax.swing.JPanel(new java.awt.GridLayout(charts.length, 1));
+            for (SeriesChartPanel chart : charts) chartPanel.add(chart);
+            javax.swing.JPanel content = new javax.swing.JPanel(new java.awt.BorderLayout());
+            content.add(axisPanel, java.awt.BorderLayout.NORTH);
+            content.add(chartPanel, java.awt.BorderLayout.CENTER);
+            seriesChartFrame = createWindow("Pace & Elevation", content);
+        }
+        seriesChartFrame.setVisible(true);
+        seriesChartFrame.toFront();
+    }//GEN-LAST:event_showSeriesChartButtonActionPerformed
     
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JPanel actionButtonPanel;
@@ -277,6 +399,7 @@ public class TrackView extends javax.swing.JFrame {
     private javax.swing.JPanel scrollPanePanel;
     private javax.swing.JButton showLapTableButton;
     private javax.swing.JButton showLapTableButton1;
+    private javax.swing.JButton showSeriesChartButton;
     private javax.swing.JLabel timeLabel;
     private javax.swing.JLabel titleLabel;
     private javax.swing.JPanel titlePanel;
@@ -0,0 +1,86 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Known-answer windows for the best effort search.
+ * @author Dan
+ */
+public class BestEffortFinderTest {
+    private static final File FILE = new File("steady.fit");
+    private static final long START = 1500000000000L;
+
+    /**
+     * One point a second: 1000 s at 3 m/s, 500 s at 4 m/s, then 1000 s at 3 m/s.
+     */
+    private static PointStore steadyWithAFastStretch() {
+        PointStore points = new PointStore();
+        for (int i = 0; i <= 2500; i++) {
+            double distance;
+            if (i <= 1000) distance = 3*i;
+            else if (i <= 1500) distance = 3000 + 4*(i - 1000);
+            else distance = 5000 + 3*(i - 1500);
+            points.add(START + 1000L*i, -33.9, 18.4, 100, i > 1000 && i <= 1500 ? 4 : 3, distance);
+        }
+        return points;
+    }
+
+    @Test
+    public void findsTheFastStretch() {
+        BestEffort effort = BestEffortFinder.find(FILE, steadyWithAFastStretch(), 1000);
+
+        assertNotNull(effort);
+        assertEquals(250, effort.getTime(), 1e-9);
+        assertEquals(1000, effort.getStartIndex());
+        assertEquals(1250, effort.getEndIndex());
+        assertEquals(START + 1000*1000, effort.getStartMillis());
+        assertSame(FILE, effort.getFile());
+    }
+
+    @Test
+    public void interpolatesTheEndTime() {
+        /* 1002 m from the start of the stretch ends half way between two points */
+        BestEffort effort = BestEffortFinder.find(FILE, steadyWithAFastStretch(), 1002);
+
+        assertEquals(250.5, effort.getTime(), 1e-9);
+        assertEquals(1000, effort.getStartIndex());
+        assertEquals(1251, effort.getEndIndex());
+    }
+
+    @Test
+    public void windowLongerThanTheStretchIncludesSlowerRunning() {
+        /* The best 3 km holds all 2 km of the stretch and 1 km at 3 m/s */
+        BestEffort effort = BestEffortFinder.find(FILE, steadyWithAFastStretch(), 3000);
+
+        assertEquals(500 + 1000/3.0, effort.getTime(), 1e-6);
+    }
+
+    @Test
+    public void trackShorterThanTheTargetHasNoEffort() {
+        assertNull(BestEffortFinder.find(FILE, steadyWithAFastStretch(), 10000));
+        assertNull(BestEffortFinder.find(FILE, new PointStore(), 1000));
+    }
+
+    @Test
+    public void leaderboardIsFastestFirst() {
+        BestEffortFinder finder = new BestEffortFinder(new double[] {1000});
+        Track slow = new Track();
+        Track fast = new Track();
+        PointStore steady = steadyWithAFastStretch();
+        for (int i = 0; i < 400; i++) {
+            slow.getPoints().add(START + 1000L*i, -33.9, 18.4, 100, 3, 3*i);
+        }
+        fast.getPoints().addAll(steady);
+        finder.add(new File("slow.fit"), slow);
+        finder.add(FILE, fast);
+
+        assertEquals(2, finder.getLeaderboard(1000).size());
+        assertEquals(FILE, finder.getLeaderboard(1000).get(0).getFile());
+        assertEquals(1000/3.0, finder.getLeaderboard(1000).get(1).getTime(), 1e-6);
+    }
+}
@@ -0,0 +1,89 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the compressed point format, and seeks into it.
+ * @author Dan
+ */
+public class CompressedPointsTest {
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void roundTripIsExactAtFitResolution() throws IOException {
+        PointStore points = new Track(FitFixtures.write(1000).getPath()).getPoints();
+        PointStore decoded = CompressedPoints.encode(points).decode();
+
+        assertEquals(points.size(), decoded.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertPoint(points, i, decoded.getTime(i), decoded.getLat(i), decoded.getLon(i),
+                    decoded.getAlt(i), decoded.getSpeed(i), decoded.getDistance(i));
+        }
+    }
+
+    @Test
+    public void finerValuesAreRoundedToFitResolution() {
+        PointStore points = new PointStore();
+        for (int i = 0; i < 300; i++) {
+            points.add(1500000000000L + 1000*i, -33.9 + i*1.234567e-6, 18.4 - i*7.654321e-6,
+                    100 + i*0.0123, 3 + i*1.1e-4, i*3.00123);
+        }
+        PointStore decoded = CompressedPoints.encode(points).decode();
+
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.getTime(i), decoded.getTime(i));
+            assertEquals(points.getLat(i), decoded.getLat(i), 0.5*180/(1L << 31) + EPSILON);
+            assertEquals(points.getLon(i), decoded.getLon(i), 0.5*180/(1L << 31) + EPSILON);
+            assertEquals(points.getAlt(i), decoded.getAlt(i), 0.5/5 + EPSILON);
+            assertEquals(points.getSpeed(i), decoded.getSpeed(i), 0.5/1000 + EPSILON);
+            assertEquals(points.getDistance(i), decoded.getDistance(i), 0.5/100 + EPSILON);
+        }
+    }
+
+    @Test
+    public void emptyStoreRoundTrips() {
+        CompressedPoints compressed = CompressedPoints.encode(new PointStore());
+        assertTrue(compressed.isEmpty());
+        assertEquals(0, compressed.decode().size());
+        assertFalse(compressed.cursor().next());
+    }
+
+    @Test
+    public void cursorSeeksAcrossBlockBoundaries() throws IOException {
+        PointStore points = new Track(FitFixtures.write(1000).getPath()).getPoints();
+        CompressedPoints compressed = CompressedPoints.encode(points);
+        int block = CompressedPoints.BLOCK_SIZE;
+        int n = points.size();
+
+        int[] seeks = {0, 1, block - 1, block, block + 1, 2*block - 1, 2*block, n - 1};
+        for (int from : seeks) {
+            CompressedPoints.Cursor cursor = compressed.cursor(from);
+            for (int i = from; i < Math.min(from + block + 2, n); i++) {
+                assertTrue(cursor.next(), "Seek to " + from);
+                assertEquals(i, cursor.getIndex(), "Seek to " + from);
+                assertPoint(points, i, cursor.getTime(), cursor.getLat(), cursor.getLon(),
+                        cursor.getAlt(), cursor.getSpeed(), cursor.getDistance());
+            }
+        }
+        CompressedPoints.Cursor last = compressed.cursor(n - 1);
+        assertTrue(last.next());
+        assertFalse(last.next());
+        assertFalse(compressed.cursor(n).next());
+        assertThrows(IndexOutOfBoundsException.class, () -> compressed.cursor(n + 1));
+    }
+
+    private static void assertPoint(PointStore points, int i, long time, double lat, double lon, double alt, double speed, double distance) {
+        String at = "Point " + i;
+        assertEquals(points.getTime(i), time, at);
+        assertEquals(points.getLat(i), lat, EPSILON, at);
+        assertEquals(points.getLon(i), lon, EPSILON, at);
+        assertEquals(points.getAlt(i), alt, EPSILON, at);
+        assertEquals(points.getSpeed(i), speed, EPSILON, at);
+        assertEquals(points.getDistance(i), distance, EPSILON, at);
+    }
+}
@@ -0,0 +1,125 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decoding of the synthetic .FIT files, including compressed timestamps.
+ * @author Dan
+ */
+public class FitDecoderTest {
+    private static final long START_MILLIS = FitDecoder.toMillis(1000000000L);
+
+    /**
+     * Collects everything the decoder reports.
+     */
+    private static class Recorder implements FitDecoder.Handler {
+        final List<Long>    times = new ArrayList<>();
+        final List<Double>  distances = new ArrayList<>();
+        int     numLaps;
+        double  lapDistance;
+        double  sessionDistance = Double.NaN;
+        double  sessionTimerTime;
+        int     calories;
+        long    activityMillis;
+        long    localMillis;
+
+        @Override
+        public void onRecord(long timeMillis, double lat, double lon, double alt, double speed, double distance) {
+            times.add(timeMillis);
+            distances.add(distance);
+        }
+
+        @Override
+        public void onLap(long startMillis, long endMillis, double timerTime, double elapsedTime, double distance) {
+            numLaps++;
+            lapDistance += distance;
+        }
+
+        @Override
+        public void onSession(double distance, double timerTime, double elapsedTime, int calories) {
+            sessionDistance = distance;
+            sessionTimerTime = timerTime;
+            this.calories = calories;
+        }
+
+        @Override
+        public void onActivity(long timestampMillis, long localTimestampMillis) {
+            activityMillis = timestampMillis;
+            localMillis = localTimestampMillis;
+        }
+    }
+
+    private static Recorder decode(byte[] file) throws IOException {
+        Recorder recorder = new Recorder();
+        new FitDecoder(ByteBuffer.wrap(file), recorder).decode();
+        return recorder;
+    }
+
+    @Test
+    public void decodesEveryMessage() throws IOException {
+        Recorder r = decode(FitFixtures.build(1000));
+
+        assertEquals(1000, r.times.size());
+        for (int i = 0; i < r.times.size(); i++) {
+            assertEquals(START_MILLIS + 1000L*i, (long)r.times.get(i));
+            assertEquals(3.0*(i + 1), r.distances.get(i), 1e-9);
+        }
+        assertEquals(4, r.numLaps);
+        assertEquals(3000, r.sessionDistance, 1e-9);
+        assertEquals(1000, r.sessionTimerTime, 1e-9);
+        assertEquals(100, r.calories);
+        assertEquals(START_MILLIS + 1000*1000, r.activityMillis);
+        assertEquals(2*3600*1000, r.localMillis - r.activityMillis);
+    }
+
+    @Test
+    public void summaryOnlySkipsTheRecords() throws IOException {
+        Recorder recorder = new Recorder();
+        new FitDecoder(ByteBuffer.wrap(FitFixtures.build(1000)), recorder, true).decode();
+
+        assertTrue(recorder.times.isEmpty());
+        assertEquals(3000, recorder.sessionDistance, 1e-9);
+        assertEquals(START_MILLIS + 1000*1000, recorder.activityMillis);
+    }
+
+    @Test
+    public void compressedTimestampsRollOver() throws IOException {
+        /* Over 32 s of points, so the 5 bit offset wraps several times */
+        Recorder r = decode(FitFixtures.buildCompressed(200, 200, 0));
+
+        assertEquals(200, r.times.size());
+        for (int i = 0; i < r.times.size(); i++) {
+            assertEquals(START_MILLIS + 1000L*i, (long)r.times.get(i), "Point " + i);
+        }
+    }
+
+    @Test
+    public void compressedTimestampsFollowTheEventAfterAPause() throws IOException {
+        /* A pause longer than the 32 s a compressed offset can span, and not a
+           multiple of it, so only the restart event's timestamp gives the right base */
+        int pauseAt = 100, pause = 95;
+        Recorder r = decode(FitFixtures.buildCompressed(200, pauseAt, pause));
+
+        assertEquals(200, r.times.size());
+        for (int i = 0; i < r.times.size(); i++) {
+            long expected = START_MILLIS + 1000L*(i + (i >= pauseAt ? pause : 0));
+            assertEquals(expected, (long)r.times.get(i), "Point " + i);
+        }
+        assertEquals(600, r.sessionDistance, 1e-9);
+    }
+
+    @Test
+    public void rejectsAFileWithoutTheFitSignature() {
+        byte[] file = FitFixtures.build(10);
+        file[9] = 'X';
+        assertThrows(IOException.class, () -> decode(file));
+    }
+}
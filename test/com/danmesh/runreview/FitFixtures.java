@@ -0,0 +1,184 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Writes synthetic .FIT files of any size for the tests and benchmarks, so
+ * that the inputs are the same on every machine without committing binaries.
+ * The track is a seeded random walk at running pace with one point a second
+ * and a lap every kilometre, in the messages and field types that a
+ * Forerunner 10 writes.
+ * @author Dan
+ */
+public class FitFixtures {
+    private static final long   START = 1000000000L;
+    private static final double SEMICIRCLES = Math.pow(2, 31)/180;
+    private static final double METERS_PER_DEGREE = Math.PI*6371000/180;
+
+    private static final double SPEED = 3.0;
+    private static final int    LAP_POINTS = 333;
+
+    private FitFixtures() {
+    }
+
+    /**
+     * Writes a synthetic activity to a temporary file, deleted when the JVM exits.
+     * @param numPoints The number of track points.
+     * @return The .FIT file.
+     * @throws IOException If the file could not be written.
+     */
+    public static File write(int numPoints) throws IOException {
+        File file = File.createTempFile("fixture-" + numPoints + "-", ".fit");
+        file.deleteOnExit();
+        Files.write(file.toPath(), build(numPoints));
+        return file;
+    }
+
+    /**
+     * Builds the contents of a synthetic .FIT file.
+     * @param numPoints The number of track points.
+     * @return The bytes of the file.
+     */
+    public static byte[] build(int numPoints) {
+        int numLaps = (numPoints + LAP_POINTS - 1)/LAP_POINTS;
+        int size = 12 + 64*4 + 23*numPoints + 21*numLaps + 19 + 9 + 2;
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(12);
+
+        /* Record: timestamp, lat, long, altitude, distance, speed */
+        definition(buf, 0, 20, new int[][] {{253, 4, 0x86}, {0, 4, 0x85}, {1, 4, 0x85}, {2, 2, 0x84}, {5, 4, 0x86}, {6, 2, 0x84}});
+        Random random = new Random(numPoints);
+        double lat = -33.9, lon = 18.4, heading = 0, distance = 0;
+        for (int i = 0; i < numPoints; i++) {
+            heading += random.nextGaussian()*0.1;
+            double step = SPEED/METERS_PER_DEGREE;
+            lat += step*Math.cos(heading);
+            lon += step*Math.sin(heading)/Math.cos(Math.toRadians(lat));
+            distance += SPEED;
+            double alt = 100 + 20*Math.sin(i/500.0);
+
+            buf.put((byte)0);
+            buf.putInt((int)(START + i));
+            buf.putInt((int)Math.round(lat*SEMICIRCLES));
+            buf.putInt((int)Math.round(lon*SEMICIRCLES));
+            buf.putShort((short)Math.round((alt + 500)*5));
+            buf.putInt((int)Math.round(distance*100));
+            buf.putShort((short)Math.round(SPEED*1000));
+        }
+
+        /* Lap: timestamp, start_time, total_elapsed_time, total_timer_time, total_distance */
+        definition(buf, 1, 19, new int[][] {{253, 4, 0x86}, {2, 4, 0x86}, {7, 4, 0x86}, {8, 4, 0x86}, {9, 4, 0x86}});
+        for (int k = 0; k < numPoints; k += LAP_POINTS) {
+            int end = Math.min(k + LAP_POINTS - 1, numPoints - 1);
+            buf.put((byte)1);
+            buf.putInt((int)(START + end));
+            buf.putInt((int)(START + k));
+            buf.putInt((end - k)*1000);
+            buf.putInt((end - k)*1000);
+            buf.putInt((int)Math.round((end - k)*SPEED*100));
+        }
+
+        summary(buf, numPoints, START + numPoints);
+        return finish(buf);
+    }
+
+    /**
+     * Builds the contents of a synthetic .FIT file whose records carry
+     * compressed timestamps, the 5 bit offsets from the last full timestamp
+     * which watches use to save space. The timer is stopped part way through,
+     * and restarted by an event message with a full timestamp, as a watch
+     * records a pause.
+     * @param numPoints The number of track points, one a second apart except across the pause.
+     * @param pauseAt The index of the first point after the pause.
+     * @param pauseSeconds The length of the pause in seconds.
+     * @return The bytes of the file.
+     */
+    public static byte[] buildCompressed(int numPoints, int pauseAt, int pauseSeconds) {
+        ByteBuffer buf = ByteBuffer.allocate(12 + 64*4 + 17*numPoints + 7*3 + 19 + 9 + 2).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(12);
+
+        /* Event: timestamp, event, event_type. Record: lat, long, altitude, distance, speed */
+        definition(buf, 1, 21, new int[][] {{253, 4, 0x86}, {0, 1, 0x00}, {1, 1, 0x00}});
+        definition(buf, 0, 20, new int[][] {{0, 4, 0x85}, {1, 4, 0x85}, {2, 2, 0x84}, {5, 4, 0x86}, {6, 2, 0x84}});
+        event(buf, START, 0);
+        for (int i = 0; i < numPoints; i++) {
+            long time = START + i;
+            if (i >= pauseAt) time += pauseSeconds;
+            if (i == pauseAt) {
+                event(buf, START + pauseAt - 1, 4);
+                event(buf, time, 0);
+            }
+            buf.put((byte)(0x80 | (time & 0x1F)));
+            buf.putInt((int)Math.round(-33.9*SEMICIRCLES));
+            buf.putInt((int)Math.round((18.4 + i*1e-5)*SEMICIRCLES));
+            buf.putShort((short)Math.round(600*5));
+            buf.putInt((int)Math.round(i*SPEED*100));
+            buf.putShort((short)Math.round(SPEED*1000));
+        }
+        summary(buf, numPoints, START + numPoints + pauseSeconds);
+        return finish(buf);
+    }
+
+    /**
+     * Writes a timer event: 0 to start the timer or 4 to stop it.
+     */
+    private static void event(ByteBuffer buf, long time, int type) {
+        buf.put((byte)1);
+        buf.putInt((int)time);
+        buf.put((byte)0);
+        buf.put((byte)type);
+    }
+
+    /**
+     * Writes the session and activity messages which end an activity.
+     */
+    private static void summary(ByteBuffer buf, int numPoints, long end) {
+        /* Session: timestamp, total_elapsed_time, total_timer_time, total_distance, total_calories */
+        definition(buf, 2, 18, new int[][] {{253, 4, 0x86}, {7, 4, 0x86}, {8, 4, 0x86}, {9, 4, 0x86}, {11, 2, 0x84}});
+        buf.put((byte)2);
+        buf.putInt((int)end);
+        buf.putInt((int)(end - START)*1000);
+        buf.putInt(numPoints*1000);
+        buf.putInt((int)Math.round(numPoints*SPEED*100));
+        buf.putShort((short)Math.min(numPoints/10, 0xFFFE));
+
+        /* Activity: timestamp, local_timestamp */
+        definition(buf, 3, 34, new int[][] {{253, 4, 0x86}, {5, 4, 0x86}});
+        buf.put((byte)3);
+        buf.putInt((int)end);
+        buf.putInt((int)(end + 7200));
+    }
+
+    /**
+     * Fills in the file header and the (unchecked) CRC.
+     */
+    private static byte[] finish(ByteBuffer buf) {
+        int dataSize = buf.position() - 12;
+        buf.putShort((short)0);
+        buf.put(0, (byte)12).put(1, (byte)16).putShort(2, (short)2000).putInt(4, dataSize);
+        buf.put(8, (byte)'.').put(9, (byte)'F').put(10, (byte)'I').put(11, (byte)'T');
+
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void definition(ByteBuffer buf, int local, int global, int[][] fields) {
+        buf.put((byte)(0x40 | local));
+        buf.put((byte)0);
+        buf.put((byte)0);
+        buf.putShort((short)global);
+        buf.put((byte)fields.length);
+        for (int[] field : fields) {
+            buf.put((byte)field[0]).put((byte)field[1]).put((byte)field[2]);
+        }
+    }
+}
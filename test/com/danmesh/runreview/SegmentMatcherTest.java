@@ -0,0 +1,57 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Finding a route cut from one activity in a small library.
+ * @author Dan
+ */
+public class SegmentMatcherTest {
+    @TempDir
+    File dir;
+
+    @Test
+    public void findsTheActivityTheRouteWasCutFrom() throws IOException {
+        File source = new File(dir, "source.fit");
+        File other = new File(dir, "other.fit");
+        Files.write(source.toPath(), FitFixtures.build(2000));
+        Files.write(other.toPath(), FitFixtures.build(1500));
+
+        ActivityLibrary library = new ActivityLibrary(dir);
+        SpatialIndex index = new SpatialIndex();
+        Track track = new Track(source.getPath());
+        index.add(source, track);
+        index.add(other, new Track(other.getPath()));
+
+        RouteSegment route = RouteSegment.fromRange("Cut", new PointRange(track.getPoints(), 500, 801));
+        List<SegmentMatch> matches = new SegmentMatcher(library, index).match(route, 2);
+
+        assertEquals(1, matches.size());
+        SegmentMatch match = matches.get(0);
+        assertEquals(source, match.getFile());
+        assertEquals(track.getPoints().getTime(500), match.getStartMillis(), 5000);
+        assertEquals(track.getPoints().getTime(800), match.getEndMillis(), 5000);
+        assertEquals(300, match.getElapsedTime(), 10);
+        assertEquals(900, match.getDistance(), 30);
+    }
+
+    @Test
+    public void routeElsewhereHasNoMatches() throws IOException {
+        File source = new File(dir, "source.fit");
+        Files.write(source.toPath(), FitFixtures.build(1000));
+        SpatialIndex index = new SpatialIndex();
+        index.add(source, new Track(source.getPath()));
+
+        RouteSegment route = new RouteSegment("Elsewhere", new double[] {51.50, 51.51}, new double[] {-0.10, -0.10});
+        assertTrue(new SegmentMatcher(new ActivityLibrary(dir), index).match(route, 2).isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Radius and box queries of the spatial index, and saving it.
+ * @author Dan
+ */
+public class SpatialIndexTest {
+    @TempDir
+    File dir;
+
+    private File file;
+    private Track track;
+    private SpatialIndex index;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = new File(dir, "activity.fit");
+        Files.write(file.toPath(), FitFixtures.build(1000));
+        track = new Track(file.getPath());
+        index = new SpatialIndex();
+        index.add(file, track);
+    }
+
+    @Test
+    public void nearFindsThePointsWithinTheRadius() {
+        PointStore points = track.getPoints();
+        List<SpatialIndex.Match> matches = index.near(points.getLat(700), points.getLon(700), 10);
+
+        assertEquals(1, matches.size());
+        SpatialIndex.Match match = matches.get(0);
+        assertEquals(file, match.getFile());
+        assertTrue(covers(match, 700), match.toString());
+        for (int r = 0; r < match.getNumRanges(); r++) {
+            for (int i = match.getStart(r); i < match.getEnd(r); i++) {
+                double d = RouteSegment.distance(points.getLat(700), points.getLon(700), points.getLat(i), points.getLon(i));
+                assertTrue(d <= 10.1, "Point " + i + " is " + d + " m away");
+            }
+        }
+        /* At 3 m a second, only a few points either side are in range */
+        assertFalse(covers(match, 690));
+        assertFalse(covers(match, 710));
+    }
+
+    @Test
+    public void nearFarAwayFindsNothing() {
+        assertTrue(index.near(51.5, -0.1, 1000).isEmpty());
+    }
+
+    @Test
+    public void withinFindsThePointsInTheBox() {
+        PointStore points = track.getPoints();
+        double south = Math.min(points.getLat(300), points.getLat(310));
+        double north = Math.max(points.getLat(300), points.getLat(310));
+        double west = Math.min(points.getLon(300), points.getLon(310));
+        double east = Math.max(points.getLon(300), points.getLon(310));
+        List<SpatialIndex.Match> matches = index.within(south, west, north, east);
+
+        assertEquals(1, matches.size());
+        assertTrue(covers(matches.get(0), 300));
+        assertTrue(covers(matches.get(0), 310));
+    }
+
+    @Test
+    public void savedIndexLoadsTheSame() throws IOException {
+        File saved = new File(dir, "spatial.rsi");
+        index.save(saved);
+        SpatialIndex loaded = SpatialIndex.load(saved);
+
+        assertTrue(loaded.contains(file));
+        assertEquals(index.getNumActivities(), loaded.getNumActivities());
+        assertEquals(index.getNumPoints(), loaded.getNumPoints());
+        assertEquals(1000, loaded.getNumPoints());
+
+        PointStore points = track.getPoints();
+        SpatialIndex.Match before = index.near(points.getLat(450), points.getLon(450), 25).get(0);
+        SpatialIndex.Match after = loaded.near(points.getLat(450), points.getLon(450), 25).get(0);
+        assertEquals(before.getNumRanges(), after.getNumRanges());
+        for (int r = 0; r < before.getNumRanges(); r++) {
+            assertEquals(before.getStart(r), after.getStart(r));
+            assertEquals(before.getEnd(r), after.getEnd(r));
+        }
+    }
+
+    @Test
+    public void missingFileLoadsEmpty() {
+        SpatialIndex loaded = SpatialIndex.load(new File(dir, "missing.rsi"));
+        assertEquals(0, loaded.getNumActivities());
+    }
+
+    private static boolean covers(SpatialIndex.Match match, int i) {
+        for (int r = 0; r < match.getNumRanges(); r++) {
+            if (match.getStart(r) <= i && i < match.getEnd(r)) return true;
+        }
+        return false;
+    }
+}
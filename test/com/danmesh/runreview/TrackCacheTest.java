@@ -0,0 +1,116 @@
+// © Daniel Mesham 2018
+
+package com.danmesh.runreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writing, reading and rebuilding the entries of the track cache.
+ * @author Dan
+ */
+public class TrackCacheTest {
+    @TempDir
+    File cacheDir;
+
+    @TempDir
+    File fitDir;
+
+    private File fixture(int numPoints) throws IOException {
+        File file = new File(fitDir, "activity-" + numPoints + ".fit");
+        Files.write(file.toPath(), FitFixtures.build(numPoints));
+        return file;
+    }
+
+    private File[] entries() {
+        return cacheDir.listFiles((dir, name) -> name.endsWith(".rrt"));
+    }
+
+    @Test
+    public void entryRoundTrips() throws IOException {
+        File file = fixture(1000);
+        TrackCache cache = new TrackCache(cacheDir);
+        Track decoded = new Track(file.getPath());
+
+        assertTracksEqual(decoded, cache.open(file.getPath()));
+        assertEquals(1, entries().length);
+
+        Track cached = cache.read(entries()[0], cache.key(file.toPath()));
+        assertNotNull(cached);
+        assertTracksEqual(decoded, cached);
+        assertTracksEqual(decoded, cache.open(file.getPath()));
+    }
+
+    @Test
+    public void entryForAnotherFileIsStale() throws IOException {
+        File file = fixture(1000);
+        File other = fixture(500);
+        TrackCache cache = new TrackCache(cacheDir);
+        cache.open(file.getPath());
+
+        assertNull(cache.read(entries()[0], cache.key(other.toPath())));
+    }
+
+    @Test
+    public void corruptEntryIsRebuilt() throws IOException {
+        File file = fixture(1000);
+        TrackCache cache = new TrackCache(cacheDir);
+        Track decoded = cache.open(file.getPath());
+        File entry = entries()[0];
+        byte[] key = cache.key(file.toPath());
+
+        try (RandomAccessFile raf = new RandomAccessFile(entry, "rw")) {
+            long pos = raf.length()/2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x5A);
+        }
+        IOException e = assertThrows(IOException.class, () -> cache.read(entry, key));
+        assertTrue(e.getMessage().contains("Checksum"), e.getMessage());
+
+        assertTracksEqual(decoded, cache.open(file.getPath()));
+        assertTracksEqual(decoded, cache.read(entry, key));
+    }
+
+    @Test
+    public void pipelinesHaveTheirOwnEntries() throws IOException {
+        File file = fixture(1000);
+        TrackCache raw = new TrackCache(cacheDir);
+        TrackCache smoothed = new TrackCache(cacheDir, PointPipeline.standard());
+
+        assertFalse(Arrays.equals(raw.key(file.toPath()), smoothed.key(file.toPath())));
+        raw.open(file.getPath());
+        Track track = smoothed.open(file.getPath());
+        assertEquals(2, entries().length);
+        assertTracksEqual(new Track(file.getPath(), PointPipeline.standard()), track);
+    }
+
+    private static void assertTracksEqual(Track expected, Track actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getDistance(), actual.getDistance(), 1e-9);
+        assertEquals(expected.getTimerTime(), actual.getTimerTime(), 1e-9);
+        assertEquals(expected.getElapsedTime(), actual.getElapsedTime(), 1e-9);
+        assertEquals(expected.getCalories(), actual.getCalories());
+        assertEquals(expected.getLocalTimestamp(), actual.getLocalTimestamp());
+        assertEquals(expected.getNumLaps(), actual.getNumLaps());
+
+        PointStore a = expected.getPoints(), b = actual.getPoints();
+        assertEquals(a.size(), b.size());
+        for (int i = 0; i < a.size(); i++) {
+            assertEquals(a.getTime(i), b.getTime(i));
+            assertEquals(a.getLat(i), b.getLat(i), 1e-9);
+            assertEquals(a.getLon(i), b.getLon(i), 1e-9);
+            assertEquals(a.getAlt(i), b.getAlt(i), 1e-9);
+            assertEquals(a.getSpeed(i), b.getSpeed(i), 1e-9);
+            assertEquals(a.getDistance(i), b.getDistance(i), 1e-9);
+        }
+    }
+}